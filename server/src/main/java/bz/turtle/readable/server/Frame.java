@@ -0,0 +1,148 @@
+package bz.turtle.readable.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One binary request, a batch of examples for one model. All numbers are big endian, like
+ * DataOutputStream writes them.
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * int    id, echoed in the response
+ * byte   type, 0 vw text lines, 1 pre hashed features
+ * byte   flags, 1 = probabilities
+ * short  length of the model name, followed by the name in UTF-8
+ * int    number of examples
+ * text:   per example int length + the line in UTF-8
+ * hashed: per example a list of
+ *           byte 1, char first char of the namespace
+ *           byte 2, int feature hash, float value
+ *         ending with byte 0
+ * </pre>
+ *
+ * Pre hashed features are what HashedRequest takes, compute them with model.getFeatureHasher().
+ *
+ * <pre>
+ * Frame f = Frame.text("ctr").line("|user a b |item x").line("|user a |item y");
+ * Frame h = Frame.hashed("ctr").example().namespace('u').feature(hash, 1f);
+ * </pre>
+ */
+public class Frame {
+  static final byte TEXT = 0;
+  static final byte HASHED = 1;
+
+  static final byte END = 0;
+  static final byte NAMESPACE = 1;
+  static final byte FEATURE = 2;
+
+  static final byte PROBABILITIES = 1;
+
+  private final byte type;
+  private final String model;
+  private boolean probabilities;
+  private int examples;
+  private boolean inExample;
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private final DataOutputStream out = new DataOutputStream(body);
+
+  private Frame(byte type, String model) {
+    this.type = type;
+    this.model = model;
+  }
+
+  public static Frame text(String model) {
+    return new Frame(TEXT, model);
+  }
+
+  public static Frame hashed(String model) {
+    return new Frame(HASHED, model);
+  }
+
+  public Frame probabilities(boolean probabilities) {
+    this.probabilities = probabilities;
+    return this;
+  }
+
+  /** @param line one example in vw format */
+  public Frame line(CharSequence line) {
+    if (type != TEXT) throw new IllegalStateException("not a text frame");
+    try {
+      byte[] utf8 = line.toString().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(utf8.length);
+      out.write(utf8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    examples++;
+    return this;
+  }
+
+  /** starts the next pre hashed example */
+  public Frame example() {
+    if (type != HASHED) throw new IllegalStateException("not a hashed frame");
+    endExample();
+    inExample = true;
+    examples++;
+    return this;
+  }
+
+  public Frame namespace(char first) {
+    requireExample();
+    try {
+      out.writeByte(NAMESPACE);
+      out.writeChar(first);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return this;
+  }
+
+  public Frame feature(int hash, float value) {
+    requireExample();
+    try {
+      out.writeByte(FEATURE);
+      out.writeInt(hash);
+      out.writeFloat(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return this;
+  }
+
+  public int examples() {
+    return examples;
+  }
+
+  private void requireExample() {
+    if (!inExample) throw new IllegalStateException("call example() first");
+  }
+
+  private void endExample() {
+    if (inExample) {
+      try {
+        out.writeByte(END);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      inExample = false;
+    }
+  }
+
+  void writeTo(DataOutputStream to, int id) throws IOException {
+    endExample();
+    byte[] name = model.getBytes(StandardCharsets.UTF_8);
+    int length = 4 + 1 + 1 + 2 + name.length + 4 + body.size();
+    to.writeInt(length);
+    to.writeInt(id);
+    to.writeByte(type);
+    to.writeByte(probabilities ? PROBABILITIES : 0);
+    to.writeShort(name.length);
+    to.write(name);
+    to.writeInt(examples);
+    body.writeTo(to);
+  }
+}
@@ -0,0 +1,32 @@
+package bz.turtle.readable.server;
+
+import bz.turtle.readable.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** counters of one served model, a request is one http request or one binary frame */
+public class ModelStats {
+  public final LongAdder requests = new LongAdder();
+  public final LongAdder examples = new LongAdder();
+  public final LongAdder errors = new LongAdder();
+  public final LatencyHistogram latency = new LatencyHistogram();
+
+  void record(int exampleCount, long startNanos, boolean failed) {
+    requests.increment();
+    examples.add(exampleCount);
+    if (failed) errors.increment();
+    latency.record(System.nanoTime() - startNanos);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "requests=%d examples=%d errors=%d p50_us=%d p99_us=%d",
+        requests.sum(),
+        examples.sum(),
+        errors.sum(),
+        TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.5)),
+        TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.99)));
+  }
+}
@@ -0,0 +1,95 @@
+package bz.turtle.readable.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Client of the binary endpoint. Requests are pipelined, send() only buffers the frame, so you can
+ * send many frames and then read the responses, which come back in the same order. A reader thread
+ * takes the responses off the socket as they arrive, so however big the batch is the server is
+ * never stuck writing responses nobody reads while the client is stuck writing frames.
+ *
+ * <pre>
+ * try (PredictionClient client = new PredictionClient("localhost", 8081)) {
+ *   for (Frame f : frames) client.send(f);
+ *   client.flush();
+ *   for (Frame f : frames) process(client.read());
+ * }
+ * </pre>
+ *
+ * Not thread safe, use one client per thread.
+ */
+public class PredictionClient implements Closeable {
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  /** Response's, or the IOException that ended the reader thread */
+  private final BlockingQueue<Object> responses = new LinkedBlockingQueue<>();
+  private int nextId = 0;
+
+  public PredictionClient(String host, int port) throws IOException {
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    Thread reader = new Thread(this::readResponses, "turtle-client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readResponses() {
+    try {
+      while (true) responses.add(Response.read(in));
+    } catch (IOException e) {
+      responses.add(e);
+    }
+  }
+
+  /** @return the id of the frame, the response has the same id */
+  public int send(Frame frame) throws IOException {
+    int id = nextId++;
+    frame.writeTo(out, id);
+    return id;
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /** blocks until the next response, the frames have to be flushed */
+  public Response read() throws IOException {
+    Object next;
+    try {
+      next = responses.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    if (next instanceof IOException) {
+      // every later read fails the same way
+      responses.add(next);
+      throw new IOException("connection failed", (IOException) next);
+    }
+    return (Response) next;
+  }
+
+  /** send, flush and read, one round trip */
+  public Response call(Frame frame) throws IOException {
+    send(frame);
+    flush();
+    return read();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
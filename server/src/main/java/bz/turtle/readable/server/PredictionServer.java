@@ -0,0 +1,499 @@
+package bz.turtle.readable.server;
+
+import bz.turtle.readable.HashedRequest;
+import bz.turtle.readable.ModelHolder;
+import bz.turtle.readable.ReadableModel;
+import bz.turtle.readable.input.ExampleParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Serves models over http and over a binary protocol, both on the same thread pool, which is one
+ * virtual thread per request/connection on Java 21+, and a cached pool of platform threads before.
+ *
+ * <pre>
+ * PredictionServer server = new PredictionServer();
+ * server.add("ctr", new ModelHolder(new File("/models/ctr")));
+ * server.startHttp(8080);
+ * server.startBinary(8081);
+ * </pre>
+ *
+ * http:
+ *
+ * <pre>
+ * POST /predict/ctr[?probabilities=true]  vw lines in the body, one prediction per line back
+ * POST /predict                           binary frames in the body, responses back
+ * GET  /models                            one model name per line
+ * GET  /stats                             requests, examples, errors, p50 and p99 per model
+ * </pre>
+ *
+ * The binary endpoint takes Frame's and answers with Response's on a plain socket, frames are
+ * pipelined, the responses come in the same order, check out PredictionClient.
+ */
+public class PredictionServer implements Closeable {
+  private final Map<String, Supplier<ReadableModel>> models = new ConcurrentHashMap<>();
+  private final Map<String, ModelStats> stats = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<ExampleParser> parsers = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<HashedRequest> hashedRequests =
+      new ConcurrentLinkedQueue<>();
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+  /** bigger frames close the connection */
+  public int maxFrameBytes = 64 << 20;
+
+  /** frames with more examples are answered with an error */
+  public int maxExamplesPerFrame = 1 << 16;
+
+  private ExecutorService executor;
+  private boolean virtualThreads;
+  private HttpServer http;
+  private ServerSocket binary;
+
+  public PredictionServer add(String name, ReadableModel model) {
+    return add(name, () -> model);
+  }
+
+  /** the holder's current model is used for every request, so reloads are picked up */
+  public PredictionServer add(String name, ModelHolder holder) {
+    return add(name, holder::get);
+  }
+
+  private PredictionServer add(String name, Supplier<ReadableModel> model) {
+    models.put(name, model);
+    stats.putIfAbsent(name, new ModelStats());
+    return this;
+  }
+
+  /** @return null if there is no such model */
+  public ModelStats getStats(String name) {
+    return stats.get(name);
+  }
+
+  public synchronized boolean usesVirtualThreads() {
+    executor();
+    return virtualThreads;
+  }
+
+  /** @param port 0 picks a free port, @see getHttpPort */
+  public synchronized void startHttp(int port) throws IOException {
+    http = HttpServer.create(new InetSocketAddress(port), 0);
+    http.createContext("/predict", this::predictHttp);
+    http.createContext("/models", this::models);
+    http.createContext("/stats", this::stats);
+    http.setExecutor(executor());
+    http.start();
+  }
+
+  /** @param port 0 picks a free port, @see getBinaryPort */
+  public synchronized void startBinary(int port) throws IOException {
+    binary = new ServerSocket(port);
+    ExecutorService pool = executor();
+    ServerSocket server = binary;
+    Thread acceptor =
+        new Thread(
+            () -> {
+              while (!server.isClosed()) {
+                try {
+                  Socket socket = server.accept();
+                  socket.setTcpNoDelay(true);
+                  connections.add(socket);
+                  pool.execute(() -> serve(socket));
+                } catch (IOException e) {
+                  // closed
+                }
+              }
+            },
+            "turtle-binary-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getHttpPort() {
+    return http.getAddress().getPort();
+  }
+
+  public int getBinaryPort() {
+    return binary.getLocalPort();
+  }
+
+  private ExecutorService executor() {
+    if (executor == null) {
+      try {
+        executor =
+            (ExecutorService)
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        virtualThreads = true;
+      } catch (ReflectiveOperationException e) {
+        executor =
+            Executors.newCachedThreadPool(
+                r -> {
+                  Thread t = new Thread(r, "turtle-server");
+                  t.setDaemon(true);
+                  return t;
+                });
+      }
+    }
+    return executor;
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+      byte[] frame = new byte[4096];
+      Rows rows = new Rows();
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+        if (length < 0 || length > maxFrameBytes) {
+          throw new IOException("bad frame length " + length);
+        }
+        if (frame.length < length) frame = new byte[Math.max(length, frame.length * 2)];
+        in.readFully(frame, 0, length);
+        handleFrame(ByteBuffer.wrap(frame, 0, length), out, rows);
+        // answer the frames that are already pipelined before flushing
+        if (in.available() == 0) out.flush();
+      }
+    } catch (IOException e) {
+      // the client is gone or sent garbage, nothing to answer to
+    } finally {
+      connections.remove(socket);
+    }
+  }
+
+  /** answers every frame, a short or garbled one with an error, id -1 if it is too short for one */
+  private void handleFrame(ByteBuffer frame, DataOutputStream out, Rows rows) throws IOException {
+    int id = frame.remaining() >= 4 ? frame.getInt() : -1;
+    try {
+      predictFrame(id, frame, out, rows);
+    } catch (BufferUnderflowException e) {
+      Response.writeError(out, id, "truncated frame");
+    } catch (RuntimeException e) {
+      Response.writeError(out, id, "bad frame: " + e);
+    }
+  }
+
+  private void predictFrame(int id, ByteBuffer frame, DataOutputStream out, Rows rows)
+      throws IOException {
+    long start = System.nanoTime();
+    byte type = frame.get();
+    if (type != Frame.TEXT && type != Frame.HASHED) {
+      Response.writeError(out, id, "unknown frame type " + type);
+      return;
+    }
+    boolean probabilities = (frame.get() & Frame.PROBABILITIES) != 0;
+    byte[] name = new byte[frame.getShort() & 0xffff];
+    frame.get(name);
+    String modelName = new String(name, StandardCharsets.UTF_8);
+    Supplier<ReadableModel> holder = models.get(modelName);
+    if (holder == null) {
+      Response.writeError(out, id, "unknown model " + modelName);
+      return;
+    }
+    ModelStats modelStats = stats.get(modelName);
+    ReadableModel model = holder.get();
+    float[] result = model.getReusableFloatArray();
+    int examples = frame.getInt();
+    // a text example is at least its length, a hashed one at least its END
+    int minExampleBytes = type == Frame.TEXT ? 4 : 1;
+    if (examples < 0
+        || examples > maxExamplesPerFrame
+        || examples > frame.remaining() / minExampleBytes) {
+      modelStats.record(0, start, true);
+      Response.writeError(out, id, "bad number of examples " + examples);
+      return;
+    }
+
+    // the rows are written as they are predicted, so memory follows what was really sent
+    rows.reset();
+    int e = 0;
+    try {
+      if (type == Frame.TEXT) {
+        ExampleParser parser = borrowParser(probabilities);
+        try {
+          for (; e < examples; e++) {
+            int length = frame.getInt();
+            if (length < 0 || length > frame.remaining()) {
+              throw new IllegalArgumentException("bad line length " + length);
+            }
+            int offset = frame.arrayOffset() + frame.position();
+            model.predict(result, parser.parse(frame.array(), offset, length), null);
+            frame.position(frame.position() + length);
+            rows.write(result);
+          }
+        } finally {
+          parsers.offer(parser);
+        }
+      } else {
+        HashedRequest request = hashedRequests.poll();
+        if (request == null) request = new HashedRequest();
+        try {
+          for (; e < examples; e++) {
+            readHashed(frame, request.clear());
+            request.probabilities = probabilities;
+            model.predict(request, result);
+            rows.write(result);
+          }
+        } finally {
+          hashedRequests.offer(request);
+        }
+      }
+    } catch (RuntimeException ex) {
+      modelStats.record(e, start, true);
+      Response.writeError(out, id, "example " + e + ": " + ex);
+      return;
+    }
+    Response.writeOk(out, id, examples, result.length, rows);
+    modelStats.record(examples, start, false);
+  }
+
+  /** the predictions of one frame, reused for all the frames of a connection */
+  private static final class Rows extends ByteArrayOutputStream {
+    void write(float[] result) {
+      for (float f : result) {
+        int bits = Float.floatToIntBits(f);
+        write(bits >>> 24);
+        write(bits >>> 16);
+        write(bits >>> 8);
+        write(bits);
+      }
+    }
+  }
+
+  private static void readHashed(ByteBuffer frame, HashedRequest request) {
+    while (true) {
+      byte tag = frame.get();
+      switch (tag) {
+        case Frame.END:
+          return;
+        case Frame.NAMESPACE:
+          request.namespace(frame.getChar());
+          break;
+        case Frame.FEATURE:
+          request.feature(frame.getInt(), frame.getFloat());
+          break;
+        default:
+          throw new IllegalArgumentException("unknown tag " + tag);
+      }
+    }
+  }
+
+  private ExampleParser borrowParser(boolean probabilities) {
+    ExampleParser parser = parsers.poll();
+    if (parser == null) parser = new ExampleParser();
+    parser.probabilities = probabilities;
+    return parser;
+  }
+
+  private void predictHttp(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        send(exchange, 405, "use POST");
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      if (path.equals("/predict") || path.equals("/predict/")) {
+        predictFrames(exchange);
+        return;
+      }
+      String modelName = path.substring("/predict/".length());
+      Supplier<ReadableModel> holder = models.get(modelName);
+      if (holder == null) {
+        send(exchange, 404, "unknown model " + modelName);
+        return;
+      }
+      String query = exchange.getRequestURI().getQuery();
+      boolean probabilities = query != null && query.contains("probabilities=true");
+      predictLines(exchange, holder.get(), stats.get(modelName), probabilities);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void predictLines(
+      HttpExchange exchange, ReadableModel model, ModelStats modelStats, boolean probabilities)
+      throws IOException {
+    long start = System.nanoTime();
+    float[] result = model.getReusableFloatArray();
+    StringBuilder sb = new StringBuilder();
+    ExampleParser parser = borrowParser(probabilities);
+    int examples = 0;
+    int lineNumber = 0;
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty()) continue;
+        model.predict(result, parser.parse(line), null);
+        format(sb, result);
+        examples++;
+      }
+    } catch (RuntimeException e) {
+      modelStats.record(examples, start, true);
+      send(exchange, 400, "line " + lineNumber + ": " + e);
+      return;
+    } finally {
+      parsers.offer(parser);
+    }
+    modelStats.record(examples, start, false);
+    send(exchange, 200, sb.toString());
+  }
+
+  /** same format as vw -p, class:score for --oaa */
+  private static void format(StringBuilder sb, float[] result) {
+    if (result.length == 1) {
+      sb.append(result[0]);
+    } else {
+      for (int klass = 0; klass < result.length; klass++) {
+        if (klass > 0) sb.append(' ');
+        sb.append(klass + 1).append(':').append(result[klass]);
+      }
+    }
+    sb.append('\n');
+  }
+
+  private void predictFrames(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(responses);
+    Rows rows = new Rows();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(exchange.getRequestBody()))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        if (length < 0 || length > maxFrameBytes) {
+          send(exchange, 400, "bad frame length " + length);
+          return;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        handleFrame(ByteBuffer.wrap(frame), out, rows);
+      }
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+    exchange.sendResponseHeaders(200, responses.size());
+    try (OutputStream os = exchange.getResponseBody()) {
+      responses.writeTo(os);
+    }
+  }
+
+  private void models(HttpExchange exchange) throws IOException {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (String name : new TreeMap<>(models).keySet()) sb.append(name).append('\n');
+      send(exchange, 200, sb.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void stats(HttpExchange exchange) throws IOException {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, ModelStats> e : new TreeMap<>(stats).entrySet()) {
+        sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+      }
+      send(exchange, 200, sb.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] utf8 = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, utf8.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(utf8);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (http != null) http.stop(0);
+    if (binary != null) binary.close();
+    for (Socket s : connections) s.close();
+    if (executor != null) executor.shutdownNow();
+  }
+
+  /**
+   * <pre>
+   * $ java -cp readable.jar:readable-server.jar bz.turtle.readable.server.PredictionServer \
+   *     --http 8080 --binary 8081 ctr=/models/ctr ranking=/models/ranking
+   * </pre>
+   *
+   * The model directories are watched and reloaded, @see ModelHolder
+   */
+  public static void main(String[] args) throws IOException {
+    PredictionServer server = new PredictionServer();
+    int httpPort = -1;
+    int binaryPort = -1;
+    List<ModelHolder> holders = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--http")) {
+        httpPort = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--binary")) {
+        binaryPort = Integer.parseInt(args[++i]);
+      } else if (args[i].contains("=")) {
+        String[] kv = args[i].split("=", 2);
+        ModelHolder holder = new ModelHolder(new File(kv[1]));
+        holder.watch();
+        holders.add(holder);
+        server.add(kv[0], holder);
+      } else {
+        throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+    if (holders.isEmpty() || (httpPort < 0 && binaryPort < 0)) {
+      System.err.println(
+          "usage: PredictionServer [--http port] [--binary port] name=model_dir ...");
+      System.exit(1);
+    }
+    if (httpPort >= 0) server.startHttp(httpPort);
+    if (binaryPort >= 0) server.startBinary(binaryPort);
+    System.err.printf(
+        "serving %d models, http %d, binary %d, virtual threads %s%n",
+        holders.size(), httpPort, binaryPort, server.usesVirtualThreads());
+  }
+}
@@ -0,0 +1,80 @@
+package bz.turtle.readable.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Answer to one Frame.
+ *
+ * <pre>
+ * int    length of the rest of the response
+ * int    id of the frame
+ * byte   status, 0 ok, 1 error
+ * ok:    int examples, int classes, examples * classes floats
+ * error: short length of the message, followed by the message in UTF-8
+ * </pre>
+ */
+public class Response {
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  public final int id;
+
+  /** one row per example, one float per class, null if there was an error */
+  public final float[][] predictions;
+
+  /** null if ok */
+  public final String error;
+
+  Response(int id, float[][] predictions, String error) {
+    this.id = id;
+    this.predictions = predictions;
+    this.error = error;
+  }
+
+  public boolean isOk() {
+    return error == null;
+  }
+
+  /** @param rows examples * classes floats, big endian */
+  static void writeOk(
+      DataOutputStream out, int id, int examples, int classes, ByteArrayOutputStream rows)
+      throws IOException {
+    out.writeInt(4 + 1 + 4 + 4 + rows.size());
+    out.writeInt(id);
+    out.writeByte(OK);
+    out.writeInt(examples);
+    out.writeInt(classes);
+    rows.writeTo(out);
+  }
+
+  static void writeError(DataOutputStream out, int id, String message) throws IOException {
+    byte[] utf8 = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+    if (utf8.length > Short.MAX_VALUE) utf8 = Arrays.copyOf(utf8, Short.MAX_VALUE);
+    out.writeInt(4 + 1 + 2 + utf8.length);
+    out.writeInt(id);
+    out.writeByte(ERROR);
+    out.writeShort(utf8.length);
+    out.write(utf8);
+  }
+
+  static Response read(DataInputStream in) throws IOException {
+    in.readInt();
+    int id = in.readInt();
+    byte status = in.readByte();
+    if (status != OK) {
+      byte[] utf8 = new byte[in.readUnsignedShort()];
+      in.readFully(utf8);
+      return new Response(id, null, new String(utf8, StandardCharsets.UTF_8));
+    }
+    float[][] predictions = new float[in.readInt()][in.readInt()];
+    for (float[] p : predictions) {
+      for (int klass = 0; klass < p.length; klass++) p[klass] = in.readFloat();
+    }
+    return new Response(id, predictions, null);
+  }
+}
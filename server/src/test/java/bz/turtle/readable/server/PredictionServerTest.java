@@ -0,0 +1,315 @@
+package bz.turtle.readable.server;
+
+import bz.turtle.readable.FeatureHasher;
+import bz.turtle.readable.ReadableModel;
+import bz.turtle.readable.input.ExampleParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PredictionServerTest {
+  private ReadableModel linear;
+  private ReadableModel oaa;
+  private PredictionServer server;
+
+  static ReadableModel randomModel(String options, int bits) throws Exception {
+    Random r = new Random(bits);
+    StringBuilder sb = new StringBuilder();
+    sb.append("Version 8.6.1\nId \nMin label:-1000\nMax label:1000\n");
+    sb.append("bits:").append(bits).append("\n");
+    sb.append("lda:0\n0 ngram:\n0 skip:\n");
+    sb.append("options: ").append(options).append("\n");
+    sb.append("Checksum: 0\n:0\n");
+    for (int i = 0; i < 1 << bits; i++) {
+      sb.append(i).append(":").append(r.nextFloat() - 0.5f).append("\n");
+    }
+    byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+    return new ReadableModel(new ByteArrayInputStream(text));
+  }
+
+  static List<String> randomLines(int n, long seed) {
+    Random r = new Random(seed);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      lines.add("1 |a x" + r.nextInt(100) + " y:" + r.nextInt(10) + " |b z" + r.nextInt(100));
+    }
+    return lines;
+  }
+
+  @Before
+  public void start() throws Exception {
+    linear = randomModel("--hash_seed 0 --quadratic ab --link logistic", 12);
+    oaa = randomModel("--hash_seed 0 --quadratic ab --oaa 5", 14);
+    server = new PredictionServer().add("linear", linear).add("oaa", oaa);
+    server.startHttp(0);
+    server.startBinary(0);
+  }
+
+  @After
+  public void stop() throws Exception {
+    server.close();
+  }
+
+  private float[] expected(ReadableModel model, String line, boolean probabilities) {
+    ExampleParser parser = new ExampleParser();
+    parser.probabilities = probabilities;
+    return model.predict(parser.parse(line));
+  }
+
+  private HttpURLConnection post(String path, String contentType, byte[] body) throws Exception {
+    URL url = new URL("http://localhost:" + server.getHttpPort() + path);
+    HttpURLConnection c = (HttpURLConnection) url.openConnection();
+    c.setRequestMethod("POST");
+    c.setDoOutput(true);
+    c.setRequestProperty("Content-Type", contentType);
+    try (OutputStream os = c.getOutputStream()) {
+      os.write(body);
+    }
+    return c;
+  }
+
+  private static byte[] readAll(InputStream is) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = is.read(buf)) > 0) out.write(buf, 0, n);
+    is.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void httpLines() throws Exception {
+    List<String> lines = randomLines(50, 1);
+    byte[] body = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+
+    HttpURLConnection c = post("/predict/linear", "text/plain", body);
+    assertEquals(200, c.getResponseCode());
+    String[] got = new String(readAll(c.getInputStream()), StandardCharsets.UTF_8).split("\n");
+    assertEquals(lines.size(), got.length);
+    for (int i = 0; i < got.length; i++) {
+      assertEquals(expected(linear, lines.get(i), false)[0], Float.parseFloat(got[i]), 0);
+    }
+
+    c = post("/predict/oaa?probabilities=true", "text/plain", body);
+    assertEquals(200, c.getResponseCode());
+    got = new String(readAll(c.getInputStream()), StandardCharsets.UTF_8).split("\n");
+    for (int i = 0; i < got.length; i++) {
+      float[] e = expected(oaa, lines.get(i), true);
+      String[] perClass = got[i].split(" ");
+      assertEquals(e.length, perClass.length);
+      for (int klass = 0; klass < e.length; klass++) {
+        assertEquals((klass + 1) + ":" + e[klass], perClass[klass]);
+      }
+    }
+
+    assertEquals(404, post("/predict/nope", "text/plain", body).getResponseCode());
+    byte[] broken = "1 |a x:y".getBytes(StandardCharsets.UTF_8);
+    assertEquals(400, post("/predict/linear", "text/plain", broken).getResponseCode());
+  }
+
+  @Test
+  public void binaryPipelining() throws Exception {
+    List<String> lines = randomLines(20, 2);
+    FeatureHasher hasher = linear.getFeatureHasher();
+    int a = hasher.namespaceHash("a");
+    try (PredictionClient client = new PredictionClient("localhost", server.getBinaryPort())) {
+      List<Integer> ids = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        Frame f;
+        if (i % 3 == 0) {
+          int x = hasher.featureHash(a, "x" + i);
+          f = Frame.hashed("linear").example().namespace('a').feature(x, 2f);
+        } else {
+          f = Frame.text(i % 3 == 1 ? "linear" : "oaa").probabilities(i % 2 == 0);
+          for (String line : lines) f.line(line);
+        }
+        ids.add(client.send(f));
+      }
+      // one bad frame in the middle does not break the connection
+      ids.add(client.send(Frame.text("linear").line("1 |a x:y")));
+      ids.add(client.send(Frame.text("nope").line("1 |a x")));
+      ids.add(client.send(Frame.text("linear").line(lines.get(0))));
+      client.flush();
+
+      for (int i = 0; i < 100; i++) {
+        Response r = client.read();
+        assertEquals((int) ids.get(i), r.id);
+        assertTrue(r.error, r.isOk());
+        if (i % 3 == 0) {
+          assertEquals(1, r.predictions.length);
+          float[] e = expected(linear, "|a x" + i + ":2", false);
+          assertArrayEquals(e, r.predictions[0], 0);
+        } else {
+          ReadableModel m = i % 3 == 1 ? linear : oaa;
+          assertEquals(lines.size(), r.predictions.length);
+          for (int j = 0; j < lines.size(); j++) {
+            assertArrayEquals(expected(m, lines.get(j), i % 2 == 0), r.predictions[j], 0);
+          }
+        }
+      }
+      Response bad = client.read();
+      assertFalse(bad.isOk());
+      assertTrue(bad.error, bad.error.startsWith("example 0:"));
+      assertEquals("unknown model nope", client.read().error);
+      Response last = client.read();
+      assertArrayEquals(expected(linear, lines.get(0), false), last.predictions[0], 0);
+    }
+
+    ModelStats stats = server.getStats("linear");
+    assertEquals(1, stats.errors.sum());
+    assertTrue(stats.latency.count() > 0);
+    assertTrue(stats.latency.percentile(0.99) >= stats.latency.percentile(0.5));
+  }
+
+  /** frames whose header is cut short, each as length + bytes */
+  private static void writeTruncatedFrames(DataOutputStream out) throws Exception {
+    out.writeInt(3);
+    out.write(new byte[3]);
+    // name length past the end of the frame
+    out.writeInt(4 + 1 + 1 + 2 + 2);
+    out.writeInt(5);
+    out.writeByte(Frame.TEXT);
+    out.writeByte(0);
+    out.writeShort(100);
+    out.write(new byte[2]);
+    // no number of examples
+    out.writeInt(4 + 1 + 1 + 2 + 6);
+    out.writeInt(6);
+    out.writeByte(Frame.TEXT);
+    out.writeByte(0);
+    out.writeShort(6);
+    out.write("linear".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void assertTruncated(DataInputStream in) throws Exception {
+    for (int id : new int[] {-1, 5, 6}) {
+      Response r = Response.read(in);
+      assertEquals(id, r.id);
+      assertEquals("truncated frame", r.error);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void bigBatchDoesNotDeadlock() throws Exception {
+    // megabytes of frames and responses, more than the default socket buffers hold
+    List<String> lines = randomLines(1000, 6);
+    Frame f = Frame.text("oaa");
+    for (String line : lines) f.line(line);
+    try (PredictionClient client = new PredictionClient("localhost", server.getBinaryPort())) {
+      for (int i = 0; i < 50; i++) client.send(f);
+      client.flush();
+      for (int i = 0; i < 50; i++) {
+        Response r = client.read();
+        assertEquals(i, r.id);
+        assertEquals(lines.size(), r.predictions.length);
+      }
+      assertArrayEquals(expected(oaa, lines.get(0), false), client.call(f).predictions[0], 0);
+    }
+  }
+
+  @Test
+  public void truncatedFrames() throws Exception {
+    String line = randomLines(1, 4).get(0);
+    try (Socket socket = new Socket("localhost", server.getBinaryPort())) {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      writeTruncatedFrames(out);
+      Frame.text("linear").line(line).writeTo(out, 7);
+      out.flush();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      assertTruncated(in);
+      Response r = Response.read(in);
+      assertEquals(7, r.id);
+      assertArrayEquals(expected(linear, line, false), r.predictions[0], 0);
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    writeTruncatedFrames(out);
+    Frame.text("linear").line(line).writeTo(out, 7);
+    HttpURLConnection c = post("/predict", "application/octet-stream", body.toByteArray());
+    assertEquals(200, c.getResponseCode());
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(readAll(c.getInputStream())));
+    assertTruncated(in);
+    assertEquals(7, Response.read(in).id);
+  }
+
+  @Test
+  public void examplesPerFrame() throws Exception {
+    server.maxExamplesPerFrame = 10;
+    List<String> lines = randomLines(11, 5);
+    try (PredictionClient client = new PredictionClient("localhost", server.getBinaryPort())) {
+      Frame f = Frame.text("oaa");
+      for (String line : lines.subList(0, 10)) f.line(line);
+      assertEquals(10, client.call(f).predictions.length);
+      f.line(lines.get(10));
+      assertEquals("bad number of examples 11", client.call(f).error);
+    }
+
+    // a million hashed examples claimed in a frame with room for three
+    try (Socket socket = new Socket("localhost", server.getBinaryPort())) {
+      server.maxExamplesPerFrame = Integer.MAX_VALUE;
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(4 + 1 + 1 + 2 + 6 + 4 + 3);
+      out.writeInt(9);
+      out.writeByte(Frame.HASHED);
+      out.writeByte(0);
+      out.writeShort(6);
+      out.write("linear".getBytes(StandardCharsets.UTF_8));
+      out.writeInt(1000000);
+      out.write(new byte[] {Frame.END, Frame.END, Frame.END});
+      out.flush();
+      Response r = Response.read(new DataInputStream(socket.getInputStream()));
+      assertEquals(9, r.id);
+      assertEquals("bad number of examples 1000000", r.error);
+    }
+  }
+
+  @Test
+  public void httpFramesAndStats() throws Exception {
+    List<String> lines = randomLines(10, 3);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    Frame f = Frame.text("oaa");
+    for (String line : lines) f.line(line);
+    f.writeTo(out, 7);
+    Frame.text("linear").line(lines.get(1)).writeTo(out, 8);
+
+    HttpURLConnection c = post("/predict", "application/octet-stream", body.toByteArray());
+    assertEquals(200, c.getResponseCode());
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(readAll(c.getInputStream())));
+    Response r = Response.read(in);
+    assertEquals(7, r.id);
+    for (int j = 0; j < lines.size(); j++) {
+      assertArrayEquals(expected(oaa, lines.get(j), false), r.predictions[j], 0);
+    }
+    r = Response.read(in);
+    assertEquals(8, r.id);
+    assertArrayEquals(expected(linear, lines.get(1), false), r.predictions[0], 0);
+
+    URL url = new URL("http://localhost:" + server.getHttpPort() + "/stats");
+    String stats = new String(readAll(url.openStream()), StandardCharsets.UTF_8);
+    assertTrue(stats, stats.contains("oaa requests=1 examples=10 errors=0 p50_us="));
+    assertTrue(stats, stats.contains("p99_us="));
+    url = new URL("http://localhost:" + server.getHttpPort() + "/models");
+    assertEquals("linear\noaa\n", new String(readAll(url.openStream()), StandardCharsets.UTF_8));
+  }
+}
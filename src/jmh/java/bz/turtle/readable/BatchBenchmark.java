@@ -0,0 +1,85 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.Namespace;
+import bz.turtle.readable.input.PredictionRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * scoring many candidates for one user context, predictBatch and a prepared context vs predict per
+ * candidate
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchBenchmark {
+  @Param({"quadratic", "cubic"})
+  public String kind;
+
+  @Param({"500"})
+  public int candidates;
+
+  private ReadableModel model;
+  private PredictionRequest shared;
+  private List<PredictionRequest> items;
+  private List<PredictionRequest> combined;
+  private float[][] out;
+  private PreparedContext context;
+
+  @Setup
+  public void setup() throws Exception {
+    model = BenchmarkModels.model(kind, 22);
+    PredictionRequest user = BenchmarkModels.request(20, 1);
+    // a, c and d are the user and context, b is the item
+    shared = new PredictionRequest();
+    shared.namespaces.add(user.namespaces.get(0));
+    shared.namespaces.add(user.namespaces.get(2));
+    shared.namespaces.add(user.namespaces.get(3));
+
+    items = new ArrayList<>();
+    combined = new ArrayList<>();
+    out = new float[candidates][];
+    for (int i = 0; i < candidates; i++) {
+      Namespace item = BenchmarkModels.request(10, i).namespaces.get(1);
+      PredictionRequest r = new PredictionRequest();
+      r.namespaces.add(item);
+      items.add(r);
+
+      PredictionRequest all = new PredictionRequest();
+      all.namespaces.addAll(shared.namespaces);
+      all.namespaces.add(item);
+      combined.add(all);
+      out[i] = model.getReusableFloatArray();
+    }
+    context = model.prepare(shared);
+  }
+
+  @Benchmark
+  public float[][] predictBatch() {
+    model.predictBatch(shared, items, out);
+    return out;
+  }
+
+  /** the context is prepared once, e.g. cached per user session */
+  @Benchmark
+  public float[][] predictPrepared() {
+    for (int i = 0; i < candidates; i++) {
+      model.predict(context, items.get(i), out[i]);
+    }
+    return out;
+  }
+
+  @Benchmark
+  public float[][] predictEach() {
+    for (int i = 0; i < candidates; i++) {
+      model.predict(out[i], combined.get(i), null);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,111 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.Feature;
+import bz.turtle.readable.input.FeatureInterface;
+import bz.turtle.readable.input.Namespace;
+import bz.turtle.readable.input.PredictionRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic readable models and requests for the benchmarks, so we can benchmark any -b
+ * without shipping huge readable_model.txt files
+ */
+public class BenchmarkModels {
+  /** how many non zero buckets the synthetic models have at most */
+  public static final int MAX_NON_ZERO = 1 << 16;
+
+  /** namespaces used by the generated requests, all interactions are defined over those */
+  public static final String NAMESPACES = "abcd";
+
+  public static String optionsFor(String kind) {
+    switch (kind) {
+      case "linear":
+        return "--hash_seed 0 --link identity";
+      case "quadratic":
+        return "--hash_seed 0 --quadratic ab --quadratic cd --link identity";
+      case "quadratic_any":
+        return "--hash_seed 0 --quadratic :: --link identity";
+      case "cubic":
+        return "--hash_seed 0 --cubic abc --quadratic ad --link identity";
+      case "oaa":
+        return "--hash_seed 0 --oaa 10 --quadratic ab --link identity";
+      case "oaa50":
+        return "--hash_seed 0 --oaa 50 --quadratic ab --link identity";
+      default:
+        throw new IllegalArgumentException("unknown model kind " + kind);
+    }
+  }
+
+  public static String readableModel(String options, int bits, long seed) {
+    Random r = new Random(seed);
+    StringBuilder sb = new StringBuilder();
+    sb.append("Version 8.6.1\n");
+    sb.append("Id \n");
+    sb.append("Min label:-100\n");
+    sb.append("Max label:100\n");
+    sb.append("bits:").append(bits).append("\n");
+    sb.append("lda:0\n");
+    sb.append("0 ngram:\n");
+    sb.append("0 skip:\n");
+    sb.append("options: ").append(options).append("\n");
+    sb.append("Checksum: 0\n");
+    sb.append(":0\n");
+    int n = Math.min(1 << bits, MAX_NON_ZERO);
+    for (int i = 0; i < n; i++) {
+      sb.append(r.nextInt(1 << bits)).append(":").append(r.nextFloat() - 0.5f).append("\n");
+    }
+    return sb.toString();
+  }
+
+  public static ReadableModel model(String kind, int bits) throws IOException {
+    return model(kind, bits, new LoadOptions());
+  }
+
+  public static ReadableModel model(String kind, int bits, LoadOptions options)
+      throws IOException {
+    String text = readableModel(optionsFor(kind), bits, 42);
+    return new ReadableModel(
+        new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), true, options);
+  }
+
+  /**
+   * @param featuresPerNamespace features in each of the namespaces a,b,c,d
+   * @param seed random seed
+   * @return request with mix of string, integer and valued features
+   */
+  public static PredictionRequest request(int featuresPerNamespace, long seed) {
+    Random r = new Random(seed);
+    Namespace[] nss = new Namespace[NAMESPACES.length()];
+    for (int i = 0; i < nss.length; i++) {
+      FeatureInterface[] features = new FeatureInterface[featuresPerNamespace];
+      for (int j = 0; j < featuresPerNamespace; j++) {
+        switch (j % 3) {
+          case 0:
+            features[j] = new Feature("token_" + r.nextInt(100000));
+            break;
+          case 1:
+            features[j] = new Feature(r.nextInt(100000));
+            break;
+          default:
+            features[j] = new Feature("num_" + j, r.nextFloat());
+        }
+      }
+      nss[i] = new Namespace(NAMESPACES.substring(i, i + 1) + "_ns", features);
+    }
+    return new PredictionRequest(nss);
+  }
+
+  /** forget all computed hashes, so the next predict has to hash everything again */
+  public static void resetHashes(PredictionRequest request) {
+    for (Namespace n : request.namespaces) {
+      n.hashIsComputed = false;
+      for (FeatureInterface f : n.features) {
+        f.resetIsHashComputed();
+      }
+    }
+  }
+}
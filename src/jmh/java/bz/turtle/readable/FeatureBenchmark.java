@@ -0,0 +1,56 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.CompactFeature;
+import bz.turtle.readable.input.Feature;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** cost of building request features, new objects vs reusing them with rename() */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FeatureBenchmark {
+  private Feature reusable;
+  private int i;
+
+  @Setup
+  public void setup() {
+    reusable = new Feature("x");
+  }
+
+  @Benchmark
+  public Feature newStringFeature() {
+    return new Feature("some_token", 0.5f);
+  }
+
+  @Benchmark
+  public Feature newIntegerFeature() {
+    return new Feature(123456, 0.5f);
+  }
+
+  @Benchmark
+  public CompactFeature newCompactStringFeature() {
+    return new CompactFeature("some_token", 0.5f);
+  }
+
+  @Benchmark
+  public CompactFeature newCompactIntegerFeature() {
+    return new CompactFeature(123456, 0.5f);
+  }
+
+  @Benchmark
+  public Feature renameString() {
+    reusable.rename("some_token");
+    return reusable;
+  }
+
+  @Benchmark
+  public Feature renameInteger() {
+    reusable.rename(i++ & 0xFFFF);
+    return reusable;
+  }
+}
@@ -0,0 +1,68 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.CompactFeature;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** VWMurmur over typical token lengths */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+  @Param({"3", "12", "64"})
+  public int length;
+
+  private ByteBuffer bytes;
+  private byte[] array;
+  private ByteBuffer direct;
+  private StringBuilder name;
+  private ReadableModel model;
+  private CompactFeature feature;
+
+  @Setup
+  public void setup() throws Exception {
+    name = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      name.append((char) ('a' + (i % 26)));
+    }
+    array = name.toString().getBytes(StandardCharsets.UTF_8);
+    bytes = ByteBuffer.wrap(array);
+    direct = ByteBuffer.allocateDirect(array.length).order(ByteOrder.LITTLE_ENDIAN);
+    direct.put(array);
+    model = BenchmarkModels.model("linear", 18);
+    feature = new CompactFeature(name);
+  }
+
+  @Benchmark
+  public int hashByteBuffer() {
+    return VWMurmur.hash(bytes, 0);
+  }
+
+  @Benchmark
+  public int hashByteArray() {
+    return VWMurmur.hash(array, 0, array.length, 0);
+  }
+
+  @Benchmark
+  public int hashDirect() {
+    return VWMurmur.hash(direct, 0, array.length, 0);
+  }
+
+  /** what predict pays for a string feature it has not hashed yet */
+  @Benchmark
+  public int featureHashOf() {
+    return model.featureHashOf(0, feature);
+  }
+
+  @Benchmark
+  public int hashStringBuilder() {
+    return VWMurmur.hash(name, 0);
+  }
+}
@@ -0,0 +1,50 @@
+package bz.turtle.readable;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * loading a readable model with 2M non zero buckets, on one thread vs LoadOptions.loadThreads
+ *
+ * <pre>
+ * $ mvn -P jmh test-compile exec:exec -Djmh.args="LoadBenchmark -p threads=1,4,8"
+ * </pre>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+  @Param({"1", "4"})
+  public int threads;
+
+  @Param({"2000000"})
+  public int lines;
+
+  private byte[] model;
+
+  @Setup
+  public void setup() {
+    Random r = new Random(42);
+    StringBuilder sb = new StringBuilder();
+    sb.append(BenchmarkModels.readableModel(BenchmarkModels.optionsFor("linear"), 24, 42));
+    for (int i = 0; i < lines; i++) {
+      sb.append(r.nextInt(1 << 24)).append(":").append(r.nextFloat() - 0.5f).append("\n");
+    }
+    model = sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public ReadableModel load() throws Exception {
+    LoadOptions options = new LoadOptions();
+    options.storage = WeightStorage.DENSE;
+    options.loadThreads = threads;
+    return new ReadableModel(new ByteArrayInputStream(model), true, options);
+  }
+}
@@ -0,0 +1,70 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.PredictionRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * overhead of ModelMetrics on predict, run it with -t 8 as well to see contention, recordLatency
+ * is the histogram alone
+ *
+ * <pre>
+ * $ mvn -P jmh test-compile exec:exec -Djmh.args="MetricsBenchmark -prof gc"
+ * $ mvn -P jmh test-compile exec:exec -Djmh.args="MetricsBenchmark -t 8"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+  @Param({"quadratic", "oaa"})
+  public String kind;
+
+  /** 0 counts latency and features only */
+  @Param({"0", "64", "1024"})
+  public int sampleEvery;
+
+  private ReadableModel plain;
+  private ReadableModel metered;
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  @State(Scope.Thread)
+  public static class PerThread {
+    PredictionRequest request = BenchmarkModels.request(10, 7);
+    // more than the classes of any kind
+    float[] out = new float[64];
+    long nanos = 0;
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    plain = BenchmarkModels.model(kind, 22);
+    metered = BenchmarkModels.model(kind, 22);
+    ModelMetrics metrics = new ModelMetrics();
+    metrics.sampleEvery = sampleEvery;
+    metered.setMetrics(metrics);
+  }
+
+  @Benchmark
+  public float[] predict(PerThread t) {
+    plain.predict(t.out, t.request, null);
+    return t.out;
+  }
+
+  @Benchmark
+  public float[] predictWithMetrics(PerThread t) {
+    metered.predict(t.out, t.request, null);
+    return t.out;
+  }
+
+  @Benchmark
+  public void recordLatency(PerThread t) {
+    // similar latencies from all threads, they all hit a few buckets
+    t.nanos = (t.nanos + 7) & 1023;
+    latency.record(20_000 + t.nanos);
+  }
+}
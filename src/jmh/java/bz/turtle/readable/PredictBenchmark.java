@@ -0,0 +1,94 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.PredictionRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReadableModel.predict over the model kinds we serve in production, at small and big -b
+ *
+ * <pre>
+ * $ mvn -P jmh test-compile exec:exec -Djmh.args="PredictBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PredictBenchmark {
+  @Param({"linear", "quadratic", "quadratic_any", "cubic", "oaa", "oaa50"})
+  public String kind;
+
+  @Param({"18", "24"})
+  public int bits;
+
+  @Param({"10"})
+  public int featuresPerNamespace;
+
+  /** e.g. -p storage=DENSE,SPARSE,FP16,INT8 to compare weight storages */
+  @Param({"AUTO"})
+  public String storage;
+
+  private ReadableModel model;
+  private PredictionRequest request;
+  private HashedRequest hashed;
+  private float[] out;
+  private int[] topClasses = new int[5];
+  private float[] topScores = new float[5];
+  private Explanation explanation = new Explanation(true);
+
+  @Setup
+  public void setup() throws Exception {
+    LoadOptions options = new LoadOptions();
+    options.storage = WeightStorage.valueOf(storage);
+    model = BenchmarkModels.model(kind, bits, options);
+    request = BenchmarkModels.request(featuresPerNamespace, 7);
+    out = model.getReusableFloatArray();
+    hashed = model.hashed(BenchmarkModels.request(featuresPerNamespace, 7));
+  }
+
+  /** steady state, hashes are cached on the request after the first call */
+  @Benchmark
+  public float[] predict() {
+    model.predict(out, request, null);
+    return out;
+  }
+
+  /** features hashed up front, no names or FeatureInterface calls */
+  @Benchmark
+  public float[] predictHashed() {
+    model.predict(hashed, out);
+    return out;
+  }
+
+  /** best 5 classes, only those go through the link function */
+  @Benchmark
+  public int predictTop5() {
+    return model.predictTopK(out, request, 5, topClasses, topScores);
+  }
+
+  /** structured explanation, reused after clear() */
+  @Benchmark
+  public int predictExplained() {
+    explanation.clear();
+    model.predict(out, request, explanation);
+    return explanation.size();
+  }
+
+  /** allocates the output array every call, as most callers do */
+  @Benchmark
+  public float[] predictAllocating() {
+    return model.predict(request);
+  }
+
+  /** every call has to compute the namespace and feature hashes again */
+  @Benchmark
+  public float[] predictColdHashes() {
+    BenchmarkModels.resetHashes(request);
+    model.predict(out, request, null);
+    return out;
+  }
+}
@@ -0,0 +1,54 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.PredictionRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DIRECT vs TWO_PHASE predict on models too big for the cpu caches, where every weight read is a
+ * cache miss. The synthetic models are dense so they really take 4 * 2**bits bytes
+ *
+ * <pre>
+ * $ mvn -P jmh test-compile exec:exec -Djmh.args="TwoPhaseBenchmark -p bits=26"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class TwoPhaseBenchmark {
+  @Param({"quadratic", "cubic", "oaa"})
+  public String kind;
+
+  @Param({"24", "26"})
+  public int bits;
+
+  @Param({"20"})
+  public int featuresPerNamespace;
+
+  @Param({"DIRECT", "TWO_PHASE", "TWO_PHASE_SORTED"})
+  public String strategy;
+
+  private ReadableModel model;
+  private PredictionRequest request;
+  private float[] out;
+
+  @Setup
+  public void setup() throws Exception {
+    LoadOptions options = new LoadOptions();
+    options.storage = WeightStorage.DENSE;
+    options.predictStrategy = PredictStrategy.valueOf(strategy);
+    model = BenchmarkModels.model(kind, bits, options);
+    request = BenchmarkModels.request(featuresPerNamespace, 7);
+    out = model.getReusableFloatArray();
+  }
+
+  @Benchmark
+  public float[] predict() {
+    model.predict(out, request, null);
+    return out;
+  }
+}
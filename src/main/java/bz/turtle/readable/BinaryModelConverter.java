@@ -0,0 +1,69 @@
+package bz.turtle.readable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts vw --readable_model file to turtle's binary model, which loads instantly with
+ * ReadableModel.loadBinaryModel()
+ *
+ * <pre>
+ * $ java -cp readable.jar bz.turtle.readable.BinaryModelConverter readable_model.txt readable_model.bin
+ * </pre>
+ *
+ * If the input is a directory with test.txt and predictions.txt the model is checked with
+ * makeSureItWorks() before it is converted, and the converted model is checked again. Pass
+ * --probabilities when predictions.txt was written by vw --probabilities.
+ */
+public class BinaryModelConverter {
+  /**
+   * @param from readable model file (.txt or .txt.gz) or directory
+   * @param to where to write the binary model
+   * @throws IOException if reading or writing fails
+   */
+  public static void convert(File from, File to) throws IOException {
+    convert(from, to, false);
+  }
+
+  /**
+   * @param from readable model file (.txt or .txt.gz) or directory
+   * @param to where to write the binary model
+   * @param probabilities predictions.txt in the directory holds vw --probabilities output
+   * @throws IOException if reading or writing fails
+   */
+  public static void convert(File from, File to, boolean probabilities) throws IOException {
+    ReadableModel m = new ReadableModel(from, true, probabilities);
+    m.saveBinaryModel(to);
+
+    LoadOptions options = new LoadOptions();
+    options.verifyChecksum = true;
+    ReadableModel binary = new ReadableModel(to, true, false, options);
+    if (from.isDirectory()) {
+      File test = ReadableModel.findFileWithExt(from, "test.txt");
+      File predictions = ReadableModel.findFileWithExt(from, "predictions.txt");
+      if (test.exists() && predictions.exists()) {
+        binary.makeSureItWorks(test, predictions, probabilities);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "usage: BinaryModelConverter readable_model.txt[.gz]|directory output.bin"
+              + " [--probabilities]");
+      System.exit(1);
+    }
+    boolean probabilities = false;
+    for (int i = 2; i < args.length; i++) {
+      switch (args[i]) {
+        case "--probabilities":
+          probabilities = true;
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+    convert(new File(args[0]), new File(args[1]), probabilities);
+  }
+}
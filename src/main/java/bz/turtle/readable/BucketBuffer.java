@@ -0,0 +1,40 @@
+package bz.turtle.readable;
+
+import java.util.Arrays;
+
+/** buckets and feature values collected by the first phase of the TWO_PHASE strategies */
+class BucketBuffer {
+  int size = 0;
+  int[] buckets = new int[256];
+  float[] values = new float[256];
+
+  /** scratch space for sortByBucket */
+  private long[] packed = new long[0];
+
+  void clear() {
+    size = 0;
+  }
+
+  void add(int bucket, float value) {
+    if (size == buckets.length) {
+      buckets = Arrays.copyOf(buckets, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    buckets[size] = bucket;
+    values[size] = value;
+    size++;
+  }
+
+  /** buckets are never negative, so (bucket, value bits) sorts by bucket as a long */
+  void sortByBucket() {
+    if (packed.length < size) packed = new long[buckets.length];
+    for (int i = 0; i < size; i++) {
+      packed[i] = ((long) buckets[i] << 32) | (Float.floatToRawIntBits(values[i]) & 0xffffffffL);
+    }
+    Arrays.sort(packed, 0, size);
+    for (int i = 0; i < size; i++) {
+      buckets[i] = (int) (packed[i] >>> 32);
+      values[i] = Float.intBitsToFloat((int) packed[i]);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.ExampleParser;
+import bz.turtle.readable.input.PredictionRequest;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Scores a vw format file on many threads and writes the predictions in the same order as the
+ * input, like vw -t -p or -r but on all cores.
+ *
+ * <pre>
+ * $ java -cp readable.jar bz.turtle.readable.BulkScorer model_dir test.txt.gz predictions.txt [-r] [--probabilities] [--threads 16]
+ * </pre>
+ *
+ * One thread reads the lines in chunks, the chunks are parsed, scored and formatted on a fork join
+ * pool, and the reading thread writes the finished chunks in order, at most 4 * threads chunks are
+ * in flight. Empty lines are skipped.
+ */
+public class BulkScorer {
+  public enum Output {
+    /** vw -p, the prediction after the link function, the predicted class for --oaa */
+    PREDICTIONS,
+    /** vw -r, clipped scores before the link function, class:score for --oaa */
+    RAW
+  }
+
+  private final ReadableModel model;
+
+  public Output output = Output.PREDICTIONS;
+
+  /** vw --probabilities, class:probability for --oaa */
+  public boolean probabilities = false;
+
+  public int threads = Runtime.getRuntime().availableProcessors();
+
+  public int linesPerChunk = 4096;
+
+  private final ThreadLocal<float[]> results;
+  private final ThreadLocal<ExampleParser> parsers = ThreadLocal.withInitial(ExampleParser::new);
+
+  public BulkScorer(ReadableModel model) {
+    this.model = model;
+    this.results = ThreadLocal.withInitial(model::getReusableFloatArray);
+  }
+
+  /**
+   * @param in vw format examples, one per line
+   * @param out where to write one prediction per example
+   * @return number of examples scored
+   * @throws IOException if reading or writing fails
+   * @throws IllegalArgumentException if a line can not be parsed
+   */
+  public long score(InputStream in, OutputStream out) throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    ArrayDeque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>();
+    long examples = 0;
+    try {
+      List<String> lines = new ArrayList<>(linesPerChunk);
+      long firstLine = 1;
+      long lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty()) continue;
+        if (lines.isEmpty()) firstLine = lineNumber;
+        lines.add(line);
+        examples++;
+        if (lines.size() == linesPerChunk) {
+          inFlight.add(pool.submit(new ScoreChunk(lines, firstLine, failure)));
+          lines = new ArrayList<>(linesPerChunk);
+          while (inFlight.size() > threads * 4) {
+            write(inFlight.poll(), out, failure);
+          }
+        }
+      }
+      if (!lines.isEmpty()) {
+        inFlight.add(pool.submit(new ScoreChunk(lines, firstLine, failure)));
+      }
+      while (!inFlight.isEmpty()) {
+        write(inFlight.poll(), out, failure);
+      }
+      out.flush();
+    } finally {
+      pool.shutdownNow();
+    }
+    return examples;
+  }
+
+  private static void write(
+      ForkJoinTask<byte[]> task, OutputStream out, AtomicReference<RuntimeException> failure)
+      throws IOException {
+    byte[] scored = task.join();
+    // join() would throw a copy of the exception without the message
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    out.write(scored);
+  }
+
+  /**
+   * @param in vw format file, .gz is decompressed
+   * @param out where to write the predictions, gzipped if it ends with .gz
+   * @return number of examples scored
+   * @throws IOException if reading or writing fails
+   */
+  public long score(File in, File out) throws IOException {
+    try (InputStream is = ReadableModel.getReaderForExt(in);
+        OutputStream os = openForExt(out)) {
+      return score(is, os);
+    }
+  }
+
+  private static OutputStream openForExt(File f) throws IOException {
+    OutputStream os = new FileOutputStream(f);
+    if (f.toString().endsWith(".gz")) {
+      return new GZIPOutputStream(os, 1 << 16);
+    }
+    return new BufferedOutputStream(os, 1 << 16);
+  }
+
+  private class ScoreChunk implements java.util.concurrent.Callable<byte[]> {
+    private final List<String> lines;
+    private final long firstLine;
+    private final AtomicReference<RuntimeException> failure;
+
+    ScoreChunk(List<String> lines, long firstLine, AtomicReference<RuntimeException> failure) {
+      this.lines = lines;
+      this.firstLine = firstLine;
+      this.failure = failure;
+    }
+
+    @Override
+    public byte[] call() {
+      float[] result = results.get();
+      ExampleParser parser = parsers.get();
+      parser.probabilities = probabilities;
+      StringBuilder sb = new StringBuilder(lines.size() * 16);
+      int i = 0;
+      try {
+        for (; i < lines.size(); i++) {
+          PredictionRequest request = parser.parse(lines.get(i));
+          if (output == Output.RAW) {
+            model.predictRaw(result, request);
+          } else {
+            model.predict(result, request, null);
+          }
+          format(sb, result);
+          sb.append('\n');
+        }
+      } catch (RuntimeException e) {
+        failure.compareAndSet(
+            null, new IllegalArgumentException("line " + (firstLine + i) + ": " + lines.get(i), e));
+        return null;
+      }
+      return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private void format(StringBuilder sb, float[] result) {
+    if (result.length == 1) {
+      appendFixed(sb, result[0]);
+    } else if (output == Output.RAW || probabilities) {
+      for (int klass = 0; klass < result.length; klass++) {
+        if (klass > 0) sb.append(' ');
+        sb.append(klass + 1).append(':');
+        appendFixed(sb, result[klass]);
+      }
+    } else {
+      int best = 0;
+      for (int klass = 1; klass < result.length; klass++) {
+        if (result[klass] > result[best]) best = klass;
+      }
+      sb.append(best + 1);
+    }
+  }
+
+  /** same as String.format("%.6f", v) without the formatter */
+  static void appendFixed(StringBuilder sb, float v) {
+    if (Float.isNaN(v) || Float.isInfinite(v) || Math.abs(v) >= 1e12f) {
+      sb.append(v);
+      return;
+    }
+    long micros = Math.round(Math.abs((double) v) * 1e6);
+    if (v < 0 && micros != 0) sb.append('-');
+    sb.append(micros / 1000000).append('.');
+    String fraction = Long.toString(micros % 1000000);
+    for (int i = fraction.length(); i < 6; i++) sb.append('0');
+    sb.append(fraction);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println(
+          "usage: BulkScorer model input.txt[.gz] output.txt[.gz] [-r] [--probabilities]"
+              + " [--threads n]");
+      System.exit(1);
+    }
+    BulkScorer scorer = new BulkScorer(new ReadableModel(new File(args[0])));
+    for (int i = 3; i < args.length; i++) {
+      switch (args[i]) {
+        case "-r":
+          scorer.output = Output.RAW;
+          break;
+        case "--probabilities":
+          scorer.probabilities = true;
+          break;
+        case "--threads":
+          scorer.threads = Integer.parseInt(args[++i]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+    long start = System.nanoTime();
+    long examples = scorer.score(new File(args[1]), new File(args[2]));
+    System.err.printf(
+        "scored %d examples in %d ms%n", examples, (System.nanoTime() - start) / 1000000);
+  }
+}
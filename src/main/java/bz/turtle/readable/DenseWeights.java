@@ -0,0 +1,54 @@
+package bz.turtle.readable;
+
+/** all weights in one float[], this is what we get when loading a readable model */
+class DenseWeights implements Weights {
+  final float[] weights;
+
+  DenseWeights(int size) {
+    this.weights = new float[size];
+  }
+
+  @Override
+  public float get(int bucket) {
+    return weights[bucket];
+  }
+
+  /** plain loop over the array, the jit unrolls and vectorizes it */
+  @Override
+  public void addTo(float[] result, int bucket, int n, float value) {
+    float[] w = weights;
+    for (int i = 0; i < n; i++) {
+      result[i] += value * w[bucket + i];
+    }
+  }
+
+  @Override
+  public void gather(float[] result, int[] buckets, float[] values, int count, int n) {
+    float[] w = weights;
+    if (n == 1) {
+      // same order of additions as addTo, but the sum stays in a register
+      float sum = result[0];
+      for (int i = 0; i < count; i++) {
+        sum += values[i] * w[buckets[i]];
+      }
+      result[0] = sum;
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      int bucket = buckets[i];
+      float value = values[i];
+      for (int k = 0; k < n; k++) {
+        result[k] += value * w[bucket + k];
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return weights.length;
+  }
+
+  void set(int bucket, float w) {
+    weights[bucket] = w;
+  }
+}
@@ -0,0 +1,332 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.CompactFeature;
+import bz.turtle.readable.input.FeatureInterface;
+import bz.turtle.readable.input.Namespace;
+import bz.turtle.readable.input.PredictionRequest;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Explains 1 in sampleEvery of the live predictions on a background thread and aggregates across
+ * traffic: the missing (zero weight) rate of each namespace, the mean absolute contribution of each
+ * namespace and -q/--cubic interaction and the most looked up buckets. Everything is kept in fixed
+ * size tables, so it can run for the life of the service.
+ *
+ * <p>offer() copies the sampled requests, so they can be recycled right after, and drops samples
+ * when the background thread can't keep up. Requests that are not sampled cost a random number.
+ *
+ * <pre>
+ * ExplainSampler sampler = new ExplainSampler(model, 1000);
+ * model.predict(out, request, null);
+ * sampler.offer(request);
+ * ...
+ * System.out.println(sampler);
+ * sampler.close();
+ * </pre>
+ */
+public class ExplainSampler implements Closeable {
+  /** missing rate of one namespace, counted on its linear lookups */
+  public static class NamespaceStats {
+    public final String name;
+    public final long lookups;
+    public final long missing;
+
+    NamespaceStats(String name, long lookups, long missing) {
+      this.name = name;
+      this.lookups = lookups;
+      this.missing = missing;
+    }
+
+    public double missingRate() {
+      return lookups == 0 ? 0 : (double) missing / lookups;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s lookups=%d missing_rate=%f", name, lookups, missingRate());
+    }
+  }
+
+  /** contributions of a namespace (a), an interaction (a*b, a*b*c) or the Constant */
+  public static class InteractionStats {
+    public final String name;
+    public final long lookups;
+    public final long missing;
+    /** sum of |value * weight| */
+    public final double magnitude;
+
+    InteractionStats(String name, long lookups, long missing, double magnitude) {
+      this.name = name;
+      this.lookups = lookups;
+      this.missing = missing;
+      this.magnitude = magnitude;
+    }
+
+    public double meanMagnitude() {
+      return lookups == 0 ? 0 : magnitude / lookups;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s lookups=%d missing=%d mean_abs_contribution=%f",
+          name, lookups, missing, meanMagnitude());
+    }
+  }
+
+  /** a bucket of the Space-Saving sketch, count is overestimated by at most error */
+  public static class BucketStats {
+    public final int bucket;
+    public final long count;
+    public final long error;
+
+    BucketStats(int bucket, long count, long error) {
+      this.bucket = bucket;
+      this.count = count;
+      this.error = error;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d count=%d error=%d", bucket, count, error);
+    }
+  }
+
+  private static class Aggregate {
+    long lookups;
+    long missing;
+    double magnitude;
+  }
+
+  private static final String OTHER = "other";
+
+  /** offered requests that were sampled and queued */
+  public final LongAdder sampled = new LongAdder();
+  /** sampled requests dropped because the queue was full */
+  public final LongAdder dropped = new LongAdder();
+  /** sampled requests that were explained */
+  public final LongAdder explained = new LongAdder();
+  /** sampled requests the model failed to explain */
+  public final LongAdder failed = new LongAdder();
+
+  private final ReadableModel model;
+  private final int sampleEvery;
+  private final int maxNames;
+  private final BlockingQueue<Runnable> queue;
+  private final Thread thread;
+  private volatile boolean closed = false;
+
+  // only touched by the background thread, and by the getters holding the lock
+  private final Map<String, Aggregate> namespaces = new HashMap<>();
+  private final Map<String, Aggregate> interactions = new HashMap<>();
+  private final HeavyHitters buckets;
+  private final Explanation explanation = new Explanation(true);
+  private final float[] out;
+  private final StringBuilder key = new StringBuilder();
+  private final Namespace[] last = new Namespace[3];
+
+  /**
+   * @param model model to explain with, the same one that served the predictions
+   * @param sampleEvery explain 1 in this many offered requests
+   */
+  public ExplainSampler(ReadableModel model, int sampleEvery) {
+    this(model, sampleEvery, 1024, 256, 1024);
+  }
+
+  /**
+   * @param model model to explain with, the same one that served the predictions
+   * @param sampleEvery explain 1 in this many offered requests
+   * @param queueSize sampled requests waiting for the background thread, more are dropped
+   * @param maxNames namespaces and interactions to keep, later ones are counted as "other"
+   * @param topBuckets size of the hottest buckets sketch
+   */
+  public ExplainSampler(
+      ReadableModel model, int sampleEvery, int queueSize, int maxNames, int topBuckets) {
+    if (sampleEvery < 1) {
+      throw new IllegalArgumentException("sampleEvery must be positive " + sampleEvery);
+    }
+    this.model = model;
+    this.sampleEvery = sampleEvery;
+    this.maxNames = maxNames;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.buckets = new HeavyHitters(topBuckets);
+    this.out = model.getReusableFloatArray();
+    this.thread = new Thread(this::run, "explain-sampler");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * @param request a request that was just predicted, it is copied if sampled
+   * @return true if it was queued to be explained
+   */
+  public boolean offer(PredictionRequest request) {
+    if (closed || ThreadLocalRandom.current().nextInt(sampleEvery) != 0) return false;
+    sampled.increment();
+    PredictionRequest copy = copyOf(request);
+    if (!queue.offer(() -> explain(copy))) {
+      dropped.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /** waits until everything offered so far is explained */
+  public void flush() throws InterruptedException {
+    if (closed) return;
+    CountDownLatch done = new CountDownLatch(1);
+    queue.put(done::countDown);
+    done.await();
+  }
+
+  private static PredictionRequest copyOf(PredictionRequest request) {
+    PredictionRequest copy = new PredictionRequest();
+    for (Namespace ns : request.namespaces) {
+      Namespace n = new Namespace(ns.namespace.toString());
+      for (FeatureInterface f : ns.features) {
+        n.features.add(
+            f.hasIntegerName()
+                ? new CompactFeature(f.getIntegerName(), f.getValue())
+                : new CompactFeature(f.getStringName(), f.getValue()));
+      }
+      copy.namespaces.add(n);
+    }
+    return copy;
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        queue.take().run();
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        failed.increment();
+      }
+    }
+  }
+
+  private synchronized void explain(PredictionRequest request) {
+    try {
+      model.explain(out, request, explanation);
+      aggregateExplanation();
+    } finally {
+      // a failed request must not leave its lookups for the next one
+      explanation.clear();
+    }
+    explained.increment();
+  }
+
+  private void aggregateExplanation() {
+    Aggregate lastInteraction = null;
+    Aggregate lastNamespace = null;
+    int lastKind = -1;
+    for (int i = 0; i < explanation.size(); i++) {
+      int kind = explanation.kind(i);
+      boolean missing = explanation.weight(i) == 0;
+      buckets.add(explanation.bucket(i));
+
+      // lookups come grouped by feature and interaction, so the key is rarely rebuilt
+      boolean same = kind == lastKind;
+      for (int j = 0; j < kind && same; j++) same = explanation.namespace(i, j) == last[j];
+      if (!same) {
+        key.setLength(0);
+        if (kind == Explanation.CONSTANT) key.append("Constant");
+        for (int j = 0; j < kind; j++) {
+          last[j] = explanation.namespace(i, j);
+          if (j > 0) key.append('*');
+          key.append(last[j].namespace);
+        }
+        lastKind = kind;
+        lastInteraction = aggregate(interactions, key);
+        if (kind == Explanation.LINEAR) lastNamespace = aggregate(namespaces, key);
+      }
+      lastInteraction.lookups++;
+      lastInteraction.magnitude += Math.abs(explanation.contribution(i));
+      if (missing) lastInteraction.missing++;
+
+      if (kind == Explanation.LINEAR) {
+        lastNamespace.lookups++;
+        if (missing) lastNamespace.missing++;
+      }
+    }
+  }
+
+  private Aggregate aggregate(Map<String, Aggregate> map, CharSequence name) {
+    String k = name.toString();
+    Aggregate a = map.get(k);
+    if (a == null) {
+      if (map.size() >= maxNames) k = OTHER;
+      a = map.computeIfAbsent(k, x -> new Aggregate());
+    }
+    return a;
+  }
+
+  /** @return missing rate of each namespace, highest first */
+  public synchronized List<NamespaceStats> getNamespaces() {
+    List<NamespaceStats> all = new ArrayList<>();
+    namespaces.forEach((k, a) -> all.add(new NamespaceStats(k, a.lookups, a.missing)));
+    all.sort((a, b) -> Double.compare(b.missingRate(), a.missingRate()));
+    return all;
+  }
+
+  /** @return mean absolute contribution of each namespace and interaction, highest first */
+  public synchronized List<InteractionStats> getInteractions() {
+    List<InteractionStats> all = new ArrayList<>();
+    interactions.forEach(
+        (k, a) -> all.add(new InteractionStats(k, a.lookups, a.missing, a.magnitude)));
+    all.sort((a, b) -> Double.compare(b.meanMagnitude(), a.meanMagnitude()));
+    return all;
+  }
+
+  /** @return the most looked up buckets, most first */
+  public synchronized List<BucketStats> getHottestBuckets() {
+    List<BucketStats> all = new ArrayList<>();
+    for (int i = 0; i < buckets.size(); i++) {
+      all.add(new BucketStats(buckets.key(i), buckets.count(i), buckets.error(i)));
+    }
+    all.sort((a, b) -> Long.compare(b.count, a.count));
+    return all;
+  }
+
+  /** stops the background thread, queued samples are not explained */
+  @Override
+  public void close() {
+    closed = true;
+    thread.interrupt();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(
+        String.format(
+            "sampled=%d dropped=%d explained=%d failed=%d\nnamespaces:\n",
+            sampled.sum(), dropped.sum(), explained.sum(), failed.sum()));
+    for (NamespaceStats s : getNamespaces()) sb.append("  ").append(s).append('\n');
+    sb.append("interactions:\n");
+    for (InteractionStats s : getInteractions()) sb.append("  ").append(s).append('\n');
+    sb.append("hottest buckets:\n");
+    List<BucketStats> hot = getHottestBuckets();
+    for (int i = 0; i < Math.min(10, hot.size()); i++) {
+      sb.append("  ").append(hot.get(i)).append('\n');
+    }
+    return sb.toString();
+  }
+}
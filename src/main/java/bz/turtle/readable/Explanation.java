@@ -1,9 +1,37 @@
 package bz.turtle.readable;
 
+import bz.turtle.readable.input.FeatureInterface;
+import bz.turtle.readable.input.Namespace;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Debug data of a prediction, pass it to predict().
+ *
+ * <p>new Explanation() formats a string per bucket lookup, which is very slow. new
+ * Explanation(true) only keeps references to the namespaces and features, the bucket, class,
+ * weight and value of each lookup in arrays, which are reused after clear(), and renders the
+ * strings only in toString() and describe(). The namespaces and features must not be changed or
+ * recycled until then.
+ *
+ * <pre>
+ * Explanation e = new Explanation(true);
+ * model.predict(out, request, e);
+ * int[] top = new int[10];
+ * for (int i = 0, n = e.top(10, top); i < n; i++) {
+ *   System.out.println(e.describe(top[i]) + " " + e.contribution(top[i]));
+ * }
+ * e.clear();
+ * </pre>
+ */
 public class Explanation {
+  public static final int CONSTANT = 0;
+  public static final int LINEAR = 1;
+  public static final int QUADRATIC = 2;
+  public static final int CUBIC = 3;
+
   /** count of missing features */
   public Counter missingFeatures = new Counter();
   /** amount of features looked up */
@@ -13,10 +41,223 @@ public class Explanation {
 
   public List<String> explanations = new ArrayList<>();
 
+  /** lookups are recorded in arrays instead of strings */
+  public final boolean structured;
+
+  private int size = 0;
+  private byte[] kinds = new byte[64];
+  private int[] buckets = new int[64];
+  private int[] classes = new int[64];
+  private float[] weights = new float[64];
+  private float[] values = new float[64];
+  /** 3 per lookup, null if the lookup has less */
+  private Namespace[] namespaces = new Namespace[3 * 64];
+
+  private FeatureInterface[] features = new FeatureInterface[3 * 64];
+
+  public Explanation() {
+    this(false);
+  }
+
+  /** @param structured keep the lookups in arrays and render them only when needed */
+  public Explanation(boolean structured) {
+    this.structured = structured;
+  }
+
   public void add(String e) {
     explanations.add(e);
   }
 
+  void addConstant(int bucket, int klass, float weight) {
+    next(CONSTANT, bucket, klass, weight, 1);
+  }
+
+  void addLinear(Namespace ns, FeatureInterface f, int bucket, int klass, float weight) {
+    int i = next(LINEAR, bucket, klass, weight, f.getValue());
+    namespaces[i * 3] = ns;
+    features[i * 3] = f;
+  }
+
+  void addQuadratic(
+      Namespace ans,
+      FeatureInterface a,
+      Namespace bns,
+      FeatureInterface b,
+      int bucket,
+      int klass,
+      float weight) {
+    int i = next(QUADRATIC, bucket, klass, weight, a.getValue() * b.getValue());
+    namespaces[i * 3] = ans;
+    features[i * 3] = a;
+    namespaces[i * 3 + 1] = bns;
+    features[i * 3 + 1] = b;
+  }
+
+  void addCubic(
+      Namespace ans,
+      FeatureInterface a,
+      Namespace bns,
+      FeatureInterface b,
+      Namespace cns,
+      FeatureInterface c,
+      int bucket,
+      int klass,
+      float weight) {
+    int i = next(CUBIC, bucket, klass, weight, a.getValue() * b.getValue() * c.getValue());
+    namespaces[i * 3] = ans;
+    features[i * 3] = a;
+    namespaces[i * 3 + 1] = bns;
+    features[i * 3 + 1] = b;
+    namespaces[i * 3 + 2] = cns;
+    features[i * 3 + 2] = c;
+  }
+
+  private int next(int kind, int bucket, int klass, float weight, float value) {
+    if (size == kinds.length) {
+      int capacity = size * 2;
+      kinds = Arrays.copyOf(kinds, capacity);
+      buckets = Arrays.copyOf(buckets, capacity);
+      classes = Arrays.copyOf(classes, capacity);
+      weights = Arrays.copyOf(weights, capacity);
+      values = Arrays.copyOf(values, capacity);
+      namespaces = Arrays.copyOf(namespaces, capacity * 3);
+      features = Arrays.copyOf(features, capacity * 3);
+    }
+    int i = size++;
+    kinds[i] = (byte) kind;
+    buckets[i] = bucket;
+    classes[i] = klass;
+    weights[i] = weight;
+    values[i] = value;
+    return i;
+  }
+
+  /** @return number of recorded lookups, 0 if not structured */
+  public int size() {
+    return size;
+  }
+
+  /** @return CONSTANT, LINEAR, QUADRATIC or CUBIC */
+  public int kind(int i) {
+    return kinds[i];
+  }
+
+  public int bucket(int i) {
+    return buckets[i];
+  }
+
+  /** @return the class, 0 based like the index in predict's result */
+  public int klass(int i) {
+    return classes[i];
+  }
+
+  public float weight(int i) {
+    return weights[i];
+  }
+
+  /** @return product of the feature values */
+  public float value(int i) {
+    return values[i];
+  }
+
+  /** @return value * weight, what the lookup added to the raw prediction */
+  public float contribution(int i) {
+    return values[i] * weights[i];
+  }
+
+  /**
+   * @param j 0 for the first feature of the lookup, 1 and 2 for the other features of -q and
+   *     --cubic
+   * @return the namespace, null for the constant
+   */
+  public Namespace namespace(int i, int j) {
+    return namespaces[i * 3 + j];
+  }
+
+  public FeatureInterface feature(int i, int j) {
+    return features[i * 3 + j];
+  }
+
+  /**
+   * the lookups with the largest absolute contribution, biggest first
+   *
+   * @param n how many
+   * @param out indexes of the lookups, must have space for n
+   * @return number of indexes written, min(n, size())
+   */
+  public int top(int n, int[] out) {
+    // min heap of the best so far, the root is the smallest
+    int k = 0;
+    for (int i = 0; i < size; i++) {
+      if (k < n) {
+        out[k] = i;
+        for (int c = k++; c > 0; ) {
+          int parent = (c - 1) >>> 1;
+          if (magnitude(out[c]) >= magnitude(out[parent])) break;
+          swap(out, c, parent);
+          c = parent;
+        }
+      } else if (n > 0 && magnitude(i) > magnitude(out[0])) {
+        out[0] = i;
+        siftDown(out, 0, k);
+      }
+    }
+    for (int end = k - 1; end > 0; end--) {
+      swap(out, 0, end);
+      siftDown(out, 0, end);
+    }
+    return k;
+  }
+
+  private float magnitude(int i) {
+    return Math.abs(contribution(i));
+  }
+
+  private void siftDown(int[] heap, int i, int n) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= n) break;
+      if (child + 1 < n && magnitude(heap[child + 1]) < magnitude(heap[child])) child++;
+      if (magnitude(heap[child]) >= magnitude(heap[i])) break;
+      swap(heap, i, child);
+      i = child;
+    }
+  }
+
+  private static void swap(int[] a, int i, int j) {
+    int t = a[i];
+    a[i] = a[j];
+    a[j] = t;
+  }
+
+  /** @return the lookup in the same format as the non structured explanations */
+  public String describe(int i) {
+    StringBuilder sb = new StringBuilder();
+    if (kinds[i] == CONSTANT) {
+      sb.append("Constant");
+    } else {
+      for (int j = 0; j < kinds[i]; j++) {
+        if (j > 0) sb.append('*');
+        sb.append(namespaces[i * 3 + j].namespace)
+            .append('^')
+            .append(features[i * 3 + j].getStringName());
+      }
+    }
+    sb.append(String.format(":%d:%d:%f", buckets[i], classes[i] + 1, weights[i]));
+    return sb.toString();
+  }
+
+  /** forget everything, so the explanation can be passed to the next predict */
+  public void clear() {
+    Arrays.fill(namespaces, 0, size * 3, null);
+    Arrays.fill(features, 0, size * 3, null);
+    size = 0;
+    explanations.clear();
+    missingFeatures.clear();
+    featuresLookedUp.clear();
+    predictions.clear();
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -24,8 +265,13 @@ public class Explanation {
     sb.append(String.format("Features Looked Up: %f\n", featuresLookedUp.get()));
     sb.append(String.format("Missing Features: %f\n", missingFeatures.get()));
     sb.append(String.format("Predictions Sum: %f\n\n", predictions.get()));
-    explanations.sort(String::compareTo);
-    for (String e : explanations) {
+    List<String> all = explanations;
+    if (size > 0) {
+      all = new ArrayList<>(explanations);
+      for (int i = 0; i < size; i++) all.add(describe(i));
+    }
+    all.sort(String::compareTo);
+    for (String e : all) {
       sb.append(e);
       sb.append("\n");
     }
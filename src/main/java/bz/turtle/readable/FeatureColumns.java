@@ -0,0 +1,102 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.FeatureInterface;
+import bz.turtle.readable.input.Namespace;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Namespaces with already computed feature hashes laid out in parallel arrays, the features of
+ * namespace i are from start[i] to start[i + 1].
+ *
+ * <p>leftHash is hash * FNV_prime, which is what we need when the feature is on the left side of an
+ * interaction, so it is computed only once per feature
+ */
+class FeatureColumns {
+  int size = 0;
+  Namespace[] namespaces = new Namespace[8];
+  char[] first = new char[8];
+  int[] start = new int[9];
+
+  int[] hash = new int[32];
+  int[] leftHash = new int[32];
+  float[] value = new float[32];
+
+  /** scratch space used to order namespaces from two columns together */
+  int[] order = new int[16];
+
+  /** scratch space for the last namespace of each cubic slot */
+  int[] slots = new int[8];
+
+  void clear() {
+    size = 0;
+    start[0] = 0;
+  }
+
+  /**
+   * append a namespace, the namespace and feature hashes must be already computed
+   *
+   * @param n namespace with computed hashes
+   */
+  void add(Namespace n) {
+    startNamespace(n, n.namespace.length() == 0 ? 0 : n.namespace.charAt(0));
+    List<FeatureInterface> features = n.features;
+    ensureFeatureCapacity(start[size] + features.size());
+    for (int i = 0; i < features.size(); i++) {
+      FeatureInterface f = features.get(i);
+      addFeature(f.getComputedHash(), f.getValue());
+    }
+  }
+
+  /**
+   * the features added after this go to the new namespace
+   *
+   * @param n the namespace, null for pre hashed requests
+   * @param firstChar first char of the namespace name, used to find the interactions
+   */
+  void startNamespace(Namespace n, char firstChar) {
+    if (size == namespaces.length) {
+      namespaces = Arrays.copyOf(namespaces, size * 2);
+      first = Arrays.copyOf(first, size * 2);
+      start = Arrays.copyOf(start, size * 2 + 1);
+    }
+    namespaces[size] = n;
+    first[size] = firstChar;
+    start[size + 1] = start[size];
+    size++;
+  }
+
+  /** append a feature to the last namespace */
+  void addFeature(int featureHash, float featureValue) {
+    int i = start[size];
+    ensureFeatureCapacity(i + 1);
+    hash[i] = featureHash;
+    leftHash[i] = featureHash * ReadableModel.FNV_prime;
+    value[i] = featureValue;
+    start[size] = i + 1;
+  }
+
+  private void ensureFeatureCapacity(int n) {
+    if (n > hash.length) {
+      int capacity = Math.max(n, hash.length * 2);
+      hash = Arrays.copyOf(hash, capacity);
+      leftHash = Arrays.copyOf(leftHash, capacity);
+      value = Arrays.copyOf(value, capacity);
+    }
+  }
+
+  int[] slots(int n) {
+    if (slots.length < n) {
+      slots = new int[Math.max(n, slots.length * 2)];
+    }
+    return slots;
+  }
+
+  int[] order(int n) {
+    if (order.length < n) {
+      order = new int[Math.max(n, order.length * 2)];
+    }
+    return order;
+  }
+}
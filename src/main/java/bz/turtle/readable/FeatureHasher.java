@@ -0,0 +1,86 @@
+package bz.turtle.readable;
+
+/**
+ * Computes the same namespace and feature hashes as ReadableModel.namespaceHashOf() and
+ * featureHashOf(), for a model's --hash_seed and --hash mode, so they can be computed once and
+ * used in many HashedRequests. Get it with ReadableModel.getFeatureHasher(), it is thread safe.
+ */
+public class FeatureHasher {
+  private static final ThreadLocal<StringBuilder> DIGITS =
+      ThreadLocal.withInitial(StringBuilder::new);
+
+  private final int seed;
+  private final boolean hashAll;
+
+  /**
+   * @param seed --hash_seed
+   * @param hashAll --hash all
+   */
+  public FeatureHasher(int seed, boolean hashAll) {
+    this.seed = seed;
+    this.hashAll = hashAll;
+  }
+
+  /** @return hash of the namespace, 0 for the empty (default) namespace */
+  public int namespaceHash(CharSequence namespace) {
+    if (namespace.length() == 0) return 0;
+    if (hashAll) return VWMurmur.hash(namespace, seed);
+
+    int result = 0;
+    for (int i = 0; i < namespace.length(); i++) {
+      char c = namespace.charAt(i);
+      if (c >= '0' && c <= '9') {
+        result = 10 * result + c - '0';
+      } else {
+        return VWMurmur.hash(namespace, seed);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param namespaceHash from namespaceHash()
+   * @param name feature name, names that are positive integers are not hashed unless --hash all,
+   *     same as Feature
+   * @return hash of the feature
+   */
+  public int featureHash(int namespaceHash, CharSequence name) {
+    if (!hashAll) {
+      long n = 0;
+      boolean integer = name.length() > 0;
+      for (int i = 0; i < name.length() && integer; i++) {
+        int digit = Character.digit(name.charAt(i), 10);
+        n = n * 10 + digit;
+        integer = digit >= 0 && n <= Integer.MAX_VALUE;
+      }
+      if (integer) return (int) n + namespaceHash;
+    }
+    return VWMurmur.hash(name, namespaceHash);
+  }
+
+  /**
+   * @param namespaceHash from namespaceHash()
+   * @param name integer feature name
+   * @return hash of the feature
+   */
+  public int featureHash(int namespaceHash, int name) {
+    if (!hashAll && name >= 0) return name + namespaceHash;
+    StringBuilder digits = DIGITS.get();
+    digits.setLength(0);
+    digits.append(name);
+    return VWMurmur.hash(digits, namespaceHash);
+  }
+
+  /** models with equal hashers compute the same hashes for the same requests */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof FeatureHasher)) return false;
+    FeatureHasher other = (FeatureHasher) o;
+    return seed == other.seed && hashAll == other.hashAll;
+  }
+
+  @Override
+  public int hashCode() {
+    return seed * 31 + (hashAll ? 1 : 0);
+  }
+}
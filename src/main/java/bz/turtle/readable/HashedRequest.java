@@ -0,0 +1,63 @@
+package bz.turtle.readable;
+
+/**
+ * Request with already hashed features, for pipelines that know their features up front and hash
+ * them once with FeatureHasher. Predicting it does not touch names, Namespace or FeatureInterface
+ * objects, the hashes and values are kept in parallel int[] and float[] arrays.
+ *
+ * <pre>
+ * FeatureHasher hasher = model.getFeatureHasher();
+ * int user = hasher.namespaceHash("user");
+ * HashedRequest r = new HashedRequest();
+ * r.namespace('u')
+ *     .feature(hasher.featureHash(user, "country_nl"), 1)
+ *     .feature(hasher.featureHash(user, 42), 0.5f);
+ * model.predict(r, out);
+ * </pre>
+ *
+ * The namespaces are used in the order they are added, predict(PredictionRequest) sorts them by
+ * name if the model has -q interactions, so add them sorted by name in that case, or use
+ * model.hashed(request) which does it for you. The request can be reused after clear().
+ */
+public class HashedRequest {
+  final FeatureColumns columns = new FeatureColumns();
+
+  /** request output to be with normalized probabilities */
+  public boolean probabilities = false;
+
+  public HashedRequest clear() {
+    columns.clear();
+    return this;
+  }
+
+  /**
+   * start a new namespace, the following features are added to it
+   *
+   * @param first first char of the namespace name, interactions are defined on it
+   */
+  public HashedRequest namespace(char first) {
+    columns.startNamespace(null, first);
+    return this;
+  }
+
+  /**
+   * @param hash from FeatureHasher.featureHash() with the hash of the current namespace
+   * @param value feature value
+   * @throws IllegalStateException if there is no namespace yet
+   */
+  public HashedRequest feature(int hash, float value) {
+    if (columns.size == 0) {
+      throw new IllegalStateException("start a namespace before adding features");
+    }
+    columns.addFeature(hash, value);
+    return this;
+  }
+
+  public int namespaceCount() {
+    return columns.size;
+  }
+
+  public int featureCount() {
+    return columns.start[columns.size];
+  }
+}
@@ -0,0 +1,110 @@
+package bz.turtle.readable;
+
+import java.util.Arrays;
+
+/**
+ * Space-Saving sketch of the most frequent ints in fixed memory. Each of the capacity slots has a
+ * key and a count, a new key takes over the slot with the smallest count and inherits it as its
+ * error, so counts are overestimated by at most error and any key seen more than total/capacity
+ * times is in the sketch.
+ *
+ * <p>Not thread safe.
+ */
+final class HeavyHitters {
+  private static final int EMPTY = -1;
+
+  private final int[] keys;
+  private final long[] counts;
+  private final long[] errors;
+  private int size = 0;
+
+  /** open addressing from key to slot, twice as big as the slots so probes stay short */
+  private final int[] index;
+
+  private final int indexMask;
+
+  HeavyHitters(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity must be positive " + capacity);
+    keys = new int[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    int n = Integer.highestOneBit(capacity * 2 - 1) << 1;
+    index = new int[n];
+    indexMask = n - 1;
+    Arrays.fill(index, EMPTY);
+  }
+
+  void add(int key) {
+    int slot = find(key);
+    if (slot >= 0) {
+      counts[slot]++;
+      return;
+    }
+    if (size < keys.length) {
+      slot = size++;
+      keys[slot] = key;
+      counts[slot] = 1;
+      errors[slot] = 0;
+    } else {
+      slot = 0;
+      for (int i = 1; i < size; i++) {
+        if (counts[i] < counts[slot]) slot = i;
+      }
+      remove(keys[slot]);
+      keys[slot] = key;
+      errors[slot] = counts[slot];
+      counts[slot]++;
+    }
+    insert(key, slot);
+  }
+
+  int size() {
+    return size;
+  }
+
+  int key(int slot) {
+    return keys[slot];
+  }
+
+  long count(int slot) {
+    return counts[slot];
+  }
+
+  long error(int slot) {
+    return errors[slot];
+  }
+
+  private static int mix(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private int find(int key) {
+    for (int i = mix(key) & indexMask; index[i] != EMPTY; i = (i + 1) & indexMask) {
+      if (keys[index[i]] == key) return index[i];
+    }
+    return -1;
+  }
+
+  private void insert(int key, int slot) {
+    int i = mix(key) & indexMask;
+    while (index[i] != EMPTY) i = (i + 1) & indexMask;
+    index[i] = slot;
+  }
+
+  /** backward shift deletion, so there are no tombstones */
+  private void remove(int key) {
+    int i = mix(key) & indexMask;
+    while (keys[index[i]] != key) i = (i + 1) & indexMask;
+    int hole = i;
+    for (int j = (hole + 1) & indexMask; index[j] != EMPTY; j = (j + 1) & indexMask) {
+      int home = mix(keys[index[j]]) & indexMask;
+      // move j into the hole if its home is not between the hole and j
+      if (((j - home) & indexMask) >= ((j - hole) & indexMask)) {
+        index[hole] = index[j];
+        hole = j;
+      }
+    }
+    index[hole] = EMPTY;
+  }
+}
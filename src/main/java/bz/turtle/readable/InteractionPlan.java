@@ -0,0 +1,114 @@
+package bz.turtle.readable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * -q and --cubic compiled at load time, so predict does not walk maps and sets or box chars.
+ * Namespaces interact by their first char, for chars below 256 everything is an array lookup.
+ *
+ * <p>The cubic triples are numbered slots, one per distinct char, predict finds the last namespace
+ * starting with each slot's char in one pass over the request and then reads the triples from
+ * there.
+ */
+final class InteractionPlan {
+  private static final int TABLE = 256;
+
+  /** for each first char, the first chars it interacts with, null if none */
+  private final char[][] quadraticWith = new char[TABLE][];
+
+  private final Map<Character, char[]> wideQuadraticWith = new HashMap<>();
+  private final boolean hasQuadratic;
+
+  /** cubic triple t is slots triples[3t], triples[3t + 1], triples[3t + 2] */
+  final int[] triples;
+
+  /** the first char of each slot */
+  final char[] slotChars;
+
+  /** slot of each char, -1 if no triple uses it */
+  private final int[] slotOf = new int[TABLE];
+
+  InteractionPlan(
+      Map<Character, Set<Character>> quadratic,
+      Map<Character, Map<Character, Set<Character>>> cubic) {
+    // We want to avoid double interactions of namespaces in the form of
+    // sl, ls. So what we do is:
+    // 1: predict sorts the namespaces in the input
+    // 2: if the interaction is there with the other namespace first, we drop it here
+    // 3: predict checks from the beginning of the namespaces list if the interacting namespace
+    // sorts before the current one, and from the current position otherwise
+    quadratic.forEach(
+        (a, interactions) -> {
+          StringBuilder with = new StringBuilder();
+          for (Character inter : interactions) {
+            if (a > inter && quadratic.getOrDefault(inter, Collections.emptySet()).contains(a)) {
+              continue;
+            }
+            with.append(inter.charValue());
+          }
+          if (a < TABLE) {
+            quadraticWith[a] = with.toString().toCharArray();
+          } else {
+            wideQuadraticWith.put(a, with.toString().toCharArray());
+          }
+        });
+    hasQuadratic = !quadratic.isEmpty();
+
+    StringBuilder chars = new StringBuilder();
+    StringBuilder flat = new StringBuilder();
+    cubic.forEach(
+        (a, bMap) ->
+            bMap.forEach(
+                (b, cSet) ->
+                    cSet.forEach(
+                        c ->
+                            flat.append(a.charValue())
+                                .append(b.charValue())
+                                .append(c.charValue()))));
+    triples = new int[flat.length()];
+    for (int i = 0; i < flat.length(); i++) {
+      char c = flat.charAt(i);
+      int slot = chars.indexOf(String.valueOf(c));
+      if (slot < 0) {
+        slot = chars.length();
+        chars.append(c);
+      }
+      triples[i] = slot;
+    }
+    slotChars = chars.toString().toCharArray();
+    Arrays.fill(slotOf, -1);
+    for (int slot = 0; slot < slotChars.length; slot++) {
+      if (slotChars[slot] < TABLE) slotOf[slotChars[slot]] = slot;
+    }
+  }
+
+  boolean hasQuadratic() {
+    return hasQuadratic;
+  }
+
+  /** @return the first chars namespaces starting with a interact with, null if none */
+  char[] quadraticWith(char a) {
+    return a < TABLE ? quadraticWith[a] : wideQuadraticWith.get(a);
+  }
+
+  int tripleCount() {
+    return triples.length / 3;
+  }
+
+  int slotCount() {
+    return slotChars.length;
+  }
+
+  /** @return the slot of namespaces starting with c, -1 if no triple uses it */
+  int slotOf(char c) {
+    if (c < TABLE) return slotOf[c];
+    for (int slot = 0; slot < slotChars.length; slot++) {
+      if (slotChars[slot] == c) return slot;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,92 @@
+package bz.turtle.readable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds, each power of two is split in 8 buckets, so the
+ * percentiles are within 12.5% of the real value, which is plenty for p50/p99 of a service.
+ *
+ * <p>Latencies of one service land in a few buckets, so a single array would have all threads
+ * incrementing the same counters. Like LongAdder the counts are striped: each thread increments
+ * the stripe picked by its id, and count() and percentile() sum the stripes.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKETS = 8;
+  private static final int SUB_BITS = 3;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+  private static final int MAX_STRIPES = 64;
+
+  /** separate arrays, so two stripes only share a cache line at their ends */
+  private final AtomicLongArray[] stripes;
+
+  private final int stripeMask;
+
+  /** one stripe per cpu */
+  public LatencyHistogram() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /** @param stripes rounded up to a power of two, at most 64 */
+  LatencyHistogram(int stripes) {
+    int n = Integer.highestOneBit(Math.max(1, Math.min(stripes, MAX_STRIPES)) * 2 - 1);
+    this.stripes = new AtomicLongArray[n];
+    for (int i = 0; i < n; i++) this.stripes[i] = new AtomicLongArray(BUCKETS);
+    this.stripeMask = n - 1;
+  }
+
+  public void record(long nanos) {
+    long id = Thread.currentThread().getId();
+    stripes[(int) (id ^ (id >>> 16)) & stripeMask].incrementAndGet(bucketOf(Math.max(0, nanos)));
+  }
+
+  static int bucketOf(long v) {
+    if (v < SUB_BUCKETS) return (int) v;
+    int exponent = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** @return the highest value that goes in the bucket */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+
+  /** @return the counts of all stripes summed, a snapshot if records happen meanwhile */
+  private long[] counts() {
+    long[] counts = new long[BUCKETS];
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) counts[i] += stripe.get(i);
+    }
+    return counts;
+  }
+
+  public long count() {
+    long n = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) n += stripe.get(i);
+    }
+    return n;
+  }
+
+  /**
+   * @param p between 0 and 1, e.g. 0.99
+   * @return latency in nanoseconds, 0 if nothing was recorded
+   */
+  public long percentile(double p) {
+    long[] counts = counts();
+    long total = 0;
+    for (long c : counts) total += c;
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(p * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) return upperBoundOf(i);
+    }
+    return upperBoundOf(BUCKETS - 1);
+  }
+}
@@ -0,0 +1,40 @@
+package bz.turtle.readable;
+
+/**
+ * Options for loading readable models
+ *
+ * <pre>
+ * LoadOptions options = new LoadOptions();
+ * options.storage = WeightStorage.SPARSE;
+ * ReadableModel m = new ReadableModel(new File("readable_model.txt"), true, false, options);
+ * </pre>
+ */
+public class LoadOptions {
+  /** how to keep the weights in memory */
+  public WeightStorage storage = WeightStorage.AUTO;
+
+  /** with AUTO storage, models with less bits are always dense */
+  public int sparseMinBits = 22;
+
+  /**
+   * with AUTO storage, use sparse storage if less than this fraction of the buckets are non zero.
+   * sparse storage takes 16 bytes per non zero bucket vs 4 bytes per bucket, so 1/16 means sparse
+   * is used only if it is at least 4 times smaller
+   */
+  public float maxSparseDensity = 1f / 16;
+
+  /**
+   * parse readable models on this many threads, e.g. Runtime.getRuntime().availableProcessors().
+   * gzipped models are still decompressed on one thread
+   */
+  public int loadThreads = 1;
+
+  /** check the crc32 of binary models when loading them, which reads the whole file */
+  public boolean verifyChecksum = false;
+
+  /** DIRECT, or TWO_PHASE for big models where most lookups miss the cpu caches */
+  public PredictStrategy predictStrategy = PredictStrategy.DIRECT;
+
+  /** latency, feature and missing bucket counters of the model's predict, null for none */
+  public ModelMetrics metrics = null;
+}
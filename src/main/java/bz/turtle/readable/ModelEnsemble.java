@@ -0,0 +1,269 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.Namespace;
+import bz.turtle.readable.input.PredictionRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Scores one request with many models, e.g. an ensemble, an A/B test or shadow candidates.
+ *
+ * <p>The hashes depend on the model's --hash_seed and --hash mode, so the hashes cached on a
+ * request by one model are wrong for a model with another seed. The ensemble groups the models by
+ * FeatureHasher, hashes the request once per group into per thread HashedRequests and predicts all
+ * models of the group from those. It only reads the request, the hashes cached on it are neither
+ * used nor changed and its namespaces are not reordered.
+ *
+ * <pre>
+ * ModelEnsemble ensemble = new ModelEnsemble();
+ * ensemble.add("ctr_v1", v1, 0.7f);
+ * ensemble.add("ctr_v2", v2, 0.3f);
+ * ensemble.add("ctr_candidate", candidate, 0); // shadow, scored but not combined
+ * float[][] outputs = ensemble.getReusableOutputs();
+ * float[] combined = new float[ensemble.getClasses()];
+ * ensemble.predict(request, outputs, combined);
+ * </pre>
+ *
+ * predict is thread safe, also with one request shared by many threads. add publishes a new
+ * immutable set of models, a predict that already started uses the models it started with.
+ */
+public class ModelEnsemble {
+  /** scores the models of a request in parallel if set, the caller's thread scores one of them */
+  public Executor executor = null;
+
+  private static final class Group {
+    final FeatureHasher hasher;
+    /** any model of the group, they all hash the same */
+    final ReadableModel hashing;
+
+    final boolean hasSorted;
+    final boolean hasUnsorted;
+
+    Group(FeatureHasher hasher, ReadableModel hashing, boolean hasSorted, boolean hasUnsorted) {
+      this.hasher = hasher;
+      this.hashing = hashing;
+      this.hasSorted = hasSorted;
+      this.hasUnsorted = hasUnsorted;
+    }
+  }
+
+  /** the models and their groups, replaced as a whole by add() and never changed */
+  private static final class Models {
+    final String[] names;
+    final ReadableModel[] models;
+    final float[] weights;
+    final int[] groupOf;
+    final boolean[] sorted;
+    final Group[] groups;
+    final int classes;
+
+    Models(
+        String[] names,
+        ReadableModel[] models,
+        float[] weights,
+        int[] groupOf,
+        boolean[] sorted,
+        Group[] groups,
+        int classes) {
+      this.names = names;
+      this.models = models;
+      this.weights = weights;
+      this.groupOf = groupOf;
+      this.sorted = sorted;
+      this.groups = groups;
+      this.classes = classes;
+    }
+  }
+
+  /** per thread scratch, one HashedRequest per group for each namespace order */
+  private static class Scratch {
+    final List<Namespace> sorted = new ArrayList<>();
+    HashedRequest[] sortedRequests = new HashedRequest[0];
+    HashedRequest[] unsortedRequests = new HashedRequest[0];
+  }
+
+  private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+  private volatile Models current =
+      new Models(
+          new String[0], new ReadableModel[0], new float[0], new int[0], new boolean[0],
+          new Group[0], 0);
+
+  /**
+   * @param name name of the model, for getName()
+   * @param model the model
+   * @param weight weight in the combined prediction, 0 to only score it
+   * @return index of the model in the outputs
+   * @throws IllegalArgumentException if the model has a weight and another number of classes than
+   *     the other weighted models
+   */
+  public synchronized int add(String name, ReadableModel model, float weight) {
+    Models m = current;
+    int classes = m.classes;
+    int modelClasses = model.getReusableFloatArray().length;
+    if (weight != 0) {
+      if (classes != 0 && classes != modelClasses) {
+        throw new IllegalArgumentException(
+            name + " has " + modelClasses + " classes, the combined prediction has " + classes);
+      }
+      classes = modelClasses;
+    }
+
+    FeatureHasher hasher = model.getFeatureHasher();
+    boolean sorts = model.sortsNamespaces();
+    int g = 0;
+    while (g < m.groups.length && !m.groups[g].hasher.equals(hasher)) g++;
+    Group[] groups = Arrays.copyOf(m.groups, Math.max(m.groups.length, g + 1));
+    Group group = g < m.groups.length ? m.groups[g] : new Group(hasher, model, false, false);
+    groups[g] =
+        new Group(
+            group.hasher, group.hashing, group.hasSorted || sorts, group.hasUnsorted || !sorts);
+
+    int i = m.models.length;
+    String[] names = Arrays.copyOf(m.names, i + 1);
+    names[i] = name;
+    ReadableModel[] models = Arrays.copyOf(m.models, i + 1);
+    models[i] = model;
+    float[] weights = Arrays.copyOf(m.weights, i + 1);
+    weights[i] = weight;
+    int[] groupOf = Arrays.copyOf(m.groupOf, i + 1);
+    groupOf[i] = g;
+    boolean[] sorted = Arrays.copyOf(m.sorted, i + 1);
+    sorted[i] = sorts;
+    current = new Models(names, models, weights, groupOf, sorted, groups, classes);
+    return i;
+  }
+
+  public int size() {
+    return current.models.length;
+  }
+
+  public String getName(int i) {
+    return current.names[i];
+  }
+
+  public ReadableModel getModel(int i) {
+    return current.models[i];
+  }
+
+  public float getWeight(int i) {
+    return current.weights[i];
+  }
+
+  /** @return number of distinct --hash_seed and --hash combinations, each is hashed once */
+  public int getGroupCount() {
+    return current.groups.length;
+  }
+
+  /** @return classes of the combined prediction, 0 if no model has a weight */
+  public int getClasses() {
+    return current.classes;
+  }
+
+  /** @return one output array per model, sized for its classes */
+  public float[][] getReusableOutputs() {
+    ReadableModel[] models = current.models;
+    float[][] outputs = new float[models.length][];
+    for (int i = 0; i < outputs.length; i++) outputs[i] = models[i].getReusableFloatArray();
+    return outputs;
+  }
+
+  /**
+   * @param request request to score, it is only read
+   * @param outputs from getReusableOutputs(), outputs[i] gets the prediction of model i
+   * @param combined sum of weight * prediction of the weighted models divided by the sum of their
+   *     weights, null if not needed
+   */
+  public void predict(PredictionRequest request, float[][] outputs, float[] combined) {
+    Models m = current;
+    Scratch s = scratch.get();
+    if (s.sortedRequests.length < m.groups.length) {
+      s.sortedRequests = grow(s.sortedRequests, m.groups.length);
+      s.unsortedRequests = grow(s.unsortedRequests, m.groups.length);
+    }
+
+    boolean sortedNamespaces = false;
+    for (int g = 0; g < m.groups.length; g++) {
+      Group group = m.groups[g];
+      if (group.hasUnsorted) {
+        HashedRequest hashed = s.unsortedRequests[g].clear();
+        hashed.probabilities = request.probabilities;
+        group.hashing.hashUncachedInto(request.namespaces, hashed);
+      }
+      if (group.hasSorted) {
+        if (!sortedNamespaces) {
+          s.sorted.clear();
+          s.sorted.addAll(request.namespaces);
+          s.sorted.sort(ReadableModel.NAMESPACE_COMPARATOR);
+          sortedNamespaces = true;
+        }
+        HashedRequest hashed = s.sortedRequests[g].clear();
+        hashed.probabilities = request.probabilities;
+        group.hashing.hashUncachedInto(s.sorted, hashed);
+      }
+    }
+    s.sorted.clear();
+
+    int n = m.models.length;
+    if (executor == null || n == 1) {
+      for (int i = 0; i < n; i++) predictOne(m, s, i, outputs[i]);
+    } else {
+      CompletableFuture<?>[] futures = new CompletableFuture<?>[n - 1];
+      for (int i = 1; i < n; i++) {
+        final int model = i;
+        futures[i - 1] =
+            CompletableFuture.runAsync(() -> predictOne(m, s, model, outputs[model]), executor);
+      }
+      predictOne(m, s, 0, outputs[0]);
+      try {
+        CompletableFuture.allOf(futures).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        throw e;
+      }
+    }
+
+    if (combined != null) combine(m, outputs, combined);
+  }
+
+  private static void predictOne(Models m, Scratch s, int i, float[] out) {
+    int g = m.groupOf[i];
+    HashedRequest hashed = m.sorted[i] ? s.sortedRequests[g] : s.unsortedRequests[g];
+    m.models[i].predict(hashed, out);
+  }
+
+  /**
+   * @param outputs predictions of each model
+   * @param combined sum of weight * prediction of the weighted models divided by the sum of their
+   *     weights
+   */
+  public void combine(float[][] outputs, float[] combined) {
+    combine(current, outputs, combined);
+  }
+
+  private static void combine(Models m, float[][] outputs, float[] combined) {
+    int classes = m.classes;
+    for (int k = 0; k < classes; k++) combined[k] = 0;
+    float total = 0;
+    for (int i = 0; i < outputs.length; i++) {
+      float w = m.weights[i];
+      if (w == 0) continue;
+      total += w;
+      for (int k = 0; k < classes; k++) combined[k] += w * outputs[i][k];
+    }
+    if (total != 0) {
+      for (int k = 0; k < classes; k++) combined[k] /= total;
+    }
+  }
+
+  private static HashedRequest[] grow(HashedRequest[] requests, int n) {
+    HashedRequest[] grown = Arrays.copyOf(requests, n);
+    for (int i = requests.length; i < n; i++) grown[i] = new HashedRequest();
+    return grown;
+  }
+}
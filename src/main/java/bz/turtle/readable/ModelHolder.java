@@ -0,0 +1,273 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.PredictionRequest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current model of a directory and replaces it when a new model is written there, so you
+ * dont have to swap models yourself when you retrain.
+ *
+ * <pre>
+ * ModelHolder holder = new ModelHolder(new File("/models/ctr"), true, false, new LoadOptions());
+ * holder.watch();
+ * ...
+ * float[] p = holder.get().predict(request);
+ * </pre>
+ *
+ * The new model is loaded in the background with the same constructor as new
+ * ReadableModel(directory), so if the directory has test.txt and predictions.txt it has to pass
+ * makeSureItWorks() before it is used. If loading or the test fails the old model is kept and
+ * getFailures() is incremented. Requests that already got the old model finish with it, nothing is
+ * blocked while a model is loading.
+ *
+ * <p>Only one model is loaded at a time, events while loading queue at most one more reload. Keep
+ * in mind that while loading both models are in memory, unless you use binary models which are
+ * memory mapped.
+ *
+ * <p>The current model maps readable_model.bin, so a new .bin must replace the file (write it next
+ * to it and rename it over it, like saveBinaryModel() and BinaryModelConverter do), never rewrite
+ * it in place: truncating or overwriting a mapped file crashes the current model on its next
+ * predict.
+ */
+public class ModelHolder implements Closeable {
+  private static final List<String> MODEL_FILES =
+      Arrays.asList(
+          "readable_model.txt",
+          "readable_model.txt.gz",
+          "readable_model.bin",
+          "test.txt",
+          "test.txt.gz",
+          "predictions.txt",
+          "predictions.txt.gz");
+
+  private final File directory;
+  private final boolean hasIntercept;
+  private final boolean probabilities;
+  private final LoadOptions options;
+  private final AtomicReference<ReadableModel> current = new AtomicReference<>();
+  private final ThreadPoolExecutor loader;
+
+  private final AtomicLong swaps = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong lastLoadMillis = new AtomicLong();
+  private final AtomicLong totalLoadMillis = new AtomicLong();
+  private final AtomicReference<Exception> lastError = new AtomicReference<>();
+
+  private volatile String loadedFingerprint;
+  private volatile WatchService watchService;
+
+  /** how long the model files must stay unchanged before we load them, they might be still copied */
+  public long quietMillis = 1000;
+
+  /**
+   * loads the model from the directory, same as new ReadableModel(directory, hasIntercept,
+   * probabilities, options)
+   *
+   * @throws IOException if the initial model can not be read
+   * @throws IllegalStateException if the initial model fails makeSureItWorks()
+   */
+  public ModelHolder(
+      File directory, boolean hasIntercept, boolean probabilities, LoadOptions options)
+      throws IOException {
+    this.directory = directory;
+    this.hasIntercept = hasIntercept;
+    this.probabilities = probabilities;
+    this.options = options;
+    this.loader =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1),
+            r -> {
+              Thread t = new Thread(r, "model-loader-" + directory.getName());
+              t.setDaemon(true);
+              return t;
+            },
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    load(fingerprint());
+  }
+
+  public ModelHolder(File directory) throws IOException {
+    this(directory, true, false, new LoadOptions());
+  }
+
+  /** @return the current model, never null */
+  public ReadableModel get() {
+    return current.get();
+  }
+
+  public float[] predict(PredictionRequest request) {
+    return current.get().predict(request);
+  }
+
+  /**
+   * start watching the directory for new models, the events are handled on a daemon thread
+   *
+   * @throws IOException if the directory can not be watched
+   */
+  public synchronized void watch() throws IOException {
+    if (watchService != null) return;
+    WatchService ws = FileSystems.getDefault().newWatchService();
+    directory
+        .toPath()
+        .register(
+            ws,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+    watchService = ws;
+    Thread t = new Thread(() -> watchLoop(ws), "model-watcher-" + directory.getName());
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void watchLoop(WatchService ws) {
+    try {
+      while (true) {
+        WatchKey key = ws.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            changed = true;
+          } else if (MODEL_FILES.contains(((Path) event.context()).getFileName().toString())) {
+            changed = true;
+          }
+        }
+        if (changed) {
+          reloadInBackground();
+        }
+        if (!key.reset()) {
+          return;
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  /** load the model again in the background if the files changed, e.g. from your own scheduler */
+  public void reloadInBackground() {
+    loader.execute(
+        () -> {
+          try {
+            reloadWhenQuiet();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+  }
+
+  private void reloadWhenQuiet() throws InterruptedException {
+    String fingerprint = fingerprint();
+    while (true) {
+      Thread.sleep(quietMillis);
+      String after = fingerprint();
+      if (after.equals(fingerprint)) break;
+      fingerprint = after;
+    }
+    if (fingerprint.equals(loadedFingerprint)) return;
+    try {
+      load(fingerprint);
+    } catch (Exception e) {
+      // keep serving the old model, we try again on the next change
+      lastError.set(e);
+      failures.incrementAndGet();
+      loadedFingerprint = fingerprint;
+    }
+  }
+
+  /**
+   * load the model now on the calling thread and swap it in
+   *
+   * @throws IOException if the model can not be read, the old model is kept
+   * @throws IllegalStateException if the model fails makeSureItWorks(), the old model is kept
+   */
+  public void reload() throws IOException {
+    try {
+      load(fingerprint());
+    } catch (IOException | RuntimeException e) {
+      lastError.set(e);
+      failures.incrementAndGet();
+      throw e;
+    }
+  }
+
+  private synchronized void load(String fingerprint) throws IOException {
+    long start = System.nanoTime();
+    ReadableModel m = new ReadableModel(directory, hasIntercept, probabilities, options);
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    lastLoadMillis.set(took);
+    totalLoadMillis.addAndGet(took);
+    loadedFingerprint = fingerprint;
+    if (current.getAndSet(m) != null) {
+      swaps.incrementAndGet();
+    }
+  }
+
+  /** names, sizes and modification times of the model files, to see if anything changed */
+  private String fingerprint() {
+    StringBuilder sb = new StringBuilder();
+    for (String name : MODEL_FILES) {
+      File f = new File(directory, name);
+      if (f.exists()) {
+        sb.append(name).append(':').append(f.length()).append(':').append(f.lastModified());
+        sb.append(' ');
+      }
+    }
+    return sb.toString();
+  }
+
+  /** @return how many times the model was replaced */
+  public long getSwaps() {
+    return swaps.get();
+  }
+
+  /** @return how many loads failed, because of bad files or failed makeSureItWorks() */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** @return how long the last successful load took */
+  public long getLastLoadMillis() {
+    return lastLoadMillis.get();
+  }
+
+  /** @return sum of all successful load durations */
+  public long getTotalLoadMillis() {
+    return totalLoadMillis.get();
+  }
+
+  /** @return why the last failed load failed, or null */
+  public Exception getLastError() {
+    return lastError.get();
+  }
+
+  /** stop watching, the current model can still be used */
+  @Override
+  public synchronized void close() throws IOException {
+    loader.shutdownNow();
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+}
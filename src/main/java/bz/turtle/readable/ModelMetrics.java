@@ -0,0 +1,297 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.Namespace;
+import bz.turtle.readable.input.PredictionRequest;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a ReadableModel, opt in with LoadOptions.metrics or ReadableModel.setMetrics().
+ *
+ * <p>Every predict(float[], PredictionRequest, ...) records its latency, the features of each
+ * namespace and the number of predictions. Counting bucket lookups, crossings and missing (zero
+ * weight) buckets needs a pass with an Explanation, so it is done for 1 in sampleEvery predictions
+ * only, and its cost is not part of the latency. Counters are LongAdders and the histogram is lock
+ * free, striped like them and fixed in memory, so threads rarely increment the same counter.
+ *
+ * <pre>
+ * LoadOptions options = new LoadOptions();
+ * options.metrics = new ModelMetrics();
+ * ReadableModel m = new ReadableModel(new File("/models/ctr"), true, false, options);
+ * options.metrics.register("ctr"); // JMX bz.turtle.readable:type=ReadableModel,name=ctr
+ * System.out.println(options.metrics);
+ * </pre>
+ */
+public class ModelMetrics implements ModelMetricsMBean {
+  private static final ThreadLocal<Explanation> SAMPLES =
+      ThreadLocal.withInitial(() -> new Explanation(true));
+
+  /** namespaces after this many are counted in the "other" namespace */
+  public static final int MAX_NAMESPACES = 256;
+
+  /** counted per namespace name */
+  public static class NamespaceMetrics {
+    public final String name;
+    /** features of this namespace in all predictions */
+    public final LongAdder features = new LongAdder();
+    /** linear lookups of this namespace in sampled predictions, one per class */
+    public final LongAdder lookups = new LongAdder();
+    /** linear lookups of this namespace that hit a zero weight, in sampled predictions */
+    public final LongAdder missing = new LongAdder();
+
+    NamespaceMetrics(String name) {
+      this.name = name;
+    }
+
+    /** @return missing / lookups, 0 if nothing was sampled */
+    public double missingRate() {
+      long n = lookups.sum();
+      return n == 0 ? 0 : (double) missing.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s features=%d lookups=%d missing_rate=%f",
+          name, features.sum(), lookups.sum(), missingRate());
+    }
+  }
+
+  /** count lookups in 1 of this many predictions, 0 to never count them */
+  public volatile int sampleEvery = 64;
+
+  public final LongAdder predictions = new LongAdder();
+  /** features in all predictions */
+  public final LongAdder features = new LongAdder();
+  /** predictions where the lookups were counted */
+  public final LongAdder sampled = new LongAdder();
+  /** bucket lookups in sampled predictions, one per class */
+  public final LongAdder lookups = new LongAdder();
+  /** -q and --cubic lookups in sampled predictions */
+  public final LongAdder crossings = new LongAdder();
+  /** lookups that hit a zero weight in sampled predictions */
+  public final LongAdder missing = new LongAdder();
+  /** predict latency in nanoseconds */
+  public final LatencyHistogram latency = new LatencyHistogram();
+
+  private volatile long loadNanos = 0;
+  private volatile NamespaceMetrics[] namespaces = new NamespaceMetrics[0];
+  private final NamespaceMetrics other = new NamespaceMetrics("other");
+  private ObjectName registered;
+
+  /** @return an Explanation to count the lookups with, null if this prediction is not sampled */
+  Explanation sample() {
+    int every = sampleEvery;
+    if (every <= 0 || ThreadLocalRandom.current().nextInt(every) != 0) return null;
+    return SAMPLES.get();
+  }
+
+  /** count the lookups of a sample(), the caller clears it */
+  void recordLookups(Explanation e) {
+    long crossed = 0;
+    long zero = 0;
+    Namespace lastNamespace = null;
+    NamespaceMetrics last = null;
+    for (int i = 0; i < e.size(); i++) {
+      int kind = e.kind(i);
+      boolean isMissing = e.weight(i) == 0;
+      if (kind >= Explanation.QUADRATIC) crossed++;
+      if (isMissing) zero++;
+      if (kind == Explanation.LINEAR) {
+        Namespace ns = e.namespace(i, 0);
+        if (ns != lastNamespace) {
+          lastNamespace = ns;
+          last = namespace(ns.namespace);
+        }
+        last.lookups.increment();
+        if (isMissing) last.missing.increment();
+      }
+    }
+    sampled.increment();
+    lookups.add(e.size());
+    crossings.add(crossed);
+    missing.add(zero);
+  }
+
+  void record(PredictionRequest input, long nanos) {
+    predictions.increment();
+    latency.record(nanos);
+    long total = 0;
+    for (int i = 0; i < input.namespaces.size(); i++) {
+      Namespace ns = input.namespaces.get(i);
+      int n = ns.features.size();
+      namespace(ns.namespace).features.add(n);
+      total += n;
+    }
+    features.add(total);
+  }
+
+  void recordLoad(long nanos) {
+    loadNanos = nanos;
+  }
+
+  /** linear scan, models have a handful of namespaces and this does not allocate */
+  private NamespaceMetrics namespace(CharSequence name) {
+    NamespaceMetrics[] all = namespaces;
+    for (NamespaceMetrics m : all) {
+      if (contentEquals(m.name, name)) return m;
+    }
+    return addNamespace(name);
+  }
+
+  private synchronized NamespaceMetrics addNamespace(CharSequence name) {
+    NamespaceMetrics[] all = namespaces;
+    for (NamespaceMetrics m : all) {
+      if (contentEquals(m.name, name)) return m;
+    }
+    if (all.length >= MAX_NAMESPACES) return other;
+    NamespaceMetrics m = new NamespaceMetrics(name.toString());
+    NamespaceMetrics[] grown = Arrays.copyOf(all, all.length + 1);
+    grown[all.length] = m;
+    namespaces = grown;
+    return m;
+  }
+
+  private static boolean contentEquals(String a, CharSequence b) {
+    if (a.length() != b.length()) return false;
+    for (int i = 0; i < a.length(); i++) {
+      if (a.charAt(i) != b.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /** @return the namespaces seen so far, and "other" if there were more than MAX_NAMESPACES */
+  public List<NamespaceMetrics> getNamespaceMetrics() {
+    List<NamespaceMetrics> all = new ArrayList<>(Arrays.asList(namespaces));
+    if (other.features.sum() > 0) all.add(other);
+    return all;
+  }
+
+  /**
+   * export as bz.turtle.readable:type=ReadableModel,name=name in the platform MBeanServer
+   *
+   * @param name usually the model name
+   * @throws JMException if the name is taken or invalid
+   */
+  public synchronized void register(String name) throws JMException {
+    unregister();
+    ObjectName objectName =
+        new ObjectName("bz.turtle.readable:type=ReadableModel,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    registered = objectName;
+  }
+
+  /** remove it from the platform MBeanServer, if it was registered */
+  public synchronized void unregister() throws JMException {
+    if (registered == null) return;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(registered)) server.unregisterMBean(registered);
+    registered = null;
+  }
+
+  @Override
+  public long getPredictions() {
+    return predictions.sum();
+  }
+
+  @Override
+  public long getFeatures() {
+    return features.sum();
+  }
+
+  @Override
+  public long getSampled() {
+    return sampled.sum();
+  }
+
+  @Override
+  public long getLookups() {
+    return lookups.sum();
+  }
+
+  @Override
+  public long getCrossings() {
+    return crossings.sum();
+  }
+
+  @Override
+  public long getMissing() {
+    return missing.sum();
+  }
+
+  @Override
+  public double getMissingRate() {
+    long n = lookups.sum();
+    return n == 0 ? 0 : (double) missing.sum() / n;
+  }
+
+  @Override
+  public long getP50Micros() {
+    return TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.5));
+  }
+
+  @Override
+  public long getP99Micros() {
+    return TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.99));
+  }
+
+  @Override
+  public long getP999Micros() {
+    return TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.999));
+  }
+
+  @Override
+  public long getLoadMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(loadNanos);
+  }
+
+  @Override
+  public int getSampleEvery() {
+    return sampleEvery;
+  }
+
+  @Override
+  public void setSampleEvery(int sampleEvery) {
+    this.sampleEvery = sampleEvery;
+  }
+
+  @Override
+  public String[] getNamespaces() {
+    List<NamespaceMetrics> all = getNamespaceMetrics();
+    String[] out = new String[all.size()];
+    for (int i = 0; i < out.length; i++) out[i] = all.get(i).toString();
+    return out;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(
+        String.format(
+            "predictions=%d features=%d sampled=%d lookups=%d crossings=%d missing_rate=%f"
+                + " p50_us=%d p99_us=%d p999_us=%d load_ms=%d\n",
+            getPredictions(),
+            getFeatures(),
+            getSampled(),
+            getLookups(),
+            getCrossings(),
+            getMissingRate(),
+            getP50Micros(),
+            getP99Micros(),
+            getP999Micros(),
+            getLoadMillis()));
+    for (NamespaceMetrics m : getNamespaceMetrics()) {
+      sb.append("  ").append(m).append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,34 @@
+package bz.turtle.readable;
+
+/** JMX view of ModelMetrics, lookups, crossings and missing are counted on sampled predictions */
+public interface ModelMetricsMBean {
+  long getPredictions();
+
+  long getFeatures();
+
+  long getSampled();
+
+  long getLookups();
+
+  long getCrossings();
+
+  long getMissing();
+
+  /** missing / lookups */
+  double getMissingRate();
+
+  long getP50Micros();
+
+  long getP99Micros();
+
+  long getP999Micros();
+
+  long getLoadMillis();
+
+  int getSampleEvery();
+
+  void setSampleEvery(int sampleEvery);
+
+  /** one line per namespace with its features, lookups and missing rate */
+  String[] getNamespaces();
+}
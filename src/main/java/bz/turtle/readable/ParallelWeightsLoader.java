@@ -0,0 +1,219 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.FloatParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parses the bucket:weight lines of a readable model on many threads. One thread reads the input
+ * in big chunks cut at the last new line (the input is usually gzipped, and a gzip stream can only
+ * be decompressed sequentially), and the chunks are parsed and written to the weights in a fork
+ * join pool. The number of chunks in flight is bounded so memory stays at 2 * threads * chunkSize.
+ *
+ * <p>The parser works on the bytes directly, without creating Strings for each line.
+ */
+class ParallelWeightsLoader {
+  static final int CHUNK_SIZE = 4 << 20;
+
+  /** per thread scratch space for the parsed buckets and weights of one chunk */
+  private static final ThreadLocal<Parsed> PARSED = ThreadLocal.withInitial(Parsed::new);
+
+  private static class Parsed {
+    int[] buckets = new int[0];
+    float[] weights = new float[0];
+  }
+
+  /**
+   * @param in input positioned right after the ':0' header line
+   * @param builder where to put the weights
+   * @param threads parser threads
+   * @param chunkSize how many bytes to parse in one task, a line can not be longer than that
+   * @throws IOException if reading fails
+   * @throws NumberFormatException if a line is not bucket:weight
+   */
+  static void load(InputStream in, WeightsBuilder builder, int threads, int chunkSize)
+      throws IOException {
+    BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(threads * 2);
+    for (int i = 0; i < threads * 2; i++) {
+      free.add(new byte[chunkSize]);
+    }
+    // plain arrays can be written from many threads as every bucket is in the model only once
+    boolean concurrent = builder.isConcurrent();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    try {
+      byte[] buf = take(free);
+      int len = 0;
+      int n;
+      while ((n = in.read(buf, len, buf.length - len)) >= 0) {
+        len += n;
+        if (len < buf.length) continue;
+
+        int end = len;
+        while (end > 0 && buf[end - 1] != '\n') end--;
+        if (end == 0) {
+          throw new IOException("line is longer than " + chunkSize + " bytes");
+        }
+        byte[] next = take(free);
+        System.arraycopy(buf, end, next, 0, len - end);
+        tasks.add(pool.submit(new ParseChunk(buf, end, builder, concurrent, free, failure)));
+        buf = next;
+        len = len - end;
+      }
+      if (len > 0) {
+        tasks.add(pool.submit(new ParseChunk(buf, len, builder, concurrent, free, failure)));
+      }
+      for (ForkJoinTask<?> task : tasks) {
+        task.join();
+      }
+      // join() would throw a copy of the exception without the message
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static byte[] take(BlockingQueue<byte[]> free) throws IOException {
+    try {
+      return free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while loading the model");
+    }
+  }
+
+  private static class ParseChunk implements Runnable {
+    private final byte[] buf;
+    private final int len;
+    private final WeightsBuilder builder;
+    private final boolean concurrent;
+    private final BlockingQueue<byte[]> free;
+    private final AtomicReference<RuntimeException> failure;
+
+    ParseChunk(
+        byte[] buf,
+        int len,
+        WeightsBuilder builder,
+        boolean concurrent,
+        BlockingQueue<byte[]> free,
+        AtomicReference<RuntimeException> failure) {
+      this.buf = buf;
+      this.len = len;
+      this.builder = builder;
+      this.concurrent = concurrent;
+      this.free = free;
+      this.failure = failure;
+    }
+
+    @Override
+    public void run() {
+      Parsed parsed = PARSED.get();
+      try {
+        // shortest line is 0:0\n
+        int max = len / 4 + 1;
+        if (parsed.buckets.length < max) {
+          parsed.buckets = new int[max];
+          parsed.weights = new float[max];
+        }
+        int n = parse(buf, 0, len, parsed.buckets, parsed.weights);
+        if (concurrent) {
+          set(parsed, n);
+        } else {
+          synchronized (builder) {
+            set(parsed, n);
+          }
+        }
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        free.add(buf);
+      }
+    }
+
+    private void set(Parsed parsed, int n) {
+      for (int i = 0; i < n; i++) {
+        builder.set(parsed.buckets[i], parsed.weights[i]);
+      }
+    }
+  }
+
+  /**
+   * parse bucket:weight lines, empty lines are skipped
+   *
+   * @return how many lines were parsed
+   */
+  static int parse(byte[] buf, int from, int to, int[] buckets, float[] weights) {
+    AsciiChars chars = new AsciiChars(buf);
+    int n = 0;
+    int i = from;
+    while (i < to) {
+      byte c = buf[i];
+      if (c == '\n' || c == '\r') {
+        i++;
+        continue;
+      }
+      int start = i;
+      int bucket = 0;
+      while (i < to && (c = buf[i]) >= '0' && c <= '9') {
+        bucket = bucket * 10 + (c - '0');
+        i++;
+      }
+      if (i == start || i == to || buf[i] != ':') {
+        while (i < to && buf[i] != '\n') i++;
+        throw new NumberFormatException(
+            "expected bucket:weight, got: "
+                + new String(buf, start, i - start, StandardCharsets.UTF_8));
+      }
+      i++;
+      int weightStart = i;
+      while (i < to && buf[i] != '\n' && buf[i] != '\r') i++;
+
+      buckets[n] = bucket;
+      weights[n] = FloatParser.parseFloat(chars, weightStart, i);
+      n++;
+    }
+    return n;
+  }
+
+  /** the bytes of a chunk as chars for FloatParser, the lines are ascii */
+  static final class AsciiChars implements CharSequence {
+    private final byte[] buf;
+
+    AsciiChars(byte[] buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int length() {
+      return buf.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buf[index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(buf, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+      return new String(buf, StandardCharsets.US_ASCII);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package bz.turtle.readable;
+
+/** how ReadableModel reads the weights when predicting, @see LoadOptions */
+public enum PredictStrategy {
+  /** read the weight of each bucket as soon as it is hashed */
+  DIRECT,
+  /**
+   * hash everything first into a reusable buffer of buckets, then read all weights in one tight
+   * loop, so the cache misses of big models overlap instead of waiting on each other. The sums are
+   * in the same order as DIRECT, so the predictions are the same
+   */
+  TWO_PHASE,
+  /**
+   * TWO_PHASE with the buckets sorted before reading them, so the weights are read in memory
+   * order. The sort usually costs more than it saves, measure before using it. The sums are in
+   * another order, so the predictions can differ in the last bits
+   */
+  TWO_PHASE_SORTED
+}
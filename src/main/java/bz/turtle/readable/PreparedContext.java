@@ -0,0 +1,55 @@
+package bz.turtle.readable;
+
+/**
+ * Namespaces shared between many predictions (user, context..) hashed and partially scored once,
+ * created with ReadableModel.prepare()
+ *
+ * <pre>
+ * PreparedContext user = model.prepare(new PredictionRequest(new Namespace("user", ...)));
+ * for (PredictionRequest item : items) {
+ *   model.predict(user, item, out);
+ * }
+ * </pre>
+ *
+ * It keeps the feature hashes, the hashes already multiplied with the FNV prime for the left side of
+ * -q and --cubic interactions and the feature values, so scoring against it does not touch the
+ * shared Namespace and Feature objects at all. It is immutable and can be used from many threads,
+ * but only with the model that created it.
+ */
+public class PreparedContext {
+  final ReadableModel model;
+  final boolean probabilities;
+
+  /** linear part, interactions between the shared namespaces and the intercept */
+  final float[] base;
+
+  final FeatureColumns columns;
+
+  /** per cubic triple, the result if all 3 namespaces are shared, null otherwise */
+  final float[][] sharedTriples;
+
+  /**
+   * per cubic triple, if the first two namespaces are shared, the partial hash (a * FNV_prime ^ b) *
+   * FNV_prime and a.value * b.value of all the pairs, null otherwise
+   */
+  final int[][] pairHash;
+
+  final float[][] pairValue;
+
+  PreparedContext(
+      ReadableModel model,
+      boolean probabilities,
+      float[] base,
+      FeatureColumns columns,
+      float[][] sharedTriples,
+      int[][] pairHash,
+      float[][] pairValue) {
+    this.model = model;
+    this.probabilities = probabilities;
+    this.base = base;
+    this.columns = columns;
+    this.sharedTriples = sharedTriples;
+    this.pairHash = pairHash;
+    this.pairValue = pairValue;
+  }
+}
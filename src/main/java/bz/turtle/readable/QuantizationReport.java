@@ -0,0 +1,125 @@
+package bz.turtle.readable;
+
+import bz.turtle.readable.input.PredictionRequest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Replays test.txt from a model directory through the full float model and through the quantized
+ * one, and reports how much the predictions moved, so you can decide if FP16, BF16 or INT8 weights
+ * are good enough for your model.
+ *
+ * <pre>
+ * $ java -cp readable.jar bz.turtle.readable.QuantizationReport directory/
+ * storage  examples  max error   mean error  max error vs vw
+ * FP16     1000      0.000122    0.000018    0.000731
+ * ...
+ * </pre>
+ *
+ * The last column compares with predictions.txt when it exists, makeSureItWorks() fails above 0.01
+ */
+public class QuantizationReport {
+  public WeightStorage storage;
+  public int examples;
+  /** max absolute difference from the full float model over all classes */
+  public float maxError;
+
+  public float meanError;
+  /** max absolute difference from vw's predictions.txt, NaN if there is no predictions.txt */
+  public float maxErrorVsVW = Float.NaN;
+
+  /**
+   * @param root directory with readable_model.txt and test.txt (.gz also works)
+   * @param storage FP16, BF16 or INT8
+   * @param probabilities predict normalized probabilities, as vw --probabilities
+   * @return the prediction errors of the quantized model
+   * @throws IOException if reading fails
+   */
+  public static QuantizationReport compare(File root, WeightStorage storage, boolean probabilities)
+      throws IOException {
+    File model = ReadableModel.findFileWithExt(root, "readable_model.txt");
+    File test = ReadableModel.findFileWithExt(root, "test.txt");
+    File predictions = ReadableModel.findFileWithExt(root, "predictions.txt");
+
+    // load the files directly, loading the directory would run makeSureItWorks()
+    ReadableModel full = new ReadableModel(model, true, probabilities, new LoadOptions());
+    LoadOptions options = new LoadOptions();
+    options.storage = storage;
+    ReadableModel quantized = new ReadableModel(model, true, probabilities, options);
+
+    QuantizationReport report = new QuantizationReport();
+    report.storage = storage;
+    double sum = 0;
+    int n = 0;
+    BufferedReader brTest =
+        new BufferedReader(new InputStreamReader(ReadableModel.getReaderForExt(test)));
+    BufferedReader brPred =
+        predictions.exists()
+            ? new BufferedReader(new InputStreamReader(ReadableModel.getReaderForExt(predictions)))
+            : null;
+    try {
+      String testLine;
+      while ((testLine = brTest.readLine()) != null) {
+        PredictionRequest request = ReadableModel.parseTestLine(testLine, probabilities);
+        float[] expected = full.predict(request);
+        float[] actual = quantized.predict(request);
+        for (int i = 0; i < expected.length; i++) {
+          float error = Math.abs(expected[i] - actual[i]);
+          report.maxError = Math.max(report.maxError, error);
+          sum += error;
+          n++;
+        }
+
+        String predLine = brPred == null ? null : brPred.readLine();
+        if (predLine != null) {
+          float vw = maxErrorVsVW(predLine, actual);
+          report.maxErrorVsVW =
+              Float.isNaN(report.maxErrorVsVW) ? vw : Math.max(vw, report.maxErrorVsVW);
+        }
+        report.examples++;
+      }
+    } finally {
+      brTest.close();
+      if (brPred != null) brPred.close();
+    }
+    report.meanError = n == 0 ? 0 : (float) (sum / n);
+    return report;
+  }
+
+  private static float maxErrorVsVW(String predLine, float[] ours) {
+    // ran with --probabilities for -oaa
+    if (predLine.contains(":")) {
+      float max = 0;
+      for (String kv : predLine.trim().split(" ")) {
+        String[] s = kv.split(":");
+        int index = Integer.parseInt(s[0]) - 1;
+        max = Math.max(max, Math.abs(Float.parseFloat(s[1]) - ours[index]));
+      }
+      return max;
+    }
+    return Math.abs(Float.parseFloat(predLine.trim()) - ours[0]);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%-8s %-9d %-11f %-11f %f", storage, examples, maxError, meanError, maxErrorVsVW);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: QuantizationReport directory [probabilities]");
+      System.exit(1);
+    }
+    File root = new File(args[0]);
+    boolean probabilities = args.length > 1 && Boolean.parseBoolean(args[1]);
+    System.out.println("storage  examples  max error   mean error  max error vs vw");
+    for (WeightStorage storage :
+        new WeightStorage[] {WeightStorage.FP16, WeightStorage.BF16, WeightStorage.INT8}) {
+      System.out.println(compare(root, storage, probabilities));
+    }
+  }
+}
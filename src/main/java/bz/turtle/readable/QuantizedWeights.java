@@ -0,0 +1,157 @@
+package bz.turtle.readable;
+
+/**
+ * Dense weights stored with less precision, half or quarter of the memory of float[] and much
+ * better cache hit rate for the random bucket lookups. Zero weights stay exactly zero.
+ */
+abstract class QuantizedWeights implements Weights {
+  final int size;
+
+  QuantizedWeights(int size) {
+    this.size = size;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param weights full precision weights
+   * @param storage FP16, BF16 or INT8
+   * @return quantized copy of the weights
+   */
+  static QuantizedWeights of(Weights weights, WeightStorage storage) {
+    switch (storage) {
+      case FP16:
+        return new Half(weights);
+      case BF16:
+        return new BFloat16(weights);
+      case INT8:
+        return new Int8(weights);
+      default:
+        throw new IllegalArgumentException("not a quantized storage " + storage);
+    }
+  }
+
+  /** IEEE 754 half precision, 11 bits of mantissa, bigger weights are clipped to 65504 */
+  static class Half extends QuantizedWeights {
+    private final short[] weights;
+
+    Half(Weights from) {
+      super(from.size());
+      weights = new short[size];
+      for (int i = 0; i < size; i++) {
+        weights[i] = fromFloat(from.get(i));
+      }
+    }
+
+    @Override
+    public float get(int bucket) {
+      return toFloat(weights[bucket]);
+    }
+
+    static float toFloat(short half) {
+      int bits = half & 0xffff;
+      int sign = (bits & 0x8000) << 16;
+      int exp = (bits >>> 10) & 0x1f;
+      int mantissa = bits & 0x3ff;
+      if (exp == 0) {
+        // subnormal, mantissa * 2**-24
+        float f = mantissa * 5.9604645e-8f;
+        return sign == 0 ? f : -f;
+      }
+      if (exp == 31) {
+        return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+      }
+      return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mantissa << 13));
+    }
+
+    static short fromFloat(float f) {
+      int bits = Float.floatToIntBits(f);
+      int sign = (bits >>> 16) & 0x8000;
+      int abs = bits & 0x7fffffff;
+      // round to nearest
+      int val = abs + 0x1000;
+      if (val >= 0x47800000) {
+        if (abs > 0x7f800000) return (short) (sign | 0x7e00); // NaN
+        if (abs == 0x7f800000) return (short) (sign | 0x7c00); // Inf
+        // saturate instead of making a weight infinite, which would turn 0 * w into NaN
+        return (short) (sign | 0x7bff);
+      }
+      if (val >= 0x38800000) {
+        // normal, rebias the exponent from 127 to 15
+        return (short) (sign | ((val - 0x38000000) >>> 13));
+      }
+      if (val < 0x33000000) {
+        // too small even for subnormal
+        return (short) sign;
+      }
+      int exp = abs >>> 23;
+      return (short)
+          (sign | (((abs & 0x7fffff | 0x800000) + (0x800000 >>> (exp - 102))) >>> (126 - exp)));
+    }
+  }
+
+  /**
+   * bfloat16, the top 16 bits of the float, same range as float but only 8 bits of mantissa,
+   * weights that would round up to infinity are clipped to the largest finite bfloat16
+   */
+  static class BFloat16 extends QuantizedWeights {
+    private static final int MAX = 0x7f7f;
+
+    private final short[] weights;
+
+    BFloat16(Weights from) {
+      super(from.size());
+      weights = new short[size];
+      for (int i = 0; i < size; i++) {
+        weights[i] = fromFloat(from.get(i));
+      }
+    }
+
+    @Override
+    public float get(int bucket) {
+      return toFloat(weights[bucket]);
+    }
+
+    static float toFloat(short bfloat) {
+      return Float.intBitsToFloat(bfloat << 16);
+    }
+
+    static short fromFloat(float f) {
+      int bits = Float.floatToIntBits(f);
+      int sign = (bits >>> 16) & 0x8000;
+      int abs = bits & 0x7fffffff;
+      if (abs > 0x7f800000) return (short) (sign | 0x7fc0); // NaN
+      if (abs == 0x7f800000) return (short) (sign | 0x7f80); // infinity
+      // round to nearest even, near Float.MAX_VALUE this carries into the exponent
+      int rounded = (abs + 0x7fff + ((abs >>> 16) & 1)) >>> 16;
+      return (short) (sign | Math.min(rounded, MAX));
+    }
+  }
+
+  /** linear quantization to -127..127 with one scale for the whole model */
+  static class Int8 extends QuantizedWeights {
+    private final byte[] weights;
+    private final float scale;
+
+    Int8(Weights from) {
+      super(from.size());
+      float max = 0;
+      for (int i = 0; i < size; i++) {
+        max = Math.max(max, Math.abs(from.get(i)));
+      }
+      scale = max == 0 ? 1 : max / 127;
+      weights = new byte[size];
+      for (int i = 0; i < size; i++) {
+        weights[i] = (byte) Math.max(-127, Math.min(127, Math.round(from.get(i) / scale)));
+      }
+    }
+
+    @Override
+    public float get(int bucket) {
+      return weights[bucket] * scale;
+    }
+  }
+}
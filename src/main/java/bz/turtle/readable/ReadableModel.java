@@ -1,16 +1,24 @@
 package bz.turtle.readable;
 
-import bz.turtle.readable.input.Feature;
+import bz.turtle.readable.input.ExampleParser;
 import bz.turtle.readable.input.FeatureInterface;
 import bz.turtle.readable.input.Namespace;
 import bz.turtle.readable.input.PredictionRequest;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.DoubleUnaryOperator;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -41,15 +49,23 @@ import java.util.zip.GZIPInputStream;
 public class ReadableModel {
   private static final int intercept = 11650396;
   private static final Comparator<FeatureInterface> NOOP_COMPARATOR = (o1, o2) -> 0;
-  private static final Set<Character> EMPTY_SET = new HashSet<>();
-  private final int FNV_prime = 16777619;
+  static final Comparator<Namespace> NAMESPACE_COMPARATOR =
+      (o1, o2) -> compareNamespaces(o1.namespace, o2.namespace);
+  static final int FNV_prime = 16777619;
+
+  private static final ThreadLocal<FeatureColumns> ITEM_COLUMNS =
+      ThreadLocal.withInitial(FeatureColumns::new);
+  private static final ThreadLocal<BucketBuffer> BUCKETS =
+      ThreadLocal.withInitial(BucketBuffer::new);
 
   private boolean hasIntercept = true;
   /**
    * This is the actual model of size 2**bits if you build something with vw -b 18 it will be of
    * size 262144
    */
-  private float[] weights;
+  private Weights weights;
+  private volatile ModelMetrics metrics;
+  private volatile PredictStrategy strategy = PredictStrategy.DIRECT;
 
   private int bits;
 
@@ -70,6 +86,9 @@ public class ReadableModel {
   private Map<Character, Map<Character, Set<Character>>> cubic = new HashMap<>();
   private boolean quadraticAnyToAny = false;
 
+  // quadratic and cubic compiled at load time, so predict does not walk maps and sets
+  private InteractionPlan plan = new InteractionPlan(quadratic, cubic);
+
   private DoubleUnaryOperator identity = DoubleUnaryOperator.identity();
   private DoubleUnaryOperator logistic = (o) -> (1. / (1. + Math.exp(-o)));
   private DoubleUnaryOperator glf1 = (o) -> (2. / (1. + Math.exp(-o)) - 1.);
@@ -77,6 +96,12 @@ public class ReadableModel {
 
   private DoubleUnaryOperator link = this.identity;
 
+  private static final byte[] BINARY_MAGIC = "TURTLEBM".getBytes(StandardCharsets.US_ASCII);
+  private static final int BINARY_VERSION = 1;
+  private static final int BINARY_ALIGN = 4096;
+  // magic, 4 ints, 4 bytes, 2 floats and 2 longs
+  private static final int BINARY_FIXED_HEADER = 8 + 16 + 4 + 8 + 16;
+
   // XXX: incomplete
   private void extractOptions(String o, BiConsumer<String, String> cb) {
     o = o.trim();
@@ -108,7 +133,7 @@ public class ReadableModel {
     return Integer.parseInt(s);
   }
 
-  private InputStream getReaderForExt(File f) throws IOException {
+  static InputStream getReaderForExt(File f) throws IOException {
     if (f.toString().endsWith(".gz")) {
       FileInputStream fin = new FileInputStream(f);
       InputStream gzipStream = new GZIPInputStream(fin);
@@ -118,7 +143,8 @@ public class ReadableModel {
     }
   }
 
-  private File findFileWithExt(File root, String name) {
+  /** @return root/name.gz if it exists, root/name otherwise */
+  static File findFileWithExt(File root, String name) {
     File x = Paths.get(root.toString(), name + ".gz").toFile();
     if (x.exists()) {
       return x;
@@ -158,15 +184,47 @@ public class ReadableModel {
    * @throws UnsupportedOperationException if the model was built with options we dont support yet
    */
   public void loadReadableModel(File file) throws IOException, UnsupportedOperationException {
+    loadReadableModel(file, new LoadOptions());
+  }
+
+  /**
+   * @param file the vw --readable_model file.txt or .txt.gz
+   * @param options how to store the weights
+   * @throws IOException if there is a problem with the reading
+   * @throws UnsupportedOperationException if the model was built with options we dont support yet
+   */
+  public void loadReadableModel(File file, LoadOptions options)
+      throws IOException, UnsupportedOperationException {
     InputStream is = getReaderForExt(file);
-    loadReadableModel(is);
+    loadReadableModel(is, options);
   }
 
   public void loadReadableModel(InputStream is) throws IOException, UnsupportedOperationException {
-    BufferedReader br = new BufferedReader(new InputStreamReader(is));
+    loadReadableModel(is, new LoadOptions());
+  }
+
+  public void loadReadableModel(InputStream is, LoadOptions options)
+      throws IOException, UnsupportedOperationException {
     bits = 0;
-    boolean inHeader = true;
     multiClassBits = 0;
+    WeightsBuilder builder =
+        options.loadThreads > 1
+            ? loadReadableModelParallel(is, options)
+            : loadReadableModelSequential(is, options);
+
+    mask = (1 << bits) - 1;
+    if (builder == null) {
+      throw new UnsupportedOperationException("failed to load the model, did not see 'bits:' line");
+    }
+    weights = builder.build();
+    compileInteractions();
+  }
+
+  private WeightsBuilder loadReadableModelSequential(InputStream is, LoadOptions options)
+      throws IOException, UnsupportedOperationException {
+    BufferedReader br = new BufferedReader(new InputStreamReader(is));
+    WeightsBuilder builder = null;
+    boolean inHeader = true;
     // TODO: more robust parsing
     try {
       String line;
@@ -175,135 +233,432 @@ public class ReadableModel {
           if (line.equals(":0")) {
             inHeader = false;
           }
+          readHeaderLine(line);
           if (line.contains("bits:")) {
-            bits = Integer.parseInt(getSecondValue(line));
-            weights = new float[(1 << bits)];
-          }
-          if (line.contains("Min label")) {
-            minLabel = Float.parseFloat(getSecondValue(line));
-          }
-          if (line.contains("Max label")) {
-            maxLabel = Float.parseFloat(getSecondValue(line));
-          }
-          if (line.contains("ngram")) {
-            ngram = intOrZero(getSecondValue(line));
-            if (ngram != 0) {
-              throw new UnsupportedOperationException("ngrams are not supported yet");
-            }
-          }
-          if (line.contains("skip")) {
-            skip = intOrZero(getSecondValue(line));
-            if (skip != 0) {
-              throw new UnsupportedOperationException("skip is not supported yet");
-            }
-          }
-
-          if (line.contains("options")) {
-            extractOptions(
-                line.split(":", 2)[1],
-                (key, value) -> {
-                  if (key.equals("--oaa")) {
-                    oaa = Integer.parseInt(value);
-
-                    multiClassBits = 0;
-                    int ml = oaa - 1;
-                    while (ml > 0) {
-                      multiClassBits++;
-                      ml >>= 1;
-                    }
-                  }
-                  if (key.equals("--cubic")) {
-                    if (value.contains(":")) {
-                      throw new UnsupportedOperationException("Any to any cubic interactions are not yet supported");
-                    } else if (value.charAt(0) == value.charAt(1)
-                            || value.charAt(0) == value.charAt(2)
-                            || value.charAt(1) == value.charAt(2)) {
-                      throw new UnsupportedOperationException("Cubic interactions within the same namespace are not yet supported");
-                    } else {
-                      cubic.computeIfAbsent(value.charAt(0), k -> new HashMap<>())
-                              .computeIfAbsent(value.charAt(1), k -> new HashSet<>())
-                              .add(value.charAt(2));
-                    }
-                  }
-                  if (key.equals("--link")) {
-                    switch (value) {
-                      case "logistic":
-                        this.link = this.logistic;
-                        break;
-                      case "identity":
-                        this.link = this.identity;
-                        break;
-                      case "poisson":
-                        this.link = this.poisson;
-                        break;
-                      case "glf1":
-                        this.link = this.glf1;
-                        break;
-                      default:
-                        throw new UnsupportedOperationException(
-                            "only --link identity, logistic, glf1, or poisson are supported "
-                                + value);
-                    }
-                  }
-
-                  if (key.equals("--hash_seed")) {
-                    seed = Integer.parseInt(value);
-                  }
-                  if (key.equals("--hash")) {
-                    if (value.equals("all")) {
-                      hashAll = true;
-                    }
-                  }
-                  if (key.equals("--quadratic")) {
-                    if (value.equals("::")) {
-                      // TODO: the way we do permutation differs from the way we do permutations
-                      // TODO: the results will differ
-                      /*
-
-                      from vw
-                      echo '1 |aa x:1 y:2 ' | vw -f x.bin -a -q :: 2>&1 | grep Constant | tr "\t" "\n" | sort
-                      aa^x*aa^x:113732:1:0@0
-                      aa^x*aa^y:189809:2:0@0
-                      aa^x:63954:1:0@0
-                      aa^y*aa^y:125762:4:0@0
-                      aa^y:237799:2:0@0
-
-                      and we generate
-                      aa^x:63954:1:0.000000
-                      aa^y:237799:1:0.000000
-                      aa^x*aa^x:113732:1:0.000000
-                      aa^x*aa^y:189809:1:0.000000
-                      aa^y*aa^x:176759:1:0.000000
-                      aa^y*aa^y:125762:1:0.000000
-                       */
-                      quadraticAnyToAny = true;
-                    } else {
-                        quadratic
-                                .computeIfAbsent(value.charAt(0), k -> new HashSet<>())
-                                .add(value.charAt(1));
-                    }
-                  }
-                  // TODO: ngrams, skips
-                  // TODO: lda
-                });
+            builder = new WeightsBuilder(bits, options);
           }
         } else {
           String[] v = line.split(":");
           int bucket = Integer.parseInt(v[0]);
           float w = Float.parseFloat(v[1]);
-          weights[bucket] = w;
+          builder.set(bucket, w);
         }
       }
     } finally {
       br.close();
     }
+    return builder;
+  }
 
-    mask = (1 << bits) - 1;
-    if (weights == null) {
-      throw new UnsupportedOperationException("failed to load the model, did not see 'bits:' line");
+  /**
+   * reads the header line by line, and then parses the weights in big chunks on
+   * options.loadThreads threads
+   */
+  private WeightsBuilder loadReadableModelParallel(InputStream is, LoadOptions options)
+      throws IOException, UnsupportedOperationException {
+    InputStream in = new BufferedInputStream(is, 1 << 16);
+    WeightsBuilder builder = null;
+    try {
+      String line;
+      while ((line = readLine(in)) != null) {
+        readHeaderLine(line);
+        if (line.contains("bits:")) {
+          builder = new WeightsBuilder(bits, options);
+        }
+        if (line.equals(":0")) {
+          if (builder != null) {
+            ParallelWeightsLoader.load(
+                in, builder, options.loadThreads, ParallelWeightsLoader.CHUNK_SIZE);
+          }
+          break;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return builder;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c = in.read()) != -1 && c != '\n') {
+      if (c != '\r') line.write(c);
+    }
+    if (c == -1 && line.size() == 0) {
+      return null;
+    }
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private void readHeaderLine(String line) throws UnsupportedOperationException {
+    if (line.contains("bits:")) {
+      bits = Integer.parseInt(getSecondValue(line));
+    }
+    if (line.contains("Min label")) {
+      minLabel = Float.parseFloat(getSecondValue(line));
+    }
+    if (line.contains("Max label")) {
+      maxLabel = Float.parseFloat(getSecondValue(line));
+    }
+    if (line.contains("ngram")) {
+      ngram = intOrZero(getSecondValue(line));
+      if (ngram != 0) {
+        throw new UnsupportedOperationException("ngrams are not supported yet");
+      }
+    }
+    if (line.contains("skip")) {
+      skip = intOrZero(getSecondValue(line));
+      if (skip != 0) {
+        throw new UnsupportedOperationException("skip is not supported yet");
+      }
+    }
+
+    if (line.contains("options")) {
+      extractOptions(
+          line.split(":", 2)[1],
+          (key, value) -> {
+            if (key.equals("--oaa")) {
+              oaa = Integer.parseInt(value);
+
+              multiClassBits = 0;
+              int ml = oaa - 1;
+              while (ml > 0) {
+                multiClassBits++;
+                ml >>= 1;
+              }
+            }
+            if (key.equals("--cubic")) {
+              if (value.contains(":")) {
+                throw new UnsupportedOperationException("Any to any cubic interactions are not yet supported");
+              } else if (value.charAt(0) == value.charAt(1)
+                      || value.charAt(0) == value.charAt(2)
+                      || value.charAt(1) == value.charAt(2)) {
+                throw new UnsupportedOperationException("Cubic interactions within the same namespace are not yet supported");
+              } else {
+                cubic.computeIfAbsent(value.charAt(0), k -> new HashMap<>())
+                        .computeIfAbsent(value.charAt(1), k -> new HashSet<>())
+                        .add(value.charAt(2));
+              }
+            }
+            if (key.equals("--link")) {
+              switch (value) {
+                case "logistic":
+                  this.link = this.logistic;
+                  break;
+                case "identity":
+                  this.link = this.identity;
+                  break;
+                case "poisson":
+                  this.link = this.poisson;
+                  break;
+                case "glf1":
+                  this.link = this.glf1;
+                  break;
+                default:
+                  throw new UnsupportedOperationException(
+                      "only --link identity, logistic, glf1, or poisson are supported "
+                          + value);
+              }
+            }
+
+            if (key.equals("--hash_seed")) {
+              seed = Integer.parseInt(value);
+            }
+            if (key.equals("--hash")) {
+              if (value.equals("all")) {
+                hashAll = true;
+              }
+            }
+            if (key.equals("--quadratic")) {
+              if (value.equals("::")) {
+                // TODO: the way we do permutation differs from the way we do permutations
+                // TODO: the results will differ
+                /*
+
+                from vw
+                echo '1 |aa x:1 y:2 ' | vw -f x.bin -a -q :: 2>&1 | grep Constant | tr "\t" "\n" | sort
+                aa^x*aa^x:113732:1:0@0
+                aa^x*aa^y:189809:2:0@0
+                aa^x:63954:1:0@0
+                aa^y*aa^y:125762:4:0@0
+                aa^y:237799:2:0@0
+
+                and we generate
+                aa^x:63954:1:0.000000
+                aa^y:237799:1:0.000000
+                aa^x*aa^x:113732:1:0.000000
+                aa^x*aa^y:189809:1:0.000000
+                aa^y*aa^x:176759:1:0.000000
+                aa^y*aa^y:125762:1:0.000000
+                 */
+                quadraticAnyToAny = true;
+              } else {
+                  quadratic
+                          .computeIfAbsent(value.charAt(0), k -> new HashSet<>())
+                          .add(value.charAt(1));
+              }
+            }
+            // TODO: ngrams, skips
+            // TODO: lda
+          });
+    }
+  }
+
+  /**
+   * Writes the model in turtle's binary format, which can be loaded without parsing with
+   * loadBinaryModel(), all fields are little endian:
+   *
+   * <pre>
+   *   magic "TURTLEBM"
+   *   int version
+   *   int bits
+   *   int oaa
+   *   int hash seed
+   *   byte 1 if --hash all
+   *   byte 1 if -q ::
+   *   byte link 0: identity 1: logistic 2: glf1 3: poisson
+   *   byte reserved
+   *   float min label
+   *   float max label
+   *   long CRC32 of the weights
+   *   long offset of the weights in the file
+   *   int number of -q pairs, followed by 2 chars per pair
+   *   int number of --cubic triples, followed by 3 chars per triple
+   *   padding up to the weights offset, which is multiple of 4096
+   *   2**bits floats, the weight of every bucket
+   * </pre>
+   *
+   * The model is written to a temporary file next to file, which then replaces file atomically, so
+   * models that have the old file memory mapped keep working.
+   *
+   * @param file where to write the model
+   * @throws IOException if writing fails
+   */
+  public void saveBinaryModel(File file) throws IOException {
+    List<char[]> pairs = new ArrayList<>();
+    quadratic.forEach((a, bSet) -> bSet.forEach(b -> pairs.add(new char[] {a, b})));
+    List<char[]> triples = new ArrayList<>();
+    cubic.forEach(
+        (a, bMap) ->
+            bMap.forEach((b, cSet) -> cSet.forEach(c -> triples.add(new char[] {a, b, c}))));
+
+    int headerSize = BINARY_FIXED_HEADER + 4 + pairs.size() * 4 + 4 + triples.size() * 6;
+    long offset = ((headerSize + BINARY_ALIGN - 1) / BINARY_ALIGN) * BINARY_ALIGN;
+
+    // truncating a mapped file makes the next weight read of the model that maps it crash
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+    try {
+      writeBinaryModel(tmp, offset, pairs, triples);
+      Files.move(
+          tmp.toPath(),
+          file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private void writeBinaryModel(File file, long offset, List<char[]> pairs, List<char[]> triples)
+      throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      CRC32 crc = new CRC32();
+      channel.position(offset);
+      for (int i = 0; i < weights.size(); i++) {
+        buf.putFloat(weights.get(i));
+        if (!buf.hasRemaining()) {
+          writeFully(channel, buf, crc);
+        }
+      }
+      writeFully(channel, buf, crc);
+
+      ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(BINARY_MAGIC);
+      header.putInt(BINARY_VERSION);
+      header.putInt(bits);
+      header.putInt(oaa);
+      header.putInt(seed);
+      header.put((byte) (hashAll ? 1 : 0));
+      header.put((byte) (quadraticAnyToAny ? 1 : 0));
+      header.put((byte) linkId());
+      header.put((byte) 0);
+      header.putFloat(minLabel);
+      header.putFloat(maxLabel);
+      header.putLong(crc.getValue());
+      header.putLong(offset);
+      header.putInt(pairs.size());
+      for (char[] pair : pairs) {
+        header.putChar(pair[0]).putChar(pair[1]);
+      }
+      header.putInt(triples.size());
+      for (char[] triple : triples) {
+        header.putChar(triple[0]).putChar(triple[1]).putChar(triple[2]);
+      }
+      header.position(header.capacity());
+      channel.position(0);
+      writeFully(channel, header, null);
+      channel.force(true);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf, CRC32 crc)
+      throws IOException {
+    buf.flip();
+    if (crc != null) {
+      crc.update(buf.array(), 0, buf.limit());
+    }
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    buf.clear();
+  }
+
+  /**
+   * Loads a model written with saveBinaryModel(), the weights are memory mapped, so loading takes
+   * the same time for any -b and the weights do not live on the java heap.
+   *
+   * @param file the binary model
+   * @param verifyChecksum read all the weights and compare them with the checksum in the header,
+   *     this makes loading as slow as reading the whole file
+   * @throws IOException if reading fails
+   * @throws IllegalStateException if the checksum does not match
+   * @throws UnsupportedOperationException if the file is not a binary model or has unknown version
+   */
+  public void loadBinaryModel(File file, boolean verifyChecksum)
+      throws IOException, IllegalStateException, UnsupportedOperationException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer fixed = ByteBuffer.allocate(BINARY_FIXED_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      while (fixed.hasRemaining() && channel.read(fixed) >= 0) {}
+      fixed.flip();
+      byte[] magic = new byte[BINARY_MAGIC.length];
+      if (fixed.remaining() < fixed.capacity()) {
+        throw new UnsupportedOperationException("not a binary model: " + file);
+      }
+      fixed.get(magic);
+      if (!Arrays.equals(magic, BINARY_MAGIC)) {
+        throw new UnsupportedOperationException("not a binary model: " + file);
+      }
+      int version = fixed.getInt();
+      if (version != BINARY_VERSION) {
+        throw new UnsupportedOperationException("unsupported binary model version " + version);
+      }
+      bits = fixed.getInt();
+      oaa = fixed.getInt();
+      seed = fixed.getInt();
+      hashAll = fixed.get() == 1;
+      quadraticAnyToAny = fixed.get() == 1;
+      link = linkOf(fixed.get());
+      fixed.get();
+      minLabel = fixed.getFloat();
+      maxLabel = fixed.getFloat();
+      long checksum = fixed.getLong();
+      long offset = fixed.getLong();
+
+      ByteBuffer header =
+          channel
+              .map(FileChannel.MapMode.READ_ONLY, fixed.capacity(), offset - fixed.capacity())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      quadratic = new HashMap<>();
+      int pairs = header.getInt();
+      for (int i = 0; i < pairs; i++) {
+        char a = header.getChar();
+        char b = header.getChar();
+        quadratic.computeIfAbsent(a, k -> new HashSet<>()).add(b);
+      }
+      cubic = new HashMap<>();
+      int triples = header.getInt();
+      for (int i = 0; i < triples; i++) {
+        char a = header.getChar();
+        char b = header.getChar();
+        char c = header.getChar();
+        cubic
+            .computeIfAbsent(a, k -> new HashMap<>())
+            .computeIfAbsent(b, k -> new HashSet<>())
+            .add(c);
+      }
+
+      multiClassBits = 0;
+      int ml = oaa - 1;
+      while (ml > 0) {
+        multiClassBits++;
+        ml >>= 1;
+      }
+      mask = (1 << bits) - 1;
+      weights = SegmentedWeights.mapped(channel, offset, 1 << bits);
+      compileInteractions();
+
+      if (verifyChecksum) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < weights.size(); i++) {
+          buf.putFloat(weights.get(i));
+          if (!buf.hasRemaining() || i == weights.size() - 1) {
+            crc.update(buf.array(), 0, buf.position());
+            buf.clear();
+          }
+        }
+        if (crc.getValue() != checksum) {
+          throw new IllegalStateException(
+              String.format(
+                  "checksum mismatch in %s, expected %d got %d", file, checksum, crc.getValue()));
+        }
+      }
     }
   }
 
+  public void loadBinaryModel(File file) throws IOException, UnsupportedOperationException {
+    loadBinaryModel(file, false);
+  }
+
+  /**
+   * @param file file to check
+   * @return true if the file starts with the magic of saveBinaryModel()
+   */
+  public static boolean isBinaryModel(File file) {
+    if (!file.isFile()) return false;
+    byte[] magic = new byte[BINARY_MAGIC.length];
+    try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+      is.readFully(magic);
+    } catch (IOException e) {
+      return false;
+    }
+    return Arrays.equals(magic, BINARY_MAGIC);
+  }
+
+  private int linkId() {
+    if (link == logistic) return 1;
+    if (link == glf1) return 2;
+    if (link == poisson) return 3;
+    return 0;
+  }
+
+  private DoubleUnaryOperator linkOf(int id) {
+    switch (id) {
+      case 0:
+        return identity;
+      case 1:
+        return logistic;
+      case 2:
+        return glf1;
+      case 3:
+        return poisson;
+      default:
+        throw new UnsupportedOperationException("unknown link in binary model " + id);
+    }
+  }
+
+  private void compileInteractions() {
+    plan = new InteractionPlan(quadratic, cubic);
+  }
+
   /**
    * Takes a file or directory and loads the model.
    *
@@ -316,33 +671,60 @@ public class ReadableModel {
    * </ul>
    *
    * If test.txt and predictions.txt exists it will automatically run makeSureItWorks() (or
-   * test.txt.gz, predictions.txt.gz readable_model.txt.gz)
+   * test.txt.gz, predictions.txt.gz readable_model.txt.gz). If there is readable_model.bin written
+   * with saveBinaryModel() it is used instead of readable_model.txt
    *
-   * <p>If you pass a file it will just load the model
+   * <p>If you pass a file it will just load the model, either readable or binary
    *
    * @param root file or directory to read from
    * @param hasIntercept model was built without --nocache option
    * @param probabilities if file is directory and predictions.txt exist, test there with normalized
    *     probabilities
+   * @param options how to store the weights, binary models are always memory mapped
    * @throws IOException if reading fails
    * @throws UnsupportedOperationException if the model was built with options we dont support yet
    */
-  public ReadableModel(File root, boolean hasIntercept, boolean probabilities)
+  public ReadableModel(File root, boolean hasIntercept, boolean probabilities, LoadOptions options)
       throws IOException, UnsupportedOperationException {
 
     this.hasIntercept = hasIntercept;
+    this.strategy = options.predictStrategy;
+    long start = System.nanoTime();
     if (root.isDirectory()) {
+      File binary = Paths.get(root.toString(), "readable_model.bin").toFile();
       File model = findFileWithExt(root, "readable_model.txt");
       File test = findFileWithExt(root, "test.txt");
       File predictions = findFileWithExt(root, "predictions.txt");
-      loadReadableModel(model);
+      if (isBinaryModel(binary)) {
+        loadBinaryModel(binary, options.verifyChecksum);
+      } else {
+        loadReadableModel(model, options);
+      }
+      loaded(options, start);
 
       if (test.exists() && predictions.exists()) {
         makeSureItWorks(test, predictions, probabilities);
       }
+    } else if (isBinaryModel(root)) {
+      loadBinaryModel(root, options.verifyChecksum);
+      loaded(options, start);
     } else {
-      loadReadableModel(root);
+      loadReadableModel(root, options);
+      loaded(options, start);
     }
+    // after makeSureItWorks, so its predictions are not counted
+    this.metrics = options.metrics;
+  }
+
+  private void loaded(LoadOptions options, long startNanos) {
+    if (options.metrics != null) {
+      options.metrics.recordLoad(System.nanoTime() - startNanos);
+    }
+  }
+
+  public ReadableModel(File root, boolean hasIntercept, boolean probabilities)
+      throws IOException, UnsupportedOperationException {
+    this(root, hasIntercept, probabilities, new LoadOptions());
   }
 
   public ReadableModel(InputStream is) throws IOException, UnsupportedOperationException {
@@ -351,9 +733,18 @@ public class ReadableModel {
 
   public ReadableModel(InputStream is, boolean hasIntercept)
       throws IOException, UnsupportedOperationException {
+    this(is, hasIntercept, new LoadOptions());
+  }
+
+  public ReadableModel(InputStream is, boolean hasIntercept, LoadOptions options)
+      throws IOException, UnsupportedOperationException {
 
     this.hasIntercept = hasIntercept;
-    loadReadableModel(is);
+    this.strategy = options.predictStrategy;
+    long start = System.nanoTime();
+    loadReadableModel(is, options);
+    loaded(options, start);
+    this.metrics = options.metrics;
   }
 
   public ReadableModel(URL root, boolean hasIntercept)
@@ -374,6 +765,19 @@ public class ReadableModel {
     this(root, true, false);
   }
 
+  /**
+   * parse one line of vw input, the label and tag are ignored
+   *
+   * @param testLine label |ns f:value f f f |ns2 ...
+   * @param probabilities request normalized probabilities
+   * @return request with all the namespaces and features on the line
+   */
+  static PredictionRequest parseTestLine(String testLine, boolean probabilities) {
+    ExampleParser parser = new ExampleParser();
+    parser.probabilities = probabilities;
+    return parser.parse(testLine);
+  }
+
   /**
    * read the test file and pred file and try to do the same predictions
    *
@@ -390,38 +794,14 @@ public class ReadableModel {
     BufferedReader brPred = new BufferedReader(new InputStreamReader(predictionsInputStream));
 
     int lineNum = 0;
+    ExampleParser parser = new ExampleParser();
+    parser.probabilities = probabilities;
     try {
       String testLine;
       String predLine;
 
       while ((testLine = brTest.readLine()) != null && ((predLine = brPred.readLine()) != null)) {
-        String[] test = testLine.split("\\s+");
-        PredictionRequest predictionRequest = new PredictionRequest();
-        predictionRequest.probabilities = probabilities;
-        boolean hasNamespace = false;
-        for (int i = 0; i < test.length; i++) {
-          // label |ns f:value f f f \ns
-          if (test[i].startsWith("|")) {
-            hasNamespace = true;
-            String ns = test[i].replaceFirst("\\|", "");
-            predictionRequest.namespaces.add(new Namespace(ns));
-          } else if (hasNamespace) {
-
-            float weight = 1;
-            String feature = test[i];
-            if (test[i].contains(":")) {
-              String[] s = test[i].split(":");
-              feature = s[0];
-              weight = Float.parseFloat(s[1]);
-            }
-
-            predictionRequest
-                .namespaces
-                .get(predictionRequest.namespaces.size() - 1)
-                .features
-                .add(new Feature(feature, weight));
-          }
-        }
+        PredictionRequest predictionRequest = parser.parse(testLine);
         float[] ourPrediction = predict(predictionRequest);
 
         // ran with --probabilities for -oaa
@@ -491,6 +871,57 @@ public class ReadableModel {
     return ((featureHash << multiClassBits) | klass) & mask;
   }
 
+  /**
+   * result[klass] += value * weight of (featureHash, klass) for all classes. The low multiClassBits
+   * of the bucket are the class, so for --oaa the weights of all classes are next to each other
+   * and are added in one block, unless -b is too small and they wrap past the mask
+   */
+  private void addWeights(float[] result, int featureHash, float value) {
+    int bucket = (featureHash << multiClassBits) & mask;
+    if (bucket + oaa - 1 <= mask) {
+      weights.addTo(result, bucket, oaa, value);
+    } else {
+      for (int klass = 0; klass < oaa; klass++) {
+        result[klass] += value * weights.get(getBucket(featureHash, klass));
+      }
+    }
+  }
+
+  /**
+   * like addWeights, but with a gather buffer the bucket is only collected for gatherWeights. If
+   * the classes wrap past the mask the collected buckets are read first, so the additions stay in
+   * the order of DIRECT
+   */
+  private void addWeights(float[] result, BucketBuffer gather, int featureHash, float value) {
+    if (gather == null) {
+      addWeights(result, featureHash, value);
+      return;
+    }
+    int bucket = (featureHash << multiClassBits) & mask;
+    if (bucket + oaa - 1 <= mask) {
+      gather.add(bucket, value);
+    } else {
+      gatherWeights(result, gather);
+      gather.clear();
+      addWeights(result, featureHash, value);
+    }
+  }
+
+  /** @return the cleared gather buffer of this thread, null with the DIRECT strategy */
+  private BucketBuffer bucketBuffer() {
+    if (strategy == PredictStrategy.DIRECT) return null;
+    BucketBuffer gather = BUCKETS.get();
+    gather.clear();
+    return gather;
+  }
+
+  /** second phase of the TWO_PHASE strategies, reads the weights of all collected buckets */
+  private void gatherWeights(float[] result, BucketBuffer gather) {
+    if (gather == null) return;
+    if (strategy == PredictStrategy.TWO_PHASE_SORTED) gather.sortByBucket();
+    weights.gather(result, gather.buckets, gather.values, gather.size, oaa);
+  }
+
   /**
    * @param mmNamespaceHash the namespace hash, as given by namespaceHashOf(namespace, seed)
    * @param feature the feature to compute hash of
@@ -500,13 +931,34 @@ public class ReadableModel {
    */
   public int featureHashOf(int mmNamespaceHash, FeatureInterface feature) {
     if (hashAll) {
-      return VWMurmur.hash(feature.getBytes(), mmNamespaceHash);
+      return feature.hashName(mmNamespaceHash);
     } else {
       if (feature.hasIntegerName()) return feature.getIntegerName() + mmNamespaceHash;
-      return VWMurmur.hash(feature.getBytes(), mmNamespaceHash);
+      return feature.hashName(mmNamespaceHash);
     }
   }
 
+  /**
+   * @param metrics counters of predict(float[], PredictionRequest, ...), null to stop counting
+   */
+  public void setMetrics(ModelMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** @param strategy how predict(PredictionRequest) reads the weights, DIRECT by default */
+  public void setPredictStrategy(PredictStrategy strategy) {
+    this.strategy = strategy;
+  }
+
+  public PredictStrategy getPredictStrategy() {
+    return strategy;
+  }
+
+  /** @return the metrics from LoadOptions or setMetrics(), null if none */
+  public ModelMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * @param namespace the namespace to compute the hash of
    * @param seed the seed used to build the model (usually 0, unless you pass --hash_seed to vw)
@@ -531,6 +983,10 @@ public class ReadableModel {
     return result;
   }
 
+  Weights getWeights() {
+    return weights;
+  }
+
   /**
    * really usefull if you want to score a list of items and dont want to be in the mercy of escape
    * analysis
@@ -573,32 +1029,41 @@ public class ReadableModel {
 
   private void interact(
       float[] result,
+      BucketBuffer gather,
       Namespace ans,
       FeatureInterface a,
       Namespace bns,
       FeatureInterface b,
       Explanation explain) {
     int fnv = ((a.getComputedHash() * FNV_prime) ^ b.getComputedHash());
+    if (explain == null) {
+      addWeights(result, gather, fnv, a.getValue() * b.getValue());
+      return;
+    }
     for (int klass = 0; klass < oaa; klass++) {
       int bucket = getBucket(fnv, klass);
       if (explain != null) {
-        explain.add(
-            String.format(
-                "%s^%s*%s^%s:%d:%d:%f",
-                ans.namespace,
-                a.getStringName(),
-                bns.namespace,
-                b.getStringName(),
-                bucket,
-                klass + 1,
-                weights[bucket]));
-        if (weights[bucket] == 0) {
+        if (explain.structured) {
+          explain.addQuadratic(ans, a, bns, b, bucket, klass, weights.get(bucket));
+        } else {
+          explain.add(
+              String.format(
+                  "%s^%s*%s^%s:%d:%d:%f",
+                  ans.namespace,
+                  a.getStringName(),
+                  bns.namespace,
+                  b.getStringName(),
+                  bucket,
+                  klass + 1,
+                  weights.get(bucket)));
+        }
+        if (weights.get(bucket) == 0) {
           explain.missingFeatures.add(1);
         }
         explain.featuresLookedUp.add(1);
       }
 
-      result[klass] += a.getValue() * b.getValue() * weights[bucket];
+      result[klass] += a.getValue() * b.getValue() * weights.get(bucket);
     }
   }
 
@@ -616,6 +1081,7 @@ public class ReadableModel {
    */
   private void interact3(
           float[] result,
+          BucketBuffer gather,
           Namespace ans,
           FeatureInterface a,
           Namespace bns,
@@ -624,28 +1090,36 @@ public class ReadableModel {
           FeatureInterface c,
           Explanation explain) {
     int fnv = (((a.getComputedHash() * FNV_prime) ^ b.getComputedHash()) * FNV_prime) ^ c.getComputedHash();
+    if (explain == null) {
+      addWeights(result, gather, fnv, a.getValue() * b.getValue() * c.getValue());
+      return;
+    }
     for (int klass = 0; klass < oaa; klass++) {
       int bucket = getBucket(fnv, klass);
       if (explain != null) {
-        explain.add(
-                String.format(
-                        "%s^%s*%s^%s*%s^%s:%d:%d:%f",
-                        ans.namespace,
-                        a.getStringName(),
-                        bns.namespace,
-                        b.getStringName(),
-                        cns.namespace,
-                        c.getStringName(),
-                        bucket,
-                        klass + 1,
-                        weights[bucket]));
-        if (weights[bucket] == 0) {
+        if (explain.structured) {
+          explain.addCubic(ans, a, bns, b, cns, c, bucket, klass, weights.get(bucket));
+        } else {
+          explain.add(
+                  String.format(
+                          "%s^%s*%s^%s*%s^%s:%d:%d:%f",
+                          ans.namespace,
+                          a.getStringName(),
+                          bns.namespace,
+                          b.getStringName(),
+                          cns.namespace,
+                          c.getStringName(),
+                          bucket,
+                          klass + 1,
+                          weights.get(bucket)));
+        }
+        if (weights.get(bucket) == 0) {
           explain.missingFeatures.add(1);
         }
         explain.featuresLookedUp.add(1);
       }
 
-      result[klass] += a.getValue() * b.getValue() * c.getValue() * weights[bucket];
+      result[klass] += a.getValue() * b.getValue() * c.getValue() * weights.get(bucket);
     }
   }
 
@@ -659,6 +1133,9 @@ public class ReadableModel {
   }
 
   /**
+   * Does not allocate as long as explain is null and the comparator is the default one, so it is safe
+   * to call it millions of times per second with reused requests and result arrays.
+   *
    * @param result place to put result in (@see getReusableFloatArray)
    * @param input PredictionRequest to evaluate
    * @param explain Explanation if you want to get some debug information about the prediction query
@@ -666,172 +1143,755 @@ public class ReadableModel {
    */
   public void predict(float[] result, PredictionRequest input, Explanation explain,
                       Comparator<FeatureInterface> featureComparator) {
+    ModelMetrics m = metrics;
+    if (m == null) {
+      predictUnmetered(result, input, explain, featureComparator);
+      return;
+    }
+    Explanation sample = explain == null ? m.sample() : null;
+    if (sample != null) {
+      // counting pass, it is slower so it is kept out of the latency
+      try {
+        predictUnmetered(result, input, sample, featureComparator);
+        m.recordLookups(sample);
+      } finally {
+        // it is per thread, a failed prediction must not leave lookups for the next sample
+        sample.clear();
+      }
+    }
+    long start = System.nanoTime();
+    predictUnmetered(result, input, explain, featureComparator);
+    m.record(input, System.nanoTime() - start);
+  }
+
+  /** predict with an explanation, without counting it in the metrics */
+  void explain(float[] result, PredictionRequest input, Explanation explain) {
+    predictUnmetered(result, input, explain, NOOP_COMPARATOR);
+  }
+
+  private void predictUnmetered(float[] result, PredictionRequest input, Explanation explain,
+                                Comparator<FeatureInterface> featureComparator) {
     for (int klass = 0; klass < oaa; klass++) result[klass] = 0;
 
     // TODO: ngrams skips
 
-    input.namespaces.forEach(
-        n -> {
-          n.features.sort(featureComparator);
-          if (!n.hashIsComputed) {
-            int namespaceHash = n.namespace.length() == 0 ? 0 : namespaceHashOf(n, seed);
-            n.computedHashValue = namespaceHash;
-            n.hashIsComputed = true;
+    BucketBuffer gather = explain == null ? bucketBuffer() : null;
+    addLinear(result, gather, input.namespaces, explain, featureComparator);
+    addQuadratic(result, gather, input.namespaces, explain);
+    addCubic(result, gather, input.namespaces, explain);
+    addIntercept(result, gather, explain);
+    gatherWeights(result, gather);
+    finish(result, input.probabilities, explain);
+  }
+
+  /**
+   * clipped scores before the link function and normalization, what vw -r writes
+   *
+   * @param result place to put result in (@see getReusableFloatArray)
+   * @param input PredictionRequest to evaluate
+   */
+  void predictRaw(float[] result, PredictionRequest input) {
+    score(result, input);
+    clip(result);
+  }
+
+  /** unclipped scores of all classes */
+  private void score(float[] result, PredictionRequest input) {
+    for (int klass = 0; klass < oaa; klass++) result[klass] = 0;
+    BucketBuffer gather = bucketBuffer();
+    addLinear(result, gather, input.namespaces, null, NOOP_COMPARATOR);
+    addQuadratic(result, gather, input.namespaces, null);
+    addCubic(result, gather, input.namespaces, null);
+    addIntercept(result, gather, null);
+    gatherWeights(result, gather);
+  }
+
+  /**
+   * @param input PredictionRequest to evaluate
+   * @param k how many classes
+   * @param classesOut the best classes, 0 based like the index in predict's result
+   * @param scoresOut the prediction of each class in classesOut
+   * @return number of classes written, min(k, classes)
+   * @see #predictTopK(float[], PredictionRequest, int, int[], float[])
+   */
+  public int predictTopK(PredictionRequest input, int k, int[] classesOut, float[] scoresOut) {
+    return predictTopK(getReusableFloatArray(), input, k, classesOut, scoresOut);
+  }
+
+  /**
+   * The best k classes, ordered by prediction, same values as predict(input) at those classes.
+   * Only the k classes go through the link function, the link functions and clipping keep the
+   * order, so the classes are picked on the raw scores with a small heap. With probabilities every
+   * class still needs the logistic for the normalization sum. Ties go to the lower class.
+   *
+   * @param scratch float[classes] for the raw scores (@see getReusableFloatArray), then it does not
+   *     allocate
+   * @param input PredictionRequest to evaluate
+   * @param k how many classes
+   * @param classesOut the best classes, 0 based like the index in predict's result
+   * @param scoresOut the prediction of each class in classesOut
+   * @return number of classes written, min(k, classes)
+   */
+  public int predictTopK(
+      float[] scratch, PredictionRequest input, int k, int[] classesOut, float[] scoresOut) {
+    score(scratch, input);
+
+    // min heap in the output arrays, the root is the worst of the best so far
+    int n = 0;
+    for (int klass = 0; klass < oaa; klass++) {
+      float v = clip(scratch[klass]);
+      if (n < k) {
+        classesOut[n] = klass;
+        scoresOut[n] = v;
+        siftUp(classesOut, scoresOut, n++);
+      } else if (n > 0 && v > scoresOut[0]) {
+        classesOut[0] = klass;
+        scoresOut[0] = v;
+        siftDown(classesOut, scoresOut, 0, n);
+      }
+    }
+    // heap sort, taking the worst out to the end leaves them best first
+    for (int end = n - 1; end > 0; end--) {
+      swap(classesOut, scoresOut, 0, end);
+      siftDown(classesOut, scoresOut, 0, end);
+    }
+
+    if (input.probabilities) {
+      float sum = 0;
+      for (int klass = 0; klass < oaa; klass++) {
+        sum += (float) logistic.applyAsDouble(clip(scratch[klass]));
+      }
+      for (int i = 0; i < n; i++) {
+        float p = (float) logistic.applyAsDouble(scoresOut[i]);
+        scoresOut[i] = oaa > 1 ? p / sum : p;
+      }
+    } else {
+      for (int i = 0; i < n; i++) {
+        scoresOut[i] = (float) link.applyAsDouble(scoresOut[i]);
+      }
+    }
+    return n;
+  }
+
+  /** heap order, a is worse than b if it has lower score, or same score and higher class */
+  private static boolean worse(int[] classes, float[] scores, int a, int b) {
+    return scores[a] < scores[b] || (scores[a] == scores[b] && classes[a] > classes[b]);
+  }
+
+  private static void siftUp(int[] classes, float[] scores, int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!worse(classes, scores, i, parent)) break;
+      swap(classes, scores, i, parent);
+      i = parent;
+    }
+  }
+
+  private static void siftDown(int[] classes, float[] scores, int i, int n) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= n) break;
+      if (child + 1 < n && worse(classes, scores, child + 1, child)) child++;
+      if (!worse(classes, scores, child, i)) break;
+      swap(classes, scores, i, child);
+      i = child;
+    }
+  }
+
+  private static void swap(int[] classes, float[] scores, int a, int b) {
+    int c = classes[a];
+    classes[a] = classes[b];
+    classes[b] = c;
+    float s = scores[a];
+    scores[a] = scores[b];
+    scores[b] = s;
+  }
+
+  /**
+   * Scores many items against one shared context, e.g. all the candidates for one user, same as
+   * calling prepare() once and predict(context, item, result) for each item.
+   *
+   * <p>The result for each item is the same as predict() on a request with the shared namespaces
+   * and the item namespaces together
+   *
+   * @param shared namespaces shared between all items, shared.probabilities applies to all items
+   * @param items item specific namespaces, one PredictionRequest per item
+   * @param result place to put result in, result[i] is for items.get(i) (@see
+   *     getReusableFloatArray)
+   */
+  public void predictBatch(PredictionRequest shared, List<PredictionRequest> items, float[][] result) {
+    PreparedContext context = prepare(shared);
+    for (int i = 0; i < items.size(); i++) {
+      predict(context, items.get(i), result[i]);
+    }
+  }
+
+  /**
+   * @param shared namespaces shared between all items
+   * @param items item specific namespaces, one PredictionRequest per item
+   * @return prediction per class, per item
+   */
+  public float[][] predictBatch(PredictionRequest shared, List<PredictionRequest> items) {
+    float[][] result = new float[items.size()][];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = getReusableFloatArray();
+    }
+    predictBatch(shared, items, result);
+    return result;
+  }
+
+  /**
+   * Hashes the shared namespaces and computes everything that depends only on them: the linear part,
+   * the interactions between them and the intercept. For the interactions with item namespaces it
+   * keeps the hashes already multiplied for the left side of the -q and --cubic pairs.
+   *
+   * <p>Note: if the model has -q interactions, shared.namespaces is sorted in place, same as
+   * predict() does
+   *
+   * @param shared namespaces shared between many predictions (user, context..)
+   * @return context to use with predict(context, item, result) on this model
+   */
+  public PreparedContext prepare(PredictionRequest shared) {
+    float[] base = getReusableFloatArray();
+    addLinear(base, null, shared.namespaces, null, NOOP_COMPARATOR);
+    addQuadratic(base, null, shared.namespaces, null);
+    addIntercept(base, null, null);
+
+    FeatureColumns columns = new FeatureColumns();
+    for (int i = 0; i < shared.namespaces.size(); i++) {
+      columns.add(shared.namespaces.get(i));
+    }
+
+    int triples = plan.tripleCount();
+    float[][] sharedTriples = new float[triples][];
+    int[][] pairHash = new int[triples][];
+    float[][] pairValue = new float[triples][];
+    int[] last = lastBySlot(columns, columns.size, null, columns.slots(plan.slotCount()));
+    for (int t = 0; t < triples; t++) {
+      int a = last[plan.triples[t * 3]];
+      int b = last[plan.triples[t * 3 + 1]];
+      if (a < 0 || b < 0) continue;
+
+      int n = 0;
+      pairHash[t] = new int[featureCount(columns, a) * featureCount(columns, b)];
+      pairValue[t] = new float[pairHash[t].length];
+      for (int ii = columns.start[a]; ii < columns.start[a + 1]; ii++) {
+        for (int jj = columns.start[b]; jj < columns.start[b + 1]; jj++) {
+          pairHash[t][n] = (columns.leftHash[ii] ^ columns.hash[jj]) * FNV_prime;
+          pairValue[t][n] = columns.value[ii] * columns.value[jj];
+          n++;
+        }
+      }
+
+      int c = last[plan.triples[t * 3 + 2]];
+      if (c < 0) continue;
+      sharedTriples[t] = getReusableFloatArray();
+      interactPairs(sharedTriples[t], pairHash[t], pairValue[t], columns, c);
+    }
+
+    return new PreparedContext(
+        this, shared.probabilities, base, columns, sharedTriples, pairHash, pairValue);
+  }
+
+  /**
+   * Same result as predict() on a request with the namespaces of the context and the item together,
+   * without hashing or scoring the context namespaces again.
+   *
+   * @param context shared namespaces, from prepare() on this model
+   * @param item item specific namespaces, context.probabilities is used for the output
+   * @param result place to put result in (@see getReusableFloatArray)
+   */
+  public void predict(PreparedContext context, PredictionRequest item, float[] result) {
+    if (context.model != this) {
+      throw new IllegalArgumentException("the context was prepared with another model");
+    }
+    System.arraycopy(context.base, 0, result, 0, oaa);
+    addLinear(result, null, item.namespaces, null, NOOP_COMPARATOR);
+
+    FeatureColumns shared = context.columns;
+    FeatureColumns items = ITEM_COLUMNS.get();
+    items.clear();
+    for (int i = 0; i < item.namespaces.size(); i++) {
+      items.add(item.namespaces.get(i));
+    }
+
+    // shared namespaces are 0..shared.size and item namespaces are shared.size..n in order
+    int n = shared.size + items.size;
+    int[] order = items.order(n);
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+
+    if (quadraticAnyToAny) {
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j < n; j++) {
+          if (i < shared.size && j < shared.size) continue;
+          interactColumns(result, columnsOf(shared, items, i), indexOf(shared, i),
+                  columnsOf(shared, items, j), indexOf(shared, j), false);
+        }
+      }
+    } else if (plan.hasQuadratic()) {
+      sortByName(order, n, shared, items);
+      for (int p = 0; p < n; p++) {
+        int i = order[p];
+        FeatureColumns ac = columnsOf(shared, items, i);
+        char a = ac.first[indexOf(shared, i)];
+        char[] interactStartingWith = plan.quadraticWith(a);
+        if (interactStartingWith == null) continue;
+
+        for (char inter : interactStartingWith) {
+          // same order and filtering as addQuadratic
+          int startFrom = a > inter ? 0 : p;
+          for (int q = startFrom; q < n; q++) {
+            int j = order[q];
+            if (i < shared.size && j < shared.size) continue;
+            FeatureColumns bc = columnsOf(shared, items, j);
+            if (bc.first[indexOf(shared, j)] != inter) continue;
+            interactColumns(result, ac, indexOf(shared, i), bc, indexOf(shared, j), a == inter);
           }
+        }
+      }
+    }
 
-          n.features.forEach(
-              f -> {
-                if (!f.isHashComputed()) {
-                  int featureHash = featureHashOf(n.computedHashValue, f);
-                  f.setComputedHash(featureHash);
-                }
-                for (int klass = 0; klass < oaa; klass++) {
-                  int bucket = getBucket(f.getComputedHash(), klass);
-                  if (explain != null) {
-                    explain.add(
-                        String.format(
-                            "%s^%s:%d:%d:%f",
-                            n.namespace, f.getStringName(), bucket, klass + 1, weights[bucket]));
-                    if (weights[bucket] == 0) {
-                      explain.missingFeatures.add(1);
-                    }
-                    explain.featuresLookedUp.add(1);
-                  }
-                  result[klass] += f.getValue() * weights[bucket];
-                }
-              });
-        });
-
-    if (quadratic.size() > 0 || quadraticAnyToAny) {
-
-      // foreach namespace nsA
-      //    foreach interacting namespaces nsB
-      //       foreach nsA.features a
-      //         foreach nsB.feature b
-      //            bucket = ((a.computedHashValue * FNV_prime) ^ b.computedHashValue);
-
-      if (quadraticAnyToAny) {
-        input.namespaces.forEach(
-            ans ->
-                input.namespaces.forEach(
-                    bns -> {
-                      ans.features.forEach(
-                          a -> {
-                            bns.features.forEach(
-                                b -> {
-                                  interact(result, ans, a, bns, b, explain);
-                                });
-                          });
-                    }));
+    int[] last =
+        plan.tripleCount() == 0 ? null : lastBySlot(shared, n, items, items.slots(plan.slotCount()));
+    for (int t = 0; t < plan.tripleCount(); t++) {
+      int a = last[plan.triples[t * 3]];
+      if (a < 0) continue;
+      int b = last[plan.triples[t * 3 + 1]];
+      if (b < 0) continue;
+      int c = last[plan.triples[t * 3 + 2]];
+      if (c < 0) continue;
+
+      if (a < shared.size && b < shared.size) {
+        if (c < shared.size) {
+          float[] precomputed = context.sharedTriples[t];
+          for (int klass = 0; klass < oaa; klass++) {
+            result[klass] += precomputed[klass];
+          }
+        } else {
+          interactPairs(result, context.pairHash[t], context.pairValue[t], items, c - shared.size);
+        }
       } else {
-        input.namespaces.sort(new Comparator<Namespace>() {
-          @Override
-          public int compare(Namespace o1, Namespace o2) {
-            return compare(o1.namespace, o2.namespace);
+        interactColumns3(
+            result,
+            columnsOf(shared, items, a), indexOf(shared, a),
+            columnsOf(shared, items, b), indexOf(shared, b),
+            columnsOf(shared, items, c), indexOf(shared, c));
+      }
+    }
+
+    finish(result, context.probabilities, null);
+  }
+
+  /** @return hasher with the same --hash_seed and --hash mode as this model */
+  public FeatureHasher getFeatureHasher() {
+    return new FeatureHasher(seed, hashAll);
+  }
+
+  /**
+   * hashes the request and converts it to HashedRequest, with the namespaces in the order
+   * predict() uses them
+   *
+   * <p>Note: if the model has -q interactions, input.namespaces is sorted in place, same as
+   * predict() does
+   *
+   * @param input request to convert
+   * @return new HashedRequest that predicts the same as input
+   */
+  public HashedRequest hashed(PredictionRequest input) {
+    if (sortsNamespaces()) {
+      input.namespaces.sort(NAMESPACE_COMPARATOR);
+    }
+    HashedRequest hashed = new HashedRequest();
+    hashed.probabilities = input.probabilities;
+    hashInto(input.namespaces, hashed);
+    return hashed;
+  }
+
+  /** @return true if predict sorts the namespaces by name, because of -q interactions */
+  boolean sortsNamespaces() {
+    return !quadraticAnyToAny && plan.hasQuadratic();
+  }
+
+  /**
+   * appends the namespaces to out in the given order, computing the hashes that are not cached on
+   * them yet
+   */
+  void hashInto(List<Namespace> namespaces, HashedRequest out) {
+    for (int i = 0; i < namespaces.size(); i++) {
+      Namespace n = namespaces.get(i);
+      computeHashes(n);
+      out.columns.add(n);
+    }
+  }
+
+  /**
+   * like hashInto, but the hashes cached on the namespaces and features are neither used nor
+   * written, so the request is only read
+   */
+  void hashUncachedInto(List<Namespace> namespaces, HashedRequest out) {
+    FeatureColumns c = out.columns;
+    for (int i = 0; i < namespaces.size(); i++) {
+      Namespace n = namespaces.get(i);
+      boolean unnamed = n.namespace.length() == 0;
+      int namespaceHash = unnamed ? 0 : namespaceHashOf(n, seed);
+      c.startNamespace(n, unnamed ? 0 : n.namespace.charAt(0));
+      List<FeatureInterface> features = n.features;
+      for (int fi = 0; fi < features.size(); fi++) {
+        FeatureInterface f = features.get(fi);
+        c.addFeature(featureHashOf(namespaceHash, f), f.getValue());
+      }
+    }
+  }
+
+  /**
+   * @param input pre hashed request
+   * @return prediction per class
+   */
+  public float[] predict(HashedRequest input) {
+    float[] out = getReusableFloatArray();
+    predict(input, out);
+    return out;
+  }
+
+  /**
+   * Same as predict(PredictionRequest) but with the hashes already computed, it does not allocate.
+   * Explanations are not supported since there are no names.
+   *
+   * @param input pre hashed request, namespaces in the order they were added
+   * @param result place to put result in (@see getReusableFloatArray)
+   */
+  public void predict(HashedRequest input, float[] result) {
+    for (int klass = 0; klass < oaa; klass++) result[klass] = 0;
+    FeatureColumns c = input.columns;
+
+    for (int ii = 0; ii < c.start[c.size]; ii++) {
+      float v = c.value[ii];
+      addWeights(result, c.hash[ii], v);
+    }
+
+    if (quadraticAnyToAny) {
+      for (int i = 0; i < c.size; i++) {
+        for (int j = 0; j < c.size; j++) {
+          interactColumns(result, c, i, c, j, false);
+        }
+      }
+    } else if (plan.hasQuadratic()) {
+      for (int i = 0; i < c.size; i++) {
+        char a = c.first[i];
+        char[] interactStartingWith = plan.quadraticWith(a);
+        if (interactStartingWith == null) continue;
+
+        for (char inter : interactStartingWith) {
+          // same order and filtering as addQuadratic
+          int startFrom = a > inter ? 0 : i;
+          for (int j = startFrom; j < c.size; j++) {
+            if (c.first[j] != inter) continue;
+            interactColumns(result, c, i, c, j, a == inter);
           }
+        }
+      }
+    }
 
-          private int compare(StringBuilder o1, StringBuilder o2) {
-            int len1 = o1.length();
-            int len2 = o2.length();
-            int lim = Math.min(len1, len2);
-            int k = 0;
-            while (k < lim) {
-              char c1 = o1.charAt(k);
-              char c2 = o2.charAt(k);
-              if (c1 != c2) {
-                return c1 - c2;
-              }
-              k++;
+    int[] last =
+        plan.tripleCount() == 0
+            ? null
+            : lastBySlot(c, c.size, null, ITEM_COLUMNS.get().slots(plan.slotCount()));
+    for (int t = 0; t < plan.tripleCount(); t++) {
+      int a = last[plan.triples[t * 3]];
+      if (a < 0) continue;
+      int b = last[plan.triples[t * 3 + 1]];
+      if (b < 0) continue;
+      int cn = last[plan.triples[t * 3 + 2]];
+      if (cn < 0) continue;
+      interactColumns3(result, c, a, c, b, c, cn);
+    }
+
+    addIntercept(result, null, null);
+    finish(result, input.probabilities, null);
+  }
+
+  private static FeatureColumns columnsOf(FeatureColumns shared, FeatureColumns items, int i) {
+    return i < shared.size ? shared : items;
+  }
+
+  private static int indexOf(FeatureColumns shared, int i) {
+    return i < shared.size ? i : i - shared.size;
+  }
+
+  private static int featureCount(FeatureColumns columns, int ns) {
+    return columns.start[ns + 1] - columns.start[ns];
+  }
+
+  /**
+   * when predict sorts the namespaces, it uses a stable sort, so the shared namespaces which are
+   * first stay before item namespaces with the same name
+   */
+  private static void sortByName(int[] order, int n, FeatureColumns shared, FeatureColumns items) {
+    for (int i = 1; i < n; i++) {
+      int x = order[i];
+      StringBuilder name = columnsOf(shared, items, x).namespaces[indexOf(shared, x)].namespace;
+      int j = i - 1;
+      while (j >= 0) {
+        int y = order[j];
+        StringBuilder other = columnsOf(shared, items, y).namespaces[indexOf(shared, y)].namespace;
+        if (compareNamespaces(other, name) <= 0) break;
+        order[j + 1] = y;
+        j--;
+      }
+      order[j + 1] = x;
+    }
+  }
+
+  /**
+   * for each cubic slot the index of the last namespace starting with its char in the combined
+   * namespaces, in the order predict walks them, or -1
+   *
+   * @param last scratch with space for plan.slotCount()
+   */
+  private int[] lastBySlot(FeatureColumns shared, int n, FeatureColumns items, int[] last) {
+    Arrays.fill(last, 0, plan.slotCount(), -1);
+    int[] order = items == null ? null : items.order;
+    boolean sorted = items != null && !quadraticAnyToAny && plan.hasQuadratic();
+    for (int p = 0; p < n; p++) {
+      int i = sorted ? order[p] : p;
+      int slot = plan.slotOf(columnsOf(shared, items, i).first[indexOf(shared, i)]);
+      if (slot >= 0) last[slot] = i;
+    }
+    return last;
+  }
+
+  /** same as putting all namespaces in a map by their first character, the last one wins */
+  private int[] lastBySlot(List<Namespace> namespaces) {
+    int[] last = ITEM_COLUMNS.get().slots(plan.slotCount());
+    Arrays.fill(last, 0, plan.slotCount(), -1);
+    for (int i = 0; i < namespaces.size(); i++) {
+      StringBuilder name = namespaces.get(i).namespace;
+      int slot = plan.slotOf(name.length() == 0 ? 0 : name.charAt(0));
+      if (slot >= 0) last[slot] = i;
+    }
+    return last;
+  }
+
+  private void interactColumns(
+      float[] result, FeatureColumns ac, int ans, FeatureColumns bc, int bns, boolean self) {
+    int bStart = bc.start[bns];
+    int bEnd = bc.start[bns + 1];
+    for (int ii = ac.start[ans]; ii < ac.start[ans + 1]; ii++) {
+      int left = ac.leftHash[ii];
+      float av = ac.value[ii];
+      int from = self ? bStart + (ii - ac.start[ans]) : bStart;
+      for (int jj = from; jj < bEnd; jj++) {
+        int fnv = left ^ bc.hash[jj];
+        float v = av * bc.value[jj];
+        addWeights(result, fnv, v);
+      }
+    }
+  }
+
+  private void interactColumns3(
+      float[] result,
+      FeatureColumns ac,
+      int ans,
+      FeatureColumns bc,
+      int bns,
+      FeatureColumns cc,
+      int cns) {
+    for (int ii = ac.start[ans]; ii < ac.start[ans + 1]; ii++) {
+      for (int jj = bc.start[bns]; jj < bc.start[bns + 1]; jj++) {
+        int pair = (ac.leftHash[ii] ^ bc.hash[jj]) * FNV_prime;
+        float pairValue = ac.value[ii] * bc.value[jj];
+        for (int kk = cc.start[cns]; kk < cc.start[cns + 1]; kk++) {
+          int fnv = pair ^ cc.hash[kk];
+          float v = pairValue * cc.value[kk];
+          addWeights(result, fnv, v);
+        }
+      }
+    }
+  }
+
+  private void interactPairs(
+      float[] result, int[] pairHash, float[] pairValue, FeatureColumns cc, int cns) {
+    for (int p = 0; p < pairHash.length; p++) {
+      for (int kk = cc.start[cns]; kk < cc.start[cns + 1]; kk++) {
+        int fnv = pairHash[p] ^ cc.hash[kk];
+        float v = pairValue[p] * cc.value[kk];
+        addWeights(result, fnv, v);
+      }
+    }
+  }
+
+  private void addLinear(float[] result, BucketBuffer gather, List<Namespace> namespaces,
+                         Explanation explain, Comparator<FeatureInterface> featureComparator) {
+    for (int i = 0; i < namespaces.size(); i++) {
+      Namespace n = namespaces.get(i);
+      if (featureComparator != NOOP_COMPARATOR) {
+        n.features.sort(featureComparator);
+      }
+      computeHashes(n);
+
+      List<FeatureInterface> features = n.features;
+      for (int fi = 0; fi < features.size(); fi++) {
+        FeatureInterface f = features.get(fi);
+        if (explain == null) {
+          addWeights(result, gather, f.getComputedHash(), f.getValue());
+          continue;
+        }
+        for (int klass = 0; klass < oaa; klass++) {
+          int bucket = getBucket(f.getComputedHash(), klass);
+          if (explain != null) {
+            if (explain.structured) {
+              explain.addLinear(n, f, bucket, klass, weights.get(bucket));
+            } else {
+              explain.add(
+                  String.format(
+                      "%s^%s:%d:%d:%f",
+                      n.namespace, f.getStringName(), bucket, klass + 1, weights.get(bucket)));
             }
-            return len1 - len2;
-          }
-        });
-
-        for (int i = 0; i < input.namespaces.size(); i++) {
-          Namespace ans = input.namespaces.get(i);
-          Set<Character> interactStartingWith = quadratic.get(ans.namespace.charAt(0));
-          if (interactStartingWith == null)
-            continue;
-          int finalI = i;
-          interactStartingWith.forEach(inter -> {
-            // We want to avoid double interactions of namespaces in the form of
-            // sl, ls. So what we do is:
-            // 1: sort the namespaces in the input
-            // 2: Check if the interaction was there previously with the other namespace, return if so
-            // 3: Check from the beginning of the namespaces list if not (2).
-            // 4: Continue from position `finalI` if the namespace is >= the current namespace according to
-            // the order in the sorted list of namespaces.
-            int startFrom = finalI;
-            if (ans.namespace.charAt(0) > inter) {
-              if (quadratic.getOrDefault(inter, EMPTY_SET).contains(ans.namespace.charAt(0))) {
-                return;
-              } else {
-                startFrom = 0;
-              }
+            if (weights.get(bucket) == 0) {
+              explain.missingFeatures.add(1);
             }
-            for (int j = startFrom; j < input.namespaces.size(); j++) {
-              Namespace bns = input.namespaces.get(j);
-              if (bns.namespace.charAt(0) == inter) {
-                // in case of self interaction of namespaces we want to filter out
-                // interactions of features in reverse order twice to be consistent with the filtering
-                // vw does itself:
-                // https://github.com/VowpalWabbit/vowpal_wabbit/wiki/Feature-interactions
-                if (ans.namespace.charAt(0) == inter) {
-                  for (int ii = 0; ii < ans.features.size(); ii++) {
-                    for (int jj = ii; jj < bns.features.size(); jj++) {
-                      interact(result, ans, ans.features.get(ii), bns, bns.features.get(jj),
-                              explain);
-                    }
-                  }
-                } else {
-                  ans.features.forEach(
-                          a -> bns.features.forEach(
-                                  b ->
-                                          interact(result, ans, a, bns, b, explain)));
+            explain.featuresLookedUp.add(1);
+          }
+          result[klass] += f.getValue() * weights.get(bucket);
+        }
+      }
+    }
+  }
+
+  private void computeHashes(Namespace n) {
+    if (!n.hashIsComputed) {
+      int namespaceHash = n.namespace.length() == 0 ? 0 : namespaceHashOf(n, seed);
+      n.computedHashValue = namespaceHash;
+      n.hashIsComputed = true;
+    }
+
+    List<FeatureInterface> features = n.features;
+    for (int fi = 0; fi < features.size(); fi++) {
+      FeatureInterface f = features.get(fi);
+      if (!f.isHashComputed()) {
+        int featureHash = featureHashOf(n.computedHashValue, f);
+        f.setComputedHash(featureHash);
+      }
+    }
+  }
+
+  /**
+   * foreach namespace nsA
+   *    foreach interacting namespaces nsB
+   *       foreach nsA.features a
+   *         foreach nsB.feature b
+   *            bucket = ((a.computedHashValue * FNV_prime) ^ b.computedHashValue);
+   */
+  private void addQuadratic(
+      float[] result, BucketBuffer gather, List<Namespace> namespaces, Explanation explain) {
+    if (quadraticAnyToAny) {
+      for (int i = 0; i < namespaces.size(); i++) {
+        Namespace ans = namespaces.get(i);
+        for (int j = 0; j < namespaces.size(); j++) {
+          interactAll(result, gather, ans, namespaces.get(j), explain);
+        }
+      }
+    } else if (plan.hasQuadratic()) {
+      namespaces.sort(NAMESPACE_COMPARATOR);
+
+      for (int i = 0; i < namespaces.size(); i++) {
+        Namespace ans = namespaces.get(i);
+        char a = ans.namespace.charAt(0);
+        char[] interactStartingWith = plan.quadraticWith(a);
+        if (interactStartingWith == null) continue;
+
+        for (char inter : interactStartingWith) {
+          // the namespaces are sorted, so anything interacting with a namespace that sorts after
+          // us is after i, reverse pairs that were already done are removed in InteractionPlan
+          int startFrom = a > inter ? 0 : i;
+          for (int j = startFrom; j < namespaces.size(); j++) {
+            Namespace bns = namespaces.get(j);
+            if (bns.namespace.charAt(0) != inter) continue;
+
+            if (a == inter) {
+              // in case of self interaction of namespaces we want to filter out
+              // interactions of features in reverse order twice to be consistent with the filtering
+              // vw does itself:
+              // https://github.com/VowpalWabbit/vowpal_wabbit/wiki/Feature-interactions
+              List<FeatureInterface> af = ans.features;
+              List<FeatureInterface> bf = bns.features;
+              for (int ii = 0; ii < af.size(); ii++) {
+                for (int jj = ii; jj < bf.size(); jj++) {
+                  interact(result, gather, ans, af.get(ii), bns, bf.get(jj), explain);
                 }
               }
+            } else {
+              interactAll(result, gather, ans, bns, explain);
             }
-          });
+          }
         }
       }
     }
+  }
 
-    if (cubic.size() > 0) {
-      Map<Character, Namespace> nsMap = new HashMap<>();
-      input.namespaces.stream().forEach(ns -> nsMap.put(ns.namespace.charAt(0), ns));
-      cubic.forEach((a, bMap) -> {
-        Namespace ans = nsMap.get(a);
-        if (ans == null) return;
-        bMap.forEach((b, cSet) -> {
-          Namespace bns = nsMap.get(b);
-          if (bns == null) return;
-          cSet.forEach(c -> {
-            Namespace cns = nsMap.get(c);
-            if (cns == null) return;
-            ans.features.forEach(
-                    af -> bns.features.forEach(
-                            bf -> cns.features.forEach(
-                                    cf -> interact3(result, ans, af, bns, bf, cns, cf, explain))));
-          });
-        });
-      });
+  private void addCubic(
+      float[] result, BucketBuffer gather, List<Namespace> namespaces, Explanation explain) {
+    if (plan.tripleCount() == 0) return;
+    int[] last = lastBySlot(namespaces);
+    for (int t = 0; t < plan.tripleCount(); t++) {
+      int a = last[plan.triples[t * 3]];
+      if (a < 0) continue;
+      int b = last[plan.triples[t * 3 + 1]];
+      if (b < 0) continue;
+      int c = last[plan.triples[t * 3 + 2]];
+      if (c < 0) continue;
+
+      interactAll3(
+          result, gather, namespaces.get(a), namespaces.get(b), namespaces.get(c), explain);
+    }
+  }
+
+  private void interactAll3(
+      float[] result,
+      BucketBuffer gather,
+      Namespace ans,
+      Namespace bns,
+      Namespace cns,
+      Explanation explain) {
+    List<FeatureInterface> af = ans.features;
+    List<FeatureInterface> bf = bns.features;
+    List<FeatureInterface> cf = cns.features;
+    for (int ii = 0; ii < af.size(); ii++) {
+      for (int jj = 0; jj < bf.size(); jj++) {
+        for (int kk = 0; kk < cf.size(); kk++) {
+          interact3(result, gather, ans, af.get(ii), bns, bf.get(jj), cns, cf.get(kk), explain);
+        }
+      }
     }
+  }
 
-    if (hasIntercept) {
+  private void addIntercept(float[] result, BucketBuffer gather, Explanation explain) {
+    if (hasIntercept && gather != null) {
+      addWeights(result, gather, intercept, 1);
+    } else if (hasIntercept) {
       for (int klass = 0; klass < oaa; klass++) {
         int bucket = getBucket(intercept, klass);
         if (explain != null) {
-          explain.add(String.format("%s:%d:%d:%f", "Constant", bucket, klass + 1, weights[bucket]));
-          if (weights[bucket] == 0) {
+          if (explain.structured) {
+            explain.addConstant(bucket, klass, weights.get(bucket));
+          } else {
+            explain.add(
+                String.format("%s:%d:%d:%f", "Constant", bucket, klass + 1, weights.get(bucket)));
+          }
+          if (weights.get(bucket) == 0) {
             explain.missingFeatures.add(1);
           }
           explain.featuresLookedUp.add(1);
         }
 
-        result[klass] += weights[bucket];
+        result[klass] += weights.get(bucket);
       }
     }
+  }
 
+  private void finish(float[] result, boolean probabilities, Explanation explain) {
     if (explain != null) {
       // uncliped unnormalized pred historuy
       for (int klass = 0; klass < oaa; klass++) {
@@ -839,7 +1899,7 @@ public class ReadableModel {
       }
     }
 
-    if (input.probabilities) {
+    if (probabilities) {
       this.clip(result);
       this.linkWith(result, this.logistic);
       if (this.oaa > 1) this.normalize(result);
@@ -849,6 +1909,34 @@ public class ReadableModel {
     }
   }
 
+  private void interactAll(
+      float[] result, BucketBuffer gather, Namespace ans, Namespace bns, Explanation explain) {
+    List<FeatureInterface> af = ans.features;
+    List<FeatureInterface> bf = bns.features;
+    for (int ii = 0; ii < af.size(); ii++) {
+      FeatureInterface a = af.get(ii);
+      for (int jj = 0; jj < bf.size(); jj++) {
+        interact(result, gather, ans, a, bns, bf.get(jj), explain);
+      }
+    }
+  }
+
+  private static int compareNamespaces(StringBuilder o1, StringBuilder o2) {
+    int len1 = o1.length();
+    int len2 = o2.length();
+    int lim = Math.min(len1, len2);
+    int k = 0;
+    while (k < lim) {
+      char c1 = o1.charAt(k);
+      char c2 = o2.charAt(k);
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+      k++;
+    }
+    return len1 - len2;
+  }
+
   protected void clip(float[] raw_out) {
     for (int klass = 0; klass < this.oaa; klass++) {
       raw_out[klass] = clip(raw_out[klass]);
@@ -0,0 +1,106 @@
+package bz.turtle.readable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Weights outside of the java heap, either in a memory mapped file or in direct buffers, so big
+ * models dont inflate the old gen and the heap does not have to be sized per model.
+ *
+ * <p>A single buffer can not be bigger than 2GB, so the weights are split in segments of 2**28
+ * floats
+ */
+class SegmentedWeights implements Weights {
+  static final int SEGMENT_BITS = 28;
+
+  private final FloatBuffer[] segments;
+  private final int size;
+  private final int segmentBits;
+  private final int segmentMask;
+
+  private SegmentedWeights(FloatBuffer[] segments, int size, int segmentBits) {
+    this.segments = segments;
+    this.size = size;
+    this.segmentBits = segmentBits;
+    this.segmentMask = (1 << segmentBits) - 1;
+  }
+
+  private static int segmentCount(int size, int segmentBits) {
+    return (int) (((long) size + (1L << segmentBits) - 1) >>> segmentBits);
+  }
+
+  private static long segmentLength(int size, int segment, int segmentBits) {
+    return Math.min(size - ((long) segment << segmentBits), 1L << segmentBits);
+  }
+
+  /**
+   * Weights read directly from a memory mapped file of little endian floats, nothing is copied on
+   * the heap and all processes mapping the same file share the page cache.
+   *
+   * @param channel the file, can be closed after this returns
+   * @param offset where the first weight is
+   * @param size number of weights
+   */
+  static SegmentedWeights mapped(FileChannel channel, long offset, int size) throws IOException {
+    return mapped(channel, offset, size, SEGMENT_BITS);
+  }
+
+  /** @param segmentBits segments of 2**segmentBits floats, smaller only in tests */
+  static SegmentedWeights mapped(FileChannel channel, long offset, int size, int segmentBits)
+      throws IOException {
+    FloatBuffer[] segments = new FloatBuffer[segmentCount(size, segmentBits)];
+    for (int i = 0; i < segments.length; i++) {
+      long from = (long) i << segmentBits;
+      long length = segmentLength(size, i, segmentBits);
+      segments[i] =
+          channel
+              .map(FileChannel.MapMode.READ_ONLY, offset + from * 4, length * 4)
+              .order(ByteOrder.LITTLE_ENDIAN)
+              .asFloatBuffer();
+    }
+    return new SegmentedWeights(segments, size, segmentBits);
+  }
+
+  /**
+   * zeroed weights in direct buffers
+   *
+   * @param size number of weights
+   */
+  static SegmentedWeights offHeap(int size) {
+    return offHeap(size, SEGMENT_BITS);
+  }
+
+  /** @param segmentBits segments of 2**segmentBits floats, smaller only in tests */
+  static SegmentedWeights offHeap(int size, int segmentBits) {
+    FloatBuffer[] segments = new FloatBuffer[segmentCount(size, segmentBits)];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] =
+          ByteBuffer.allocateDirect((int) (segmentLength(size, i, segmentBits) * 4))
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+    }
+    return new SegmentedWeights(segments, size, segmentBits);
+  }
+
+  int segmentCount() {
+    return segments.length;
+  }
+
+  @Override
+  public float get(int bucket) {
+    return segments[bucket >>> segmentBits].get(bucket & segmentMask);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** only for off heap weights, mapped weights are read only */
+  void set(int bucket, float w) {
+    segments[bucket >>> segmentBits].put(bucket & segmentMask, w);
+  }
+}
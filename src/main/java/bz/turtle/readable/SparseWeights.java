@@ -0,0 +1,96 @@
+package bz.turtle.readable;
+
+import java.util.Arrays;
+
+/**
+ * Only the non zero buckets, in an open addressing int to float hash table with linear probing. Good
+ * for -b 28 models that have only few million non zero buckets.
+ */
+class SparseWeights implements Weights {
+  private static final int EMPTY = -1;
+
+  private final int size;
+  private int[] keys;
+  private float[] values;
+  private int shift;
+  private int mask;
+  private int count = 0;
+
+  SparseWeights(int size) {
+    this.size = size;
+    allocate(16);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    values = new float[capacity];
+    mask = capacity - 1;
+    shift = 32 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  private int slot(int bucket) {
+    // fibonacci hashing, buckets are hashes already but the low bits hold the --oaa class
+    return (bucket * 0x9E3779B9) >>> shift;
+  }
+
+  @Override
+  public float get(int bucket) {
+    int i = slot(bucket);
+    while (true) {
+      int k = keys[i];
+      if (k == bucket) return values[i];
+      if (k == EMPTY) return 0;
+      i = (i + 1) & mask;
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** @return number of non zero buckets */
+  int count() {
+    return count;
+  }
+
+  void set(int bucket, float w) {
+    int i = slot(bucket);
+    while (true) {
+      int k = keys[i];
+      if (k == bucket) {
+        values[i] = w;
+        return;
+      }
+      if (k == EMPTY) break;
+      i = (i + 1) & mask;
+    }
+    if (w == 0) return;
+
+    keys[i] = bucket;
+    values[i] = w;
+    count++;
+    if (count * 2 > keys.length) {
+      int[] oldKeys = keys;
+      float[] oldValues = values;
+      allocate(keys.length * 2);
+      count = 0;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] != EMPTY) {
+          set(oldKeys[j], oldValues[j]);
+        }
+      }
+    }
+  }
+
+  DenseWeights toDense() {
+    DenseWeights dense = new DenseWeights(size);
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        dense.set(keys[i], values[i]);
+      }
+    }
+    return dense;
+  }
+}
@@ -1,12 +1,20 @@
 package bz.turtle.readable;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * copy paste reimplementation from explore/hash.h in JohnLangford/vowpal_wabbit since i couldnt
  * find published murmur for java that returns the same hash as VW so i had to copy it
+ *
+ * <p>All variants return the same hash for the same bytes, the bytes are sign extended when they
+ * are combined into blocks as in the first version of this port, so non ascii bytes hash the same
+ * as before.
  */
 public class VWMurmur {
+  private static final int c1 = 0xcc9e2d51;
+  private static final int c2 = 0x1b873593;
+
   private static int rotl32(int x, int r) {
     return (x << r) | (x >>> (32L - r));
   }
@@ -20,48 +28,179 @@ public class VWMurmur {
     return h;
   }
 
+  private static int mixBlock(int h1, int k1) {
+    k1 *= c1;
+    k1 = rotl32(k1, 15);
+    k1 *= c2;
+
+    h1 ^= k1;
+    h1 = rotl32(h1, 13);
+    return h1 * 5 + 0xe6546b64;
+  }
+
+  private static int mixTail(int h1, int k1) {
+    k1 *= c1;
+    k1 = rotl32(k1, 15);
+    k1 *= c2;
+    return h1 ^ k1;
+  }
+
   public static int hash(StringBuilder s, int seed) {
-    ByteBuffer d = ByteBuffer.wrap(s.toString().getBytes());
-    return hash(d, seed);
+    return hash((CharSequence) s, seed);
   }
 
-  public static int hash(ByteBuffer data, int seed) {
-    int len = data.limit();
-    int nblocks = len / 4;
+  /**
+   * hash of the UTF-8 bytes of s, encoded on the fly without copying s anywhere. Unpaired
+   * surrogates are encoded as '?' like String.getBytes(UTF_8) does
+   */
+  public static int hash(CharSequence s, int seed) {
+    int n = s.length();
     int h1 = seed;
-    int c1 = 0xcc9e2d51;
-    int c2 = 0x1b873593;
-
+    int len = 0;
+    // bytes of the current block, until we have all 4
+    int p0 = 0;
+    int p1 = 0;
+    int p2 = 0;
     int i = 0;
-    while (i <= len - 4) {
-      int k1 = (data.get(i) | data.get(i + 1) << 8 | data.get(i + 2) << 16 | data.get(i + 3) << 24);
+    while (i < n) {
+      if ((len & 3) == 0 && i + 4 <= n) {
+        char ch0 = s.charAt(i);
+        char ch1 = s.charAt(i + 1);
+        char ch2 = s.charAt(i + 2);
+        char ch3 = s.charAt(i + 3);
+        if ((ch0 | ch1 | ch2 | ch3) < 0x80) {
+          h1 = mixBlock(h1, ch0 | ch1 << 8 | ch2 << 16 | ch3 << 24);
+          i += 4;
+          len += 4;
+          continue;
+        }
+      }
+
+      // utf-8 bytes of the char, first byte in the low bits
+      char c = s.charAt(i++);
+      int utf8;
+      int bytes;
+      if (c < 0x80) {
+        utf8 = c;
+        bytes = 1;
+      } else if (c < 0x800) {
+        utf8 = (0xc0 | c >> 6) | (0x80 | c & 0x3f) << 8;
+        bytes = 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(s.charAt(i))) {
+          int cp = Character.toCodePoint(c, s.charAt(i++));
+          utf8 =
+              (0xf0 | cp >> 18)
+                  | (0x80 | cp >> 12 & 0x3f) << 8
+                  | (0x80 | cp >> 6 & 0x3f) << 16
+                  | (0x80 | cp & 0x3f) << 24;
+          bytes = 4;
+        } else {
+          utf8 = '?';
+          bytes = 1;
+        }
+      } else {
+        utf8 = (0xe0 | c >> 12) | (0x80 | c >> 6 & 0x3f) << 8 | (0x80 | c & 0x3f) << 16;
+        bytes = 3;
+      }
 
-      k1 *= c1;
-      k1 = rotl32(k1, 15);
-      k1 *= c2;
+      for (int j = 0; j < bytes; j++) {
+        int b = (byte) (utf8 >>> (j * 8));
+        switch (len & 3) {
+          case 0:
+            p0 = b;
+            break;
+          case 1:
+            p1 = b;
+            break;
+          case 2:
+            p2 = b;
+            break;
+          default:
+            h1 = mixBlock(h1, p0 | p1 << 8 | p2 << 16 | b << 24);
+        }
+        len++;
+      }
+    }
+
+    int k1 = 0;
+    switch (len & 3) {
+      case 3:
+        k1 ^= p2 << 16;
+      case 2:
+        k1 ^= p1 << 8;
+      case 1:
+        k1 ^= p0;
+        h1 = mixTail(h1, k1);
+    }
+    h1 ^= len;
+    return fmix(h1);
+  }
 
-      h1 ^= k1;
-      h1 = rotl32(h1, 13);
-      h1 = h1 * 5 + 0xe6546b64;
+  /** hash of the bytes from 0 to data.limit(), the position is ignored */
+  public static int hash(ByteBuffer data, int seed) {
+    if (data.hasArray()) {
+      return hash(data.array(), data.arrayOffset(), data.limit(), seed);
+    }
+    return hash(data, 0, data.limit(), seed);
+  }
 
+  public static int hash(byte[] data, int offset, int len, int seed) {
+    int h1 = seed;
+    int i = offset;
+    int end = offset + (len & ~3);
+    while (i < end) {
+      h1 = mixBlock(h1, data[i] | data[i + 1] << 8 | data[i + 2] << 16 | data[i + 3] << 24);
       i += 4;
     }
 
     int k1 = 0;
-    int end = (nblocks * 4);
     switch (len & 3) {
       case 3:
-        k1 ^= (int) data.get(end + 2) << 16;
+        k1 ^= data[i + 2] << 16;
       case 2:
-        k1 ^= (int) data.get(end + 1) << 8;
+        k1 ^= data[i + 1] << 8;
       case 1:
-        k1 ^= (int) data.get(end);
+        k1 ^= data[i];
+        h1 = mixTail(h1, k1);
+    }
+    h1 ^= len;
+    return fmix(h1);
+  }
 
-        k1 *= c1;
-        k1 = rotl32(k1, 15);
+  /**
+   * reads whole ints at a time, so it is the fastest for direct and memory mapped buffers
+   *
+   * @param data any buffer, its position and limit are not used or changed
+   * @param offset index of the first byte
+   * @param len number of bytes
+   * @param seed hash seed
+   */
+  public static int hash(ByteBuffer data, int offset, int len, int seed) {
+    boolean littleEndian = data.order() == ByteOrder.LITTLE_ENDIAN;
+    int h1 = seed;
+    int i = offset;
+    int end = offset + (len & ~3);
+    while (i < end) {
+      int k1 = data.getInt(i);
+      if (!littleEndian) k1 = Integer.reverseBytes(k1);
+      if ((k1 & 0x808080) != 0) {
+        // non ascii, sign extend the bytes
+        k1 = data.get(i) | data.get(i + 1) << 8 | data.get(i + 2) << 16 | data.get(i + 3) << 24;
+      }
+      h1 = mixBlock(h1, k1);
+      i += 4;
+    }
 
-        k1 *= c2;
-        h1 ^= k1;
+    int k1 = 0;
+    switch (len & 3) {
+      case 3:
+        k1 ^= data.get(i + 2) << 16;
+      case 2:
+        k1 ^= data.get(i + 1) << 8;
+      case 1:
+        k1 ^= data.get(i);
+        h1 = mixTail(h1, k1);
     }
     h1 ^= len;
     return fmix(h1);
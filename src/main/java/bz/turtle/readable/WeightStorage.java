@@ -0,0 +1,19 @@
+package bz.turtle.readable;
+
+/** how ReadableModel keeps the weights in memory, @see LoadOptions */
+public enum WeightStorage {
+  /** sparse for big models with few non zero buckets, dense otherwise */
+  AUTO,
+  /** float[] with 2**bits elements */
+  DENSE,
+  /** open addressing hash table with only the non zero buckets */
+  SPARSE,
+  /** 2**bits floats in direct buffers outside of the java heap */
+  OFF_HEAP,
+  /** dense, quantized to IEEE 754 half precision floats, half the memory */
+  FP16,
+  /** dense, quantized to bfloat16, half the memory, less precise than FP16 but same range */
+  BF16,
+  /** dense, linearly quantized to 8 bits, quarter of the memory */
+  INT8
+}
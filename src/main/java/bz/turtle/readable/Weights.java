@@ -0,0 +1,37 @@
+package bz.turtle.readable;
+
+/**
+ * Storage of the model weights, one float per bucket. predict and the interactions only ever read
+ * through this, so the weights can live in a float[], a memory mapped file etc.
+ */
+interface Weights {
+  /**
+   * @param bucket the bucket, always between 0 and size() - 1
+   * @return the weight of the bucket, 0 if the model does not have it
+   */
+  float get(int bucket);
+
+  /**
+   * result[i] += value * get(bucket + i) for i in 0..n-1, used for the classes of --oaa models
+   *
+   * @param bucket first bucket, bucket + n - 1 must be less than size()
+   */
+  default void addTo(float[] result, int bucket, int n, float value) {
+    for (int i = 0; i < n; i++) {
+      result[i] += value * get(bucket + i);
+    }
+  }
+
+  /**
+   * addTo(result, buckets[i], n, values[i]) for all i below count, with the reads of the buckets
+   * independent of each other so their cache misses overlap
+   */
+  default void gather(float[] result, int[] buckets, float[] values, int count, int n) {
+    for (int i = 0; i < count; i++) {
+      addTo(result, buckets[i], n, values[i]);
+    }
+  }
+
+  /** @return number of buckets, 2**bits */
+  int size();
+}
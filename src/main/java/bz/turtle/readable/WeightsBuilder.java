@@ -0,0 +1,73 @@
+package bz.turtle.readable;
+
+/**
+ * Collects the weights while loading a model, since we dont know how many non zero buckets there
+ * are until we read the whole file, with AUTO storage we start sparse and switch to dense as soon
+ * as there are too many buckets.
+ */
+class WeightsBuilder {
+  private SparseWeights sparse;
+  private DenseWeights dense;
+  private SegmentedWeights offHeap;
+  private final int maxSparse;
+  private final WeightStorage storage;
+
+  WeightsBuilder(int bits, LoadOptions options) {
+    int size = 1 << bits;
+    storage = options.storage;
+    switch (options.storage) {
+      case SPARSE:
+        sparse = new SparseWeights(size);
+        maxSparse = Integer.MAX_VALUE;
+        break;
+      case OFF_HEAP:
+        offHeap = SegmentedWeights.offHeap(size);
+        maxSparse = 0;
+        break;
+      case AUTO:
+        if (bits >= options.sparseMinBits) {
+          sparse = new SparseWeights(size);
+          maxSparse = (int) (size * options.maxSparseDensity);
+        } else {
+          dense = new DenseWeights(size);
+          maxSparse = 0;
+        }
+        break;
+      default:
+        dense = new DenseWeights(size);
+        maxSparse = 0;
+    }
+  }
+
+  void set(int bucket, float w) {
+    if (offHeap != null) {
+      offHeap.set(bucket, w);
+      return;
+    }
+    if (dense != null) {
+      dense.set(bucket, w);
+      return;
+    }
+    sparse.set(bucket, w);
+    if (sparse.count() > maxSparse) {
+      dense = sparse.toDense();
+      sparse = null;
+    }
+  }
+
+  /** @return true if set() can be called from many threads for different buckets */
+  boolean isConcurrent() {
+    return offHeap != null || dense != null;
+  }
+
+  Weights build() {
+    if (offHeap != null) return offHeap;
+    if (storage == WeightStorage.FP16
+        || storage == WeightStorage.BF16
+        || storage == WeightStorage.INT8) {
+      // we need all the weights for the int8 scale anyway, so quantize at the end
+      return QuantizedWeights.of(dense, storage);
+    }
+    return dense != null ? dense : sparse;
+  }
+}
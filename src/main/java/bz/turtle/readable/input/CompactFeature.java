@@ -0,0 +1,180 @@
+package bz.turtle.readable.input;
+
+import bz.turtle.readable.VWMurmur;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Feature that keeps only the UTF-8 bytes of its name (or the integer name), the value and the
+ * computed hash, about 40 bytes + the name, where Feature has 20KiB of buffers. Names are encoded
+ * in a thread local scratch buffer and then copied to an array of the exact size, rename() reuses
+ * the array when the new name fits, so recycled features do not allocate.
+ *
+ * <pre>
+ * new Namespace("user", new CompactFeature("country_nl"), new CompactFeature(42, 0.5f))
+ * </pre>
+ *
+ * <p>We compute the hash value only once do not reuse between namespaces because the hash is
+ * dependent on the namespace hash
+ */
+public class CompactFeature implements FeatureInterface {
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64]);
+
+  public transient int computedHashValue;
+  public transient boolean hashIsComputed = false;
+  /** null if the name is integer, can be longer than the name after rename() */
+  private byte[] utf8;
+
+  private int utf8Length;
+
+  private int nameInt;
+  private boolean hasIntegerName;
+  private float value = 1f;
+
+  public CompactFeature(CharSequence name) {
+    this(name, 1);
+  }
+
+  public CompactFeature(CharSequence name, float value) {
+    setName(name);
+    this.value = value;
+  }
+
+  public CompactFeature(int name) {
+    this(name, 1);
+  }
+
+  public CompactFeature(int name, float value) {
+    rename(name);
+    this.value = value;
+  }
+
+  @Override
+  public boolean hasIntegerName() {
+    return hasIntegerName;
+  }
+
+  @Override
+  public int getIntegerName() {
+    return nameInt;
+  }
+
+  /** @return new string with the name */
+  @Override
+  public String getStringName() {
+    if (utf8 == null) return Integer.toString(nameInt);
+    return new String(utf8, 0, utf8Length, StandardCharsets.UTF_8);
+  }
+
+  /** @return new buffer wrapping the name's bytes, hashName() does not create it */
+  @Override
+  public ByteBuffer getBytes() {
+    if (utf8 == null) return ByteBuffer.wrap(getStringName().getBytes(StandardCharsets.UTF_8));
+    return ByteBuffer.wrap(utf8, 0, utf8Length);
+  }
+
+  @Override
+  public int hashName(int seed) {
+    if (utf8 != null) return VWMurmur.hash(utf8, 0, utf8Length, seed);
+
+    byte[] scratch = SCRATCH.get();
+    int len = Util.encodeInt(nameInt, scratch);
+    return VWMurmur.hash(scratch, 0, len, seed);
+  }
+
+  @Override
+  public float getValue() {
+    return value;
+  }
+
+  public void setValue(float value) {
+    this.value = value;
+  }
+
+  @Override
+  public void rename(CharSequence name) {
+    setName(name);
+    resetIsHashComputed();
+  }
+
+  @Override
+  public void rename(int name) {
+    if (name < 0) {
+      setName(Integer.toString(name));
+    } else {
+      utf8 = null;
+      nameInt = name;
+      hasIntegerName = true;
+    }
+    resetIsHashComputed();
+  }
+
+  @Override
+  public void rename(double name) {
+    rename(String.valueOf(name));
+  }
+
+  @Override
+  public void rename(float name) {
+    rename(String.valueOf(name));
+  }
+
+  @Override
+  public void rename(long name) {
+    rename(String.valueOf(name));
+  }
+
+  private void setName(CharSequence name) {
+    byte[] scratch = SCRATCH.get();
+    if (scratch.length < name.length() * 3) {
+      scratch = new byte[name.length() * 3];
+      SCRATCH.set(scratch);
+    }
+    int n = Util.encodeUtf8(name, scratch);
+    if (utf8 == null || utf8.length < n) {
+      utf8 = Arrays.copyOf(scratch, n);
+    } else {
+      System.arraycopy(scratch, 0, utf8, 0, n);
+    }
+    utf8Length = n;
+
+    hasIntegerName = false;
+    nameInt = 0;
+    if (Util.isPositiveInteger(name)) {
+      try {
+        nameInt = Util.parseInt(name);
+        hasIntegerName = true;
+      } catch (NumberFormatException e) {
+        // too big, it is hashed as string
+      }
+    }
+  }
+
+  @Override
+  public int getComputedHash() {
+    return computedHashValue;
+  }
+
+  @Override
+  public void setComputedHash(int h) {
+    this.computedHashValue = h;
+    this.hashIsComputed = true;
+  }
+
+  @Override
+  public void resetIsHashComputed() {
+    hashIsComputed = false;
+  }
+
+  @Override
+  public boolean isHashComputed() {
+    return hashIsComputed;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%d]:%f", getStringName(), nameInt, value);
+  }
+}
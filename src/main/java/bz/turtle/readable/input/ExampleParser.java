@@ -0,0 +1,269 @@
+package bz.turtle.readable.input;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses vw input format lines, check out
+ * https://github.com/JohnLangford/vowpal_wabbit/wiki/Input-format
+ *
+ * <pre>
+ * label [importance [initial]] ['tag]|ns[:value] feature[:value] ... |ns2 ...
+ * </pre>
+ *
+ * The returned PredictionRequest, its namespaces and features are recycled by the next parse(), so
+ * after warmup parsing does not allocate. A backslash escapes the next char in namespace and feature
+ * names, e.g. a\:b or a\|b or a\ b.
+ *
+ * <p>Not thread safe, use one parser per thread.
+ *
+ * <pre>
+ * ExampleParser parser = new ExampleParser();
+ * for (String line : lines) {
+ *   model.predict(out, parser.parse(line), null);
+ * }
+ * </pre>
+ */
+public class ExampleParser {
+  /** the label as it is on the line, e.g. 1 or -1 or 3 for --oaa, empty if missing */
+  public final StringBuilder label = new StringBuilder();
+
+  public float importance = 1;
+
+  public float initial = 0;
+
+  /** empty if missing */
+  public final StringBuilder tag = new StringBuilder();
+
+  /** sets PredictionRequest.probabilities of the parsed requests */
+  public boolean probabilities = false;
+
+  private final PredictionRequest request = new PredictionRequest();
+  private final List<Namespace> namespacePool = new ArrayList<>();
+  private final List<CompactFeature> featurePool = new ArrayList<>();
+  private int usedNamespaces;
+  private int usedFeatures;
+
+  private final StringBuilder name = new StringBuilder();
+  private char[] decoded = new char[256];
+  private CharBuffer decodedView = CharBuffer.wrap(decoded);
+
+  /**
+   * @param line one example in vw format
+   * @return the request, valid until the next parse()
+   * @throws NumberFormatException if a value is not a number
+   */
+  public PredictionRequest parse(CharSequence line) {
+    clear();
+    int n = line.length();
+    int i = parseHeader(line, n);
+    Namespace ns = null;
+    float nsValue = 1;
+    while (i < n) {
+      char c = line.charAt(i);
+      if (isSpace(c)) {
+        i++;
+      } else if (c == '|') {
+        i = readName(line, i + 1, n);
+        ns = nextNamespace();
+        nsValue = 1;
+        if (i < n && line.charAt(i) == ':') {
+          int end = valueEnd(line, i + 1, n);
+          nsValue = FloatParser.parseFloat(line, i + 1, end);
+          i = end;
+        }
+      } else {
+        i = readName(line, i, n);
+        float value = 1;
+        if (i < n && line.charAt(i) == ':') {
+          int end = valueEnd(line, i + 1, n);
+          value = FloatParser.parseFloat(line, i + 1, end);
+          i = end;
+        }
+        // features before the first namespace are ignored
+        if (ns != null) {
+          CompactFeature f = nextFeature();
+          f.rename(name);
+          f.setValue(value * nsValue);
+          ns.features.add(f);
+        }
+      }
+    }
+    return request;
+  }
+
+  /**
+   * @param utf8 buffer with one example in vw format, without the new line
+   * @param offset where the example starts
+   * @param length length of the example in bytes
+   * @return the request, valid until the next parse()
+   */
+  public PredictionRequest parse(byte[] utf8, int offset, int length) {
+    if (decoded.length < length) {
+      decoded = new char[Math.max(length, decoded.length * 2)];
+      decodedView = CharBuffer.wrap(decoded);
+    }
+    int n = decodeUtf8(utf8, offset, offset + length, decoded);
+    // Not using .clear() because java hates it
+    decodedView.position(0);
+    decodedView.limit(n);
+    return parse(decodedView);
+  }
+
+  private void clear() {
+    label.setLength(0);
+    tag.setLength(0);
+    importance = 1;
+    initial = 0;
+    usedNamespaces = 0;
+    usedFeatures = 0;
+    request.namespaces.clear();
+    request.probabilities = probabilities;
+  }
+
+  /** @return index of the first '|', or the end of the line */
+  private int parseHeader(CharSequence line, int n) {
+    int i = 0;
+    int field = 0;
+    while (i < n) {
+      char c = line.charAt(i);
+      if (c == '|') break;
+      if (isSpace(c)) {
+        i++;
+        continue;
+      }
+      int start = i;
+      while (i < n && !isSpace(line.charAt(i)) && line.charAt(i) != '|') i++;
+      if (line.charAt(start) == '\'') {
+        tag.append(line, start + 1, i);
+      } else if (i < n && line.charAt(i) == '|') {
+        // the tag can be without ' if there is no space before the first namespace
+        tag.append(line, start, i);
+      } else if (field == 0) {
+        label.append(line, start, i);
+        field++;
+      } else if (field == 1) {
+        importance = FloatParser.parseFloat(line, start, i);
+        field++;
+      } else if (field == 2) {
+        initial = FloatParser.parseFloat(line, start, i);
+        field++;
+      }
+    }
+    return i;
+  }
+
+  /** reads a namespace or feature name into name, @return index after the name */
+  private int readName(CharSequence line, int i, int n) {
+    name.setLength(0);
+    while (i < n) {
+      char c = line.charAt(i);
+      if (c == '\\' && i + 1 < n) {
+        name.append(line.charAt(i + 1));
+        i += 2;
+        continue;
+      }
+      if (isSpace(c) || c == ':' || c == '|') break;
+      name.append(c);
+      i++;
+    }
+    return i;
+  }
+
+  private static int valueEnd(CharSequence line, int i, int n) {
+    while (i < n && !isSpace(line.charAt(i)) && line.charAt(i) != '|') i++;
+    return i;
+  }
+
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private Namespace nextNamespace() {
+    Namespace ns;
+    if (usedNamespaces < namespacePool.size()) {
+      ns = namespacePool.get(usedNamespaces);
+    } else {
+      ns = new Namespace();
+      namespacePool.add(ns);
+    }
+    usedNamespaces++;
+    ns.features.clear();
+    ns.rename(name);
+    request.namespaces.add(ns);
+    return ns;
+  }
+
+  private CompactFeature nextFeature() {
+    CompactFeature f;
+    if (usedFeatures < featurePool.size()) {
+      f = featurePool.get(usedFeatures);
+    } else {
+      f = new CompactFeature(0);
+      featurePool.add(f);
+    }
+    usedFeatures++;
+    return f;
+  }
+
+  /**
+   * malformed input becomes \uFFFD like new String(bytes, UTF_8): overlong forms, encoded surrogates
+   * and code points above U+10FFFF are malformed, and each malformed sequence, the lead byte and its
+   * valid continuation bytes, is replaced by one \uFFFD
+   *
+   * @return number of chars
+   */
+  private static int decodeUtf8(byte[] in, int from, int to, char[] out) {
+    int n = 0;
+    int i = from;
+    while (i < to) {
+      int b = in[i] & 0xff;
+      if (b < 0x80) {
+        out[n++] = (char) b;
+        i++;
+        continue;
+      }
+      // the range of the second byte rules out overlong forms and code points above U+10FFFF
+      int length;
+      int min = 0x80;
+      int max = 0xbf;
+      if (b >= 0xc2 && b <= 0xdf) {
+        length = 2;
+      } else if (b >= 0xe0 && b <= 0xef) {
+        length = 3;
+        if (b == 0xe0) min = 0xa0;
+      } else if (b >= 0xf0 && b <= 0xf4) {
+        length = 4;
+        if (b == 0xf0) min = 0x90;
+        if (b == 0xf4) max = 0x8f;
+      } else {
+        out[n++] = '\uFFFD';
+        i++;
+        continue;
+      }
+      int valid = 1;
+      if (i + 1 < to && (in[i + 1] & 0xff) >= min && (in[i + 1] & 0xff) <= max) {
+        valid = 2;
+        while (valid < length && i + valid < to && (in[i + valid] & 0xc0) == 0x80) valid++;
+      }
+      if (valid < length) {
+        out[n++] = '\uFFFD';
+        i += valid;
+        continue;
+      }
+      int cp = b & (0xff >>> (length + 1));
+      for (int j = 1; j < length; j++) cp = cp << 6 | in[i + j] & 0x3f;
+      i += length;
+      if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        out[n++] = Character.highSurrogate(cp);
+        out[n++] = Character.lowSurrogate(cp);
+      } else if (Character.isSurrogate((char) cp)) {
+        out[n++] = '\uFFFD';
+      } else {
+        out[n++] = (char) cp;
+      }
+    }
+    return n;
+  }
+}
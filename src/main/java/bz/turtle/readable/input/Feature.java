@@ -53,7 +53,7 @@ public class Feature implements FeatureInterface {
   }
 
   public Feature(int name, float v) {
-    this.name = null;
+    this.name = new StringBuilder();
     this.isStringNameComputed = false;
     if (name < 0) {
       rename(name);
@@ -161,12 +161,16 @@ public class Feature implements FeatureInterface {
    * @return the string name, recomputed from nameInt if needed @see getIntegerName
    */
   public String getStringName() {
+    computeStringName();
+    return name.toString();
+  }
+
+  private void computeStringName() {
     if (!isStringNameComputed) {
       this.name.setLength(0);
       this.name.append(this.nameInt);
       this.isStringNameComputed = true;
     }
-    return name.toString();
   }
 
   public ByteBuffer getBytes() {
@@ -234,6 +238,8 @@ public class Feature implements FeatureInterface {
     this.byteBuffer.limit(this.byteBuffer.capacity());
 
     CharsetEncoder ce = LocalCharsetEncoder.get();
+    // integer names have the string only when it is needed, e.g. for --hash all
+    computeStringName();
 
     for (int i = 0; i < this.name.length(); i++) {
       this.charBuffer.put(this.name.charAt(i));
@@ -1,5 +1,7 @@
 package bz.turtle.readable.input;
 
+import bz.turtle.readable.VWMurmur;
+
 import java.nio.ByteBuffer;
 
 public interface FeatureInterface {
@@ -11,6 +13,14 @@ public interface FeatureInterface {
 
   ByteBuffer getBytes();
 
+  /**
+   * @param seed the namespace hash
+   * @return murmur hash of the UTF-8 name, override if you can hash without getBytes()
+   */
+  default int hashName(int seed) {
+    return VWMurmur.hash(getBytes(), seed);
+  }
+
   float getValue();
 
   void rename(CharSequence name);
@@ -0,0 +1,74 @@
+package bz.turtle.readable.input;
+
+/**
+ * Float.parseFloat without creating a String, for the weights of readable models and the values of
+ * vw input lines.
+ */
+public final class FloatParser {
+  private static final float[] POW10 = {
+    1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+  };
+
+  private FloatParser() {}
+
+  /**
+   * same as Float.parseFloat(s.subSequence(from, to).toString()). vw writes at most 7 significant
+   * digits so the mantissa fits in a float and the result of one float multiplication or division
+   * is correctly rounded, anything else, e.g. 1e-30 or NaN, falls back to Float.parseFloat.
+   *
+   * @throws NumberFormatException if it is not a float
+   */
+  public static float parseFloat(CharSequence s, int from, int to) {
+    int i = from;
+    boolean negative = false;
+    if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+      negative = s.charAt(i) == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int exp = 0;
+    boolean digits = false;
+    char c;
+    while (i < to && (c = s.charAt(i)) >= '0' && c <= '9') {
+      if (mantissa >= (1 << 24)) return fallback(s, from, to);
+      mantissa = mantissa * 10 + (c - '0');
+      digits = true;
+      i++;
+    }
+    if (i < to && s.charAt(i) == '.') {
+      i++;
+      while (i < to && (c = s.charAt(i)) >= '0' && c <= '9') {
+        if (mantissa >= (1 << 24)) return fallback(s, from, to);
+        mantissa = mantissa * 10 + (c - '0');
+        exp--;
+        digits = true;
+        i++;
+      }
+    }
+    if (i < to && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+      i++;
+      boolean negativeExp = false;
+      if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+        negativeExp = s.charAt(i) == '-';
+        i++;
+      }
+      int e = 0;
+      int start = i;
+      while (i < to && (c = s.charAt(i)) >= '0' && c <= '9' && e < 1000) {
+        e = e * 10 + (c - '0');
+        i++;
+      }
+      if (i == start) return fallback(s, from, to);
+      exp += negativeExp ? -e : e;
+    }
+    if (!digits || i != to || mantissa >= (1 << 24) || exp < -10 || exp > 10) {
+      return fallback(s, from, to);
+    }
+    float f = exp < 0 ? mantissa / POW10[-exp] : mantissa * POW10[exp];
+    return negative ? -f : f;
+  }
+
+  private static float fallback(CharSequence s, int from, int to) {
+    return Float.parseFloat(s.subSequence(from, to).toString());
+  }
+}
@@ -95,4 +95,71 @@ class Util {
         out.position(0);
         return out;
     }
+
+    static boolean isPositiveInteger(CharSequence s) {
+        if (s.length() == 0) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 10) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * encode s as UTF-8, unpaired surrogates become '?' like String.getBytes(UTF_8)
+     *
+     * @param out must have space for 3 bytes per char
+     * @return number of bytes written
+     */
+    static int encodeUtf8(CharSequence s, byte[] out) {
+        int n = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xc0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c)
+                        && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[n++] = (byte) (0xf0 | cp >> 18);
+                    out[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                    out[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                    out[n++] = (byte) (0x80 | cp & 0x3f);
+                } else {
+                    out[n++] = '?';
+                }
+            } else {
+                out[n++] = (byte) (0xe0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                out[n++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * write the decimal digits of i, same as Integer.toString(i).getBytes()
+     *
+     * @param out must have space for 11 bytes
+     * @return number of bytes written
+     */
+    static int encodeInt(int i, byte[] out) {
+        long v = i;
+        int n = 0;
+        if (v < 0) {
+            out[n++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long p = 10; p <= v; p *= 10) digits++;
+        for (int d = n + digits - 1; d >= n; d--) {
+            out[d] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return n + digits;
+    }
 }
@@ -1,16 +1,44 @@
 package bz.turtle.readable;
 
+import bz.turtle.readable.input.CompactFeature;
+import bz.turtle.readable.input.ExampleParser;
 import bz.turtle.readable.input.Feature;
+import bz.turtle.readable.input.FeatureInterface;
+import bz.turtle.readable.input.FloatParser;
 import bz.turtle.readable.input.Namespace;
 import bz.turtle.readable.input.PredictionRequest;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 public class ReadableModelTest {
 
@@ -353,4 +381,1413 @@ public class ReadableModelTest {
     assertEquals(1.0, e.featuresLookedUp.get(), 0.0001);
     assertEquals(0, (int) e.missingFeatures.get());
   }
+
+  private static long allocatedBytes(ReadableModel m, PredictionRequest r, float[] out, int n) {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long before = bean.getThreadAllocatedBytes(id);
+    for (int i = 0; i < n; i++) {
+      m.predict(out, r, null);
+    }
+    return bean.getThreadAllocatedBytes(id) - before;
+  }
+
+  @Test
+  public void predictDoesNotAllocate() throws Exception {
+    assumeTrue(
+        ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .isThreadAllocatedMemorySupported());
+
+    String[] models = {"testq", "testcubic", "oaa", "testqnum"};
+    for (String name : models) {
+      ReadableModel m =
+          new ReadableModel(
+              new File(this.getClass().getClassLoader().getResource(name).getFile()), true, false);
+      PredictionRequest r =
+          new PredictionRequest(
+              new Namespace("a", new Feature("x"), new Feature("z"), new Feature(42, 0.5f)),
+              new Namespace("b", new Feature("x1"), new Feature("z1")),
+              new Namespace("c", new Feature("age", 0.05f)),
+              new Namespace("d", new Feature("nr_foos", 1), new Feature("nr_bars", 2)));
+      float[] out = m.getReusableFloatArray();
+
+      // warm up the hashes and let the jit do its thing
+      allocatedBytes(m, r, out, 20000);
+      long allocated = allocatedBytes(m, r, out, 10000);
+      assertTrue(name + " allocated " + allocated + " bytes", allocated < 1024);
+    }
+  }
+
+  /** model with every bucket set, so any interaction we compute wrong changes the prediction */
+  static ReadableModel denseRandomModel(String options, int bits) throws Exception {
+    return randomModel(options, bits, 1 << bits, new LoadOptions());
+  }
+
+  static ReadableModel randomModel(String options, int bits, int lines, LoadOptions load)
+      throws Exception {
+    Random r = new Random(bits);
+    StringBuilder sb = new StringBuilder();
+    sb.append("Version 8.6.1\nId \nMin label:-1000\nMax label:1000\n");
+    sb.append("bits:").append(bits).append("\n");
+    sb.append("lda:0\n0 ngram:\n0 skip:\n");
+    sb.append("options: ").append(options).append("\n");
+    sb.append("Checksum: 0\n:0\n");
+    for (int i = 0; i < lines; i++) {
+      int bucket = lines == (1 << bits) ? i : r.nextInt(1 << bits);
+      sb.append(bucket).append(":").append(r.nextFloat() - 0.5f).append("\n");
+    }
+    return new ReadableModel(
+        new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)), true, load);
+  }
+
+  static Namespace randomNamespace(Random r, String name, int n) {
+    List<FeatureInterface> features = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      if (r.nextBoolean()) {
+        features.add(new Feature("f" + r.nextInt(1000), r.nextFloat()));
+      } else {
+        features.add(new Feature(r.nextInt(1000)));
+      }
+    }
+    Namespace ns = new Namespace(name);
+    ns.features.addAll(features);
+    return ns;
+  }
+
+  @Test
+  public void predictBatchSameAsPredict() throws Exception {
+    String[] options = {
+      "--hash_seed 0 --link identity",
+      "--hash_seed 0 --quadratic ab --quadratic ba --quadratic ca --link logistic",
+      "--hash_seed 0 --quadratic aa --quadratic ab --quadratic cc --oaa 3",
+      "--hash_seed 0 --quadratic ::",
+      "--hash_seed 0 --cubic abc --cubic bcd --quadratic ad --quadratic bc",
+    };
+    Random r = new Random(0);
+    for (String o : options) {
+      ReadableModel m = denseRandomModel(o, 12);
+      PredictionRequest shared =
+          new PredictionRequest(
+              randomNamespace(r, "a", 3), randomNamespace(r, "c_user", 2), randomNamespace(r, "b", 2));
+      List<PredictionRequest> items = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        if (i % 2 == 0) {
+          items.add(
+              new PredictionRequest(
+                  randomNamespace(r, "aitem", 2),
+                  randomNamespace(r, "d", 1 + r.nextInt(3)),
+                  randomNamespace(r, "c", 2)));
+        } else {
+          items.add(new PredictionRequest(randomNamespace(r, "d", 1 + r.nextInt(3))));
+        }
+      }
+      float[][] batch = m.predictBatch(shared, items);
+
+      for (int i = 0; i < items.size(); i++) {
+        List<Namespace> all = new ArrayList<>(shared.namespaces);
+        all.addAll(items.get(i).namespaces);
+        PredictionRequest one = new PredictionRequest();
+        one.namespaces.addAll(all);
+        assertArrayEquals(o, m.predict(one), batch[i], 0.0001f);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void preparedContextBelongsToItsModel() throws Exception {
+    ReadableModel a = new ReadableModel(this.getClass().getClassLoader().getResource("testq"));
+    ReadableModel b = new ReadableModel(this.getClass().getClassLoader().getResource("testq"));
+    PreparedContext context =
+        a.prepare(new PredictionRequest(new Namespace("a", new Feature("x"), new Feature("z"))));
+    b.predict(
+        context,
+        new PredictionRequest(new Namespace("b", new Feature("x1"))),
+        b.getReusableFloatArray());
+  }
+
+  @Test
+  public void binaryModel() throws Exception {
+    String[] dirs = {"testq", "oaa7", "testcubic", "testhashall", "testlinklogistic", "test"};
+    for (String dir : dirs) {
+      File tdir = new File(this.getClass().getClassLoader().getResource(dir).getFile());
+      File bin = File.createTempFile("turtle", ".bin");
+      bin.deleteOnExit();
+      BinaryModelConverter.convert(tdir, bin);
+
+      ReadableModel text = new ReadableModel(tdir, true, false);
+      ReadableModel binary = new ReadableModel(bin, true, false);
+      PredictionRequest r =
+          new PredictionRequest(
+              new Namespace("a", new Feature("x"), new Feature("price", 0.23f)),
+              new Namespace("b", new Feature("x1"), new Feature("sqft", 0.25f)),
+              new Namespace("c", new Feature("age", 0.05f)),
+              new Namespace("f", new Feature("a"), new Feature("odd=-1")),
+              new Namespace(" ", new Feature("pos"), new Feature("7")));
+      assertArrayEquals(dir, text.predict(r), binary.predict(r), 0);
+    }
+  }
+
+  @Test
+  public void binaryModelProbabilities() throws Exception {
+    File tdir =
+        new File(this.getClass().getClassLoader().getResource("testprobabilities").getFile());
+    File bin = File.createTempFile("turtle", ".bin");
+    bin.deleteOnExit();
+    // predictions.txt holds probabilities, checking it as raw scores fails
+    try {
+      BinaryModelConverter.convert(tdir, bin);
+      fail("expected the raw check to fail");
+    } catch (IllegalStateException expected) {
+    }
+    BinaryModelConverter.convert(tdir, bin, true);
+    PredictionRequest r = new PredictionRequest(new Namespace("", new Feature("guess")));
+    r.probabilities = true;
+    assertArrayEquals(
+        new ReadableModel(tdir, true, true).predict(r),
+        new ReadableModel(bin, true, true).predict(r),
+        0);
+  }
+
+  @Test
+  public void binaryModelReplacedWhileMapped() throws Exception {
+    File dir = Files.createTempDirectory("turtle").toFile();
+    File bin = new File(dir, "readable_model.bin");
+    try {
+      BinaryModelConverter.convert(
+          new File(this.getClass().getClassLoader().getResource("testq").getFile()), bin);
+      ReadableModel mapped = new ReadableModel(bin, true, false);
+      PredictionRequest r =
+          new PredictionRequest(
+              new Namespace("a", new Feature("x"), new Feature("price", 0.23f)),
+              new Namespace("b", new Feature("sqft", 0.25f)));
+      float[] before = mapped.predict(r);
+
+      // a smaller model over the mapped one, rewriting in place would truncate the mapping
+      denseRandomModel("--hash_seed 0", 4).saveBinaryModel(bin);
+      assertArrayEquals(before, mapped.predict(r), 0);
+      assertEquals(1 << 4, new ReadableModel(bin, true, false).getWeights().size());
+      assertArrayEquals(new String[] {"readable_model.bin"}, dir.list());
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void binaryModelChecksum() throws Exception {
+    File bin = File.createTempFile("turtle", ".bin");
+    bin.deleteOnExit();
+    new ReadableModel(this.getClass().getClassLoader().getResource("testq")).saveBinaryModel(bin);
+    try (java.io.RandomAccessFile f = new java.io.RandomAccessFile(bin, "rw")) {
+      f.seek(f.length() - 100);
+      f.writeFloat(123);
+    }
+    LoadOptions options = new LoadOptions();
+    options.verifyChecksum = true;
+    new ReadableModel(bin, true, false, options);
+  }
+
+  static LoadOptions storage(WeightStorage storage) {
+    LoadOptions options = new LoadOptions();
+    options.storage = storage;
+    return options;
+  }
+
+  @Test
+  public void weightStorages() throws Exception {
+    String[] dirs = {
+      "test", "testgz", "testq", "oaa", "oaa10", "testcubic", "testclip", "testprobabilities"
+    };
+    for (String dir : dirs) {
+      File tdir = new File(this.getClass().getClassLoader().getResource(dir).getFile());
+      boolean probabilities = dir.equals("testprobabilities");
+      ReadableModel dense =
+          new ReadableModel(tdir, true, probabilities, storage(WeightStorage.DENSE));
+      ReadableModel sparse =
+          new ReadableModel(tdir, true, probabilities, storage(WeightStorage.SPARSE));
+      ReadableModel offHeap =
+          new ReadableModel(tdir, true, probabilities, storage(WeightStorage.OFF_HEAP));
+      assertTrue(dense.getWeights() instanceof DenseWeights);
+      assertTrue(sparse.getWeights() instanceof SparseWeights);
+      assertTrue(offHeap.getWeights() instanceof SegmentedWeights);
+
+      for (int i = 0; i < dense.getWeights().size(); i++) {
+        assertEquals(dir, dense.getWeights().get(i), sparse.getWeights().get(i), 0);
+        assertEquals(dir, dense.getWeights().get(i), offHeap.getWeights().get(i), 0);
+      }
+    }
+
+    ReadableModel dense =
+        randomModel("--quadratic ab --oaa 5", 16, 30000, storage(WeightStorage.DENSE));
+    ReadableModel sparse =
+        randomModel("--quadratic ab --oaa 5", 16, 30000, storage(WeightStorage.SPARSE));
+    ReadableModel offHeap =
+        randomModel("--quadratic ab --oaa 5", 16, 30000, storage(WeightStorage.OFF_HEAP));
+    Random r = new Random(1);
+    for (int i = 0; i < 100; i++) {
+      PredictionRequest p =
+          new PredictionRequest(randomNamespace(r, "a", 10), randomNamespace(r, "b", 10));
+      assertArrayEquals(dense.predict(p), sparse.predict(p), 0);
+      assertArrayEquals(dense.predict(p), offHeap.predict(p), 0);
+    }
+  }
+
+  @Test
+  public void segmentBoundaries() throws Exception {
+    // 16 float segments, the last one is shorter
+    int size = 100;
+    SegmentedWeights offHeap = SegmentedWeights.offHeap(size, 4);
+    assertEquals(7, offHeap.segmentCount());
+    for (int i = 0; i < size; i++) offHeap.set(i, i + 0.5f);
+    for (int i = 0; i < size; i++) assertEquals(i + 0.5f, offHeap.get(i), 0);
+    for (int b : new int[] {15, 16, 31, 32, 95, 96, 99}) {
+      offHeap.set(b, -b);
+      assertEquals(-b, offHeap.get(b), 0);
+      assertEquals(b - 1 + 0.5f, offHeap.get(b - 1), 0);
+      if (b + 1 < size) assertEquals(b + 1 + 0.5f, offHeap.get(b + 1), 0);
+      offHeap.set(b, b + 0.5f);
+    }
+
+    File bin = File.createTempFile("turtle", ".weights");
+    bin.deleteOnExit();
+    int offset = 12;
+    ByteBuffer bytes = ByteBuffer.allocate(offset + size * 4).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < size; i++) bytes.putFloat(offset + i * 4, i * 2);
+    Files.write(bin.toPath(), bytes.array());
+    try (java.nio.channels.FileChannel channel =
+        java.nio.channels.FileChannel.open(bin.toPath())) {
+      SegmentedWeights mapped = SegmentedWeights.mapped(channel, offset, size, 4);
+      assertEquals(7, mapped.segmentCount());
+      assertEquals(size, mapped.size());
+      for (int i = 0; i < size; i++) assertEquals(i * 2, mapped.get(i), 0);
+    }
+  }
+
+  @Test
+  public void autoWeightStorage() throws Exception {
+    LoadOptions options = new LoadOptions();
+    assertTrue(randomModel("", 22, 1000, options).getWeights() instanceof SparseWeights);
+    assertTrue(randomModel("", 18, 1000, options).getWeights() instanceof DenseWeights);
+
+    options.sparseMinBits = 10;
+    assertTrue(randomModel("", 12, 200, options).getWeights() instanceof SparseWeights);
+    assertTrue(randomModel("", 12, 4096, options).getWeights() instanceof DenseWeights);
+  }
+
+  private static float bfloat16(float v) {
+    return QuantizedWeights.BFloat16.toFloat(QuantizedWeights.BFloat16.fromFloat(v));
+  }
+
+  @Test
+  public void quantizedWeights() throws Exception {
+    float[] values = {0, 1, -1, 0.5f, 0.1f, -0.0421919f, 1e-6f, 65504, 1e9f};
+    for (float v : values) {
+      float half = QuantizedWeights.Half.toFloat(QuantizedWeights.Half.fromFloat(v));
+      assertEquals(String.valueOf(v), Math.min(v, 65504), half, Math.abs(v) / 1024 + 6e-8);
+    }
+    for (float v : values) {
+      assertEquals(String.valueOf(v), v, bfloat16(v), Math.abs(v) / 128);
+    }
+    // rounding up would carry into the exponent and give infinity
+    float maxBFloat = Float.intBitsToFloat(0x7f7f0000);
+    for (float v : new float[] {Float.MAX_VALUE, Float.intBitsToFloat(0x7f7f8000)}) {
+      assertEquals(maxBFloat, bfloat16(v), 0);
+      assertEquals(-maxBFloat, bfloat16(-v), 0);
+    }
+    assertEquals(Float.POSITIVE_INFINITY, bfloat16(Float.POSITIVE_INFINITY), 0);
+    assertEquals(Float.NEGATIVE_INFINITY, bfloat16(Float.NEGATIVE_INFINITY), 0);
+    assertTrue(Float.isNaN(bfloat16(Float.intBitsToFloat(0x7f800001))));
+
+    ReadableModel dense = randomModel("--quadratic ab", 16, 30000, storage(WeightStorage.DENSE));
+    for (WeightStorage q :
+        new WeightStorage[] {WeightStorage.FP16, WeightStorage.BF16, WeightStorage.INT8}) {
+      ReadableModel quantized = randomModel("--quadratic ab", 16, 30000, storage(q));
+      assertTrue(quantized.getWeights() instanceof QuantizedWeights);
+      for (int i = 0; i < dense.getWeights().size(); i++) {
+        float w = dense.getWeights().get(i);
+        assertEquals(q.toString(), w, quantized.getWeights().get(i), 0.01);
+        if (w == 0) assertEquals(0, quantized.getWeights().get(i), 0);
+      }
+
+      for (String dir : new String[] {"testq", "oaa", "testclip"}) {
+        File tdir = new File(this.getClass().getClassLoader().getResource(dir).getFile());
+        QuantizationReport report = QuantizationReport.compare(tdir, q, false);
+        assertTrue(report.examples > 0);
+        assertTrue(report.meanError <= report.maxError);
+        assertTrue(dir + " " + report, report.maxError < 0.05);
+      }
+    }
+
+    // fp16 is good enough for the vw tests
+    new ReadableModel(
+        new File(this.getClass().getClassLoader().getResource("testq").getFile()),
+        true,
+        false,
+        storage(WeightStorage.FP16));
+  }
+
+  @Test
+  public void parallelLoad() throws Exception {
+    String[] dirs = {
+      "test", "testgz", "testq", "oaa", "oaa10", "testcubic", "testclip", "testprobabilities"
+    };
+    for (WeightStorage storage : new WeightStorage[] {WeightStorage.DENSE, WeightStorage.SPARSE}) {
+      for (String dir : dirs) {
+        File tdir = new File(this.getClass().getClassLoader().getResource(dir).getFile());
+        boolean probabilities = dir.equals("testprobabilities");
+        LoadOptions options = storage(storage);
+        options.loadThreads = 4;
+        ReadableModel parallel = new ReadableModel(tdir, true, probabilities, options);
+        ReadableModel sequential = new ReadableModel(tdir, true, probabilities, storage(storage));
+        assertEquals(dir, sequential.getWeights().size(), parallel.getWeights().size());
+        for (int i = 0; i < sequential.getWeights().size(); i++) {
+          assertEquals(dir, sequential.getWeights().get(i), parallel.getWeights().get(i), 0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void parallelLoadSmallChunks() throws Exception {
+    Random r = new Random(1);
+    StringBuilder sb = new StringBuilder();
+    float[] expected = new float[1 << 12];
+    for (int i = 0; i < expected.length; i++) {
+      float w = (r.nextFloat() - 0.5f) * (float) Math.pow(10, r.nextInt(12) - 8);
+      String text;
+      switch (i % 4) {
+        case 0:
+          text = Float.toString(w);
+          break;
+        case 1:
+          text = String.format(Locale.ROOT, "%g", w);
+          break;
+        case 2:
+          text = String.format(Locale.ROOT, "%f", w);
+          break;
+        default:
+          text = String.format(Locale.ROOT, "%.3e", w);
+      }
+      expected[i] = Float.parseFloat(text);
+      sb.append(i).append(":").append(text).append(i % 10 == 0 ? "\r\n" : "\n");
+    }
+    byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+    LoadOptions options = storage(WeightStorage.DENSE);
+    for (int threads : new int[] {1, 3}) {
+      WeightsBuilder builder = new WeightsBuilder(12, options);
+      ParallelWeightsLoader.load(new ByteArrayInputStream(bytes), builder, threads, 64);
+      Weights w = builder.build();
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(i + ": " + expected[i], expected[i], w.get(i), 0);
+      }
+    }
+
+    try {
+      ParallelWeightsLoader.load(
+          new ByteArrayInputStream("1:0.5\nxx\n".getBytes(StandardCharsets.UTF_8)),
+          new WeightsBuilder(12, options),
+          2,
+          64);
+      fail("expected NumberFormatException");
+    } catch (NumberFormatException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("xx"));
+    }
+
+    // the same parser reads the weights and the input lines
+    for (String text :
+        new String[] {"0", "-0", "+1.5", "16777217", "123456789012", "1e-30", "-2.5E+3", "NaN"}) {
+      String line = "a:" + text + " ";
+      assertEquals(
+          text,
+          Float.parseFloat(text),
+          FloatParser.parseFloat(line, 2, line.length() - 1),
+          0);
+      byte[] ascii = line.getBytes(StandardCharsets.US_ASCII);
+      assertEquals(
+          text,
+          Float.parseFloat(text),
+          FloatParser.parseFloat(
+              new ParallelWeightsLoader.AsciiChars(ascii), 2, line.length() - 1),
+          0);
+    }
+  }
+
+  private void copyModel(String from, File to) throws Exception {
+    File dir = new File(this.getClass().getClassLoader().getResource(from).getFile());
+    for (String name : new String[] {"readable_model.txt", "test.txt", "predictions.txt"}) {
+      Files.copy(
+          new File(dir, name).toPath(),
+          new File(to, name).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @Test
+  public void modelHolder() throws Exception {
+    File dir = Files.createTempDirectory("turtle").toFile();
+    copyModel("test", dir);
+    PredictionRequest r = new PredictionRequest(new Namespace("f", new Feature("a")));
+
+    try (ModelHolder holder = new ModelHolder(dir)) {
+      ReadableModel first = holder.get();
+      assertEquals(0, holder.getSwaps());
+
+      copyModel("testq", dir);
+      holder.reload();
+      assertEquals(1, holder.getSwaps());
+      assertNotEquals(first, holder.get());
+
+      Files.write(
+          new File(dir, "readable_model.txt").toPath(),
+          "bits:18\n:0\nnot a weight\n".getBytes(StandardCharsets.UTF_8));
+      ReadableModel second = holder.get();
+      try {
+        holder.reload();
+        fail("expected NumberFormatException");
+      } catch (NumberFormatException e) {
+        assertEquals(e, holder.getLastError());
+      }
+      assertEquals(1, holder.getFailures());
+      assertEquals(second, holder.get());
+      holder.predict(r);
+
+      // the new model is picked up from the directory
+      holder.quietMillis = 50;
+      holder.watch();
+      copyModel("test", dir);
+      long deadline = System.currentTimeMillis() + 20000;
+      while (holder.getSwaps() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      assertEquals(2, holder.getSwaps());
+      assertArrayEquals(first.predict(r), holder.predict(r), 0);
+    }
+  }
+
+  /** VWMurmur.hash(ByteBuffer, int) as it was before the faster variants */
+  private static int referenceHash(ByteBuffer data, int seed) {
+    int len = data.limit();
+    int h1 = seed;
+    int i = 0;
+    while (i <= len - 4) {
+      int k1 = (data.get(i) | data.get(i + 1) << 8 | data.get(i + 2) << 16 | data.get(i + 3) << 24);
+      k1 *= 0xcc9e2d51;
+      k1 = (k1 << 15) | (k1 >>> 17);
+      k1 *= 0x1b873593;
+      h1 ^= k1;
+      h1 = (h1 << 13) | (h1 >>> 19);
+      h1 = h1 * 5 + 0xe6546b64;
+      i += 4;
+    }
+    int k1 = 0;
+    int end = (len / 4) * 4;
+    switch (len & 3) {
+      case 3:
+        k1 ^= (int) data.get(end + 2) << 16;
+      case 2:
+        k1 ^= (int) data.get(end + 1) << 8;
+      case 1:
+        k1 ^= (int) data.get(end);
+        k1 *= 0xcc9e2d51;
+        k1 = (k1 << 15) | (k1 >>> 17);
+        k1 *= 0x1b873593;
+        h1 ^= k1;
+    }
+    h1 ^= len;
+    h1 ^= h1 >>> 16;
+    h1 *= 0x85ebca6b;
+    h1 ^= h1 >>> 13;
+    h1 *= 0xc2b2ae35;
+    h1 ^= h1 >>> 16;
+    return h1;
+  }
+
+  @Test
+  public void murmurVariants() throws Exception {
+    String[] alphabets = {"abcdefgh0123456789_", "äöüßéñ", "中文字符", "\uD83D\uDE00", "\uD800x\uDC00"};
+    Random r = new Random(1);
+    for (int n = 0; n < 20000; n++) {
+      StringBuilder sb = new StringBuilder();
+      int len = r.nextInt(24);
+      for (int i = 0; i < len; i++) {
+        String a = alphabets[r.nextInt(r.nextBoolean() ? 1 : alphabets.length)];
+        sb.append(a.charAt(r.nextInt(a.length())));
+      }
+      int seed = r.nextInt();
+      byte[] utf8 = sb.toString().getBytes(StandardCharsets.UTF_8);
+      int expected = referenceHash(ByteBuffer.wrap(utf8), seed);
+      String msg = sb.toString();
+
+      assertEquals(msg, expected, VWMurmur.hash(sb, seed));
+      assertEquals(msg, expected, VWMurmur.hash((CharSequence) sb.toString(), seed));
+      assertEquals(msg, expected, VWMurmur.hash(ByteBuffer.wrap(utf8), seed));
+
+      byte[] padded = new byte[utf8.length + 7];
+      System.arraycopy(utf8, 0, padded, 3, utf8.length);
+      assertEquals(msg, expected, VWMurmur.hash(padded, 3, utf8.length, seed));
+      assertEquals(
+          msg, expected, VWMurmur.hash(ByteBuffer.wrap(padded, 3, utf8.length).slice(), seed));
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+      direct.put(padded);
+      assertEquals(msg, expected, VWMurmur.hash(direct, 3, utf8.length, seed));
+      direct.order(ByteOrder.LITTLE_ENDIAN);
+      assertEquals(msg, expected, VWMurmur.hash(direct, 3, utf8.length, seed));
+    }
+  }
+
+  @Test
+  public void compactFeature() throws Exception {
+    File tdir = new File(this.getClass().getClassLoader().getResource("testhashall").getFile());
+    ReadableModel m = new ReadableModel(tdir);
+    float expected =
+        m.predict(new PredictionRequest(new Namespace("a", new Feature("42"), new Feature("x"))))[0];
+    FeatureInterface[][] same = {
+      {new Feature(42), new Feature("x")},
+      {new CompactFeature(42), new CompactFeature("x")},
+      {new CompactFeature("42"), new CompactFeature(new StringBuilder("x"), 1)},
+    };
+    for (FeatureInterface[] features : same) {
+      assertEquals(expected, m.predict(new PredictionRequest(new Namespace("a", features)))[0], 0);
+    }
+
+    String[] names = {"x", "42", "-42", "äöü", "中文", "\uD83D\uDE00", "\uD800", "1.5", "99999999999"};
+    for (String name : names) {
+      CompactFeature f = new CompactFeature(name, 0.5f);
+      Feature old = new Feature(name, 0.5f);
+      // unpaired surrogates are ? like in String.getBytes()
+      assertEquals(
+          name,
+          new String(name.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+          f.getStringName());
+      assertEquals(name, old.getBytes(), f.getBytes());
+      assertEquals(name, old.hasIntegerName(), f.hasIntegerName());
+      assertEquals(name, old.getIntegerName(), f.getIntegerName());
+      assertEquals(name, VWMurmur.hash(old.getBytes(), 7), f.hashName(7));
+    }
+    for (int i : new int[] {0, 7, 10, 99, 100, 123456, Integer.MAX_VALUE, -1, Integer.MIN_VALUE}) {
+      CompactFeature f = new CompactFeature(i);
+      Feature old = new Feature(i);
+      assertEquals(String.valueOf(i), VWMurmur.hash(old.getBytes(), 3), f.hashName(3));
+      assertEquals(String.valueOf(i), old.hasIntegerName(), f.hasIntegerName());
+    }
+
+    CompactFeature f = new CompactFeature("abc");
+    f.setComputedHash(1);
+    f.rename(5);
+    assertTrue(f.hasIntegerName());
+    assertTrue(!f.isHashComputed());
+    f.rename("abc");
+    assertTrue(!f.hasIntegerName());
+    f.rename(1.5);
+    assertEquals("1.5", f.getStringName());
+
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    FeatureInterface[] features = new FeatureInterface[300];
+    for (int k = 0; k < 3; k++) {
+      long before = bean.getThreadAllocatedBytes(id);
+      for (int i = 0; i < features.length; i++) {
+        features[i] = new CompactFeature("token_" + (i % 10));
+      }
+      long allocated = bean.getThreadAllocatedBytes(id) - before;
+      assertTrue("allocated " + allocated, allocated < features.length * 200);
+    }
+  }
+
+  @Test
+  public void hashedRequest() throws Exception {
+    String[] options = {
+      "--hash_seed 0 --link identity",
+      "--hash_seed 3 --quadratic ab --quadratic ba --quadratic ca --link logistic",
+      "--hash_seed 0 --quadratic aa --quadratic ab --quadratic cc --oaa 3",
+      "--hash_seed 0 --quadratic ::",
+      "--hash_seed 0 --cubic abc --cubic bcd --quadratic ad --quadratic bc",
+      "--hash all --quadratic ab",
+    };
+    Random r = new Random(0);
+    for (String o : options) {
+      ReadableModel m = denseRandomModel(o, 12);
+      for (int i = 0; i < 20; i++) {
+        PredictionRequest request =
+            new PredictionRequest(
+                randomNamespace(r, "b", 3),
+                randomNamespace(r, "a", 2),
+                randomNamespace(r, "aitem", 2),
+                randomNamespace(r, "c", 1),
+                randomNamespace(r, "d", r.nextInt(3)),
+                randomNamespace(r, "42", 1));
+        HashedRequest hashed = m.hashed(request);
+        assertEquals(6, hashed.namespaceCount());
+        assertArrayEquals(o, m.predict(request), m.predict(hashed), 0.0001f);
+      }
+
+      // build it by hand, namespaces sorted by name for -q
+      FeatureHasher hasher = m.getFeatureHasher();
+      PredictionRequest request =
+          new PredictionRequest(
+              new Namespace("a", new Feature("x"), new Feature(7, 0.5f), new Feature("-3")),
+              new Namespace("b", new Feature("y", 2), new Feature("0123")),
+              new Namespace("c", new Feature("z")));
+      int a = hasher.namespaceHash("a");
+      int b = hasher.namespaceHash("b");
+      int c = hasher.namespaceHash(new StringBuilder("c"));
+      HashedRequest hashed =
+          new HashedRequest()
+              .namespace('a')
+              .feature(hasher.featureHash(a, "x"), 1)
+              .feature(hasher.featureHash(a, 7), 0.5f)
+              .feature(hasher.featureHash(a, "-3"), 1)
+              .namespace('b')
+              .feature(hasher.featureHash(b, "y"), 2)
+              .feature(hasher.featureHash(b, "0123"), 1)
+              .namespace('c')
+              .feature(hasher.featureHash(c, "z"), 1);
+      assertArrayEquals(o, m.predict(request), m.predict(hashed), 0.0001f);
+      assertEquals(m.namespaceHashOf(new Namespace("42"), 0), hasher.namespaceHash("42"));
+      assertEquals(m.featureHashOf(a, new Feature(-7)), hasher.featureHash(a, -7));
+      assertEquals(
+          m.featureHashOf(a, new Feature("99999999999")), hasher.featureHash(a, "99999999999"));
+
+      float[] out = m.getReusableFloatArray();
+      m.predict(hashed, out);
+      long allocated = 0;
+      com.sun.management.ThreadMXBean bean =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      for (int k = 0; k < 2; k++) {
+        long before = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 10000; i++) {
+          m.predict(hashed, out);
+        }
+        allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+      }
+      assertTrue(o + " allocated " + allocated, allocated < 1024);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void hashedRequestNeedsNamespace() {
+    new HashedRequest().feature(1, 1);
+  }
+
+  @Test
+  public void bulkScorer() throws Exception {
+    String[][] cases = {
+      {"test", "PREDICTIONS", "false", "predictions.txt"},
+      {"testq", "PREDICTIONS", "false", "predictions.txt"},
+      {"testclip", "PREDICTIONS", "false", "predictions.txt"},
+      {"oaa", "RAW", "false", "predictions.txt"},
+      {"testprobabilities", "PREDICTIONS", "true", "predictions.txt"},
+      {"testprobabilities", "RAW", "false", "raw_predictions.txt"},
+    };
+    for (String[] c : cases) {
+      File tdir = new File(this.getClass().getClassLoader().getResource(c[0]).getFile());
+      boolean probabilities = Boolean.parseBoolean(c[2]);
+      // makeSureItWorks checks testprobabilities with --probabilities
+      ReadableModel m = new ReadableModel(tdir, true, c[0].equals("testprobabilities"));
+      BulkScorer scorer = new BulkScorer(m);
+      scorer.output = BulkScorer.Output.valueOf(c[1]);
+      scorer.probabilities = probabilities;
+      scorer.threads = 3;
+      scorer.linesPerChunk = 2;
+      ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+      long n = scorer.score(Files.newInputStream(new File(tdir, "test.txt").toPath()), out);
+
+      List<String> expected = Files.readAllLines(new File(tdir, c[3]).toPath());
+      String[] got = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+      assertEquals(c[0], expected.size(), n);
+      assertEquals(c[0], expected.size(), got.length);
+      for (int i = 0; i < got.length; i++) {
+        String[] e = expected.get(i).trim().split("\\s+");
+        String[] g = got[i].split(" ");
+        assertEquals(c[0] + ":" + i, e.length, g.length);
+        for (int j = 0; j < e.length; j++) {
+          String[] ev = e[j].split(":");
+          String[] gv = g[j].split(":");
+          assertEquals(ev.length, gv.length);
+          assertEquals(
+              c[0] + ":" + i + " " + got[i],
+              Float.parseFloat(ev[ev.length - 1]),
+              Float.parseFloat(gv[gv.length - 1]),
+              0.01);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bulkScorerKeepsOrder() throws Exception {
+    ReadableModel m = denseRandomModel("--hash_seed 0 --quadratic ab --link logistic", 14);
+    Random r = new Random(3);
+    StringBuilder in = new StringBuilder();
+    List<Float> expected = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      String line = "1 |a x" + r.nextInt(1000) + " y:" + r.nextInt(100) + " |b z" + r.nextInt(50);
+      in.append(line).append('\n');
+      if (i % 100 == 0) in.append('\n');
+      expected.add(m.predict(ReadableModel.parseTestLine(line, false))[0]);
+    }
+    BulkScorer scorer = new BulkScorer(m);
+    scorer.threads = 4;
+    scorer.linesPerChunk = 7;
+    ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+    long n =
+        scorer.score(new ByteArrayInputStream(in.toString().getBytes(StandardCharsets.UTF_8)), out);
+    assertEquals(expected.size(), n);
+    String[] got = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    for (int i = 0; i < got.length; i++) {
+      assertEquals(expected.get(i), Float.parseFloat(got[i]), 0.000001);
+    }
+
+    try {
+      byte[] broken = "1 |a x\n1 |a y:z\n".getBytes(StandardCharsets.UTF_8);
+      scorer.score(new ByteArrayInputStream(broken), out);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("line 2:"));
+    }
+  }
+
+  @Test
+  public void exampleParser() throws Exception {
+    ExampleParser parser = new ExampleParser();
+    PredictionRequest r = parser.parse("-1 2.5 0.3 'first|user:2 a b:0.5 c\\:d\\ e |item\tx 42:3");
+    assertEquals("-1", parser.label.toString());
+    assertEquals(2.5f, parser.importance, 0);
+    assertEquals(0.3f, parser.initial, 0);
+    assertEquals("first", parser.tag.toString());
+    assertEquals(2, r.namespaces.size());
+    assertEquals("user", r.namespaces.get(0).namespace.toString());
+    assertEquals("item", r.namespaces.get(1).namespace.toString());
+    List<FeatureInterface> user = r.namespaces.get(0).features;
+    assertEquals(3, user.size());
+    assertEquals("a", user.get(0).getStringName());
+    assertEquals(2f, user.get(0).getValue(), 0);
+    assertEquals(1f, user.get(1).getValue(), 0);
+    assertEquals("c:d e", user.get(2).getStringName());
+    List<FeatureInterface> item = r.namespaces.get(1).features;
+    assertEquals("x", item.get(0).getStringName());
+    assertTrue(item.get(1).hasIntegerName());
+    assertEquals(42, item.get(1).getIntegerName());
+    assertEquals(3f, item.get(1).getValue(), 0);
+
+    // tag touching the first namespace, no label
+    parser.parse("second|a x");
+    assertEquals("", parser.label.toString());
+    assertEquals("second", parser.tag.toString());
+    assertEquals(1f, parser.importance, 0);
+
+    // same objects are recycled, and predictions match requests built by hand
+    ReadableModel m = new ReadableModel(this.getClass().getClassLoader().getResource("testq"));
+    String line = "1 |f a b c odd=1 |g x:0.5 ü";
+    PredictionRequest expected =
+        new PredictionRequest(
+            new Namespace("f", new Feature("a"), new Feature("b"), new Feature("c"),
+                new Feature("odd=1")),
+            new Namespace("g", new Feature("x", 0.5f), new Feature("ü")));
+    FeatureInterface recycled = r.namespaces.get(0).features.get(0);
+    PredictionRequest parsed = parser.parse(line);
+    assertTrue(parsed == r);
+    assertTrue(parsed.namespaces.get(0).features.get(0) == recycled);
+    assertEquals(m.predict(expected)[0], m.predict(parsed)[0], 0);
+
+    byte[] utf8 = ("xx" + line + "yy").getBytes(StandardCharsets.UTF_8);
+    parsed = parser.parse(utf8, 2, utf8.length - 4);
+    assertEquals("ü", parsed.namespaces.get(1).features.get(1).getStringName());
+    assertEquals(m.predict(expected)[0], m.predict(parsed)[0], 0);
+
+    // malformed utf-8 is replaced like new String(bytes, UTF_8) does
+    int[][] malformed = {
+      {0xc0, 0xaf}, // overlong '/'
+      {0xe0, 0x80, 0xaf}, // overlong '/'
+      {0xf0, 0x80, 0x80, 0xaf}, // overlong '/'
+      {0xed, 0xa0, 0x80}, // high surrogate
+      {0xed, 0xbf, 0xbf}, // low surrogate
+      {0xf4, 0x90, 0x80, 0x80}, // above U+10FFFF
+      {0xf8, 0x88, 0x80, 0x80, 0x80},
+      {0xe2, 0x82}, // truncated
+      {0xe2, 0x82, 0x61},
+      {0xf0, 0x9f, 0x98},
+      {0xf0, 0x9f, 0x98, 0x80}, // valid
+      {0xef, 0xbf, 0xbf}, // valid
+      {0x80, 0xbf, 0xc2}
+    };
+    List<byte[]> names = new ArrayList<>();
+    for (int[] bytes : malformed) {
+      byte[] name = new byte[bytes.length];
+      for (int i = 0; i < bytes.length; i++) name[i] = (byte) bytes[i];
+      names.add(name);
+    }
+    Random random = new Random(7);
+    for (int i = 0; i < 2000; i++) {
+      byte[] name = new byte[1 + random.nextInt(8)];
+      for (int j = 0; j < name.length; j++) {
+        name[j] = random.nextInt(8) == 0 ? (byte) 'a' : (byte) (0x80 + random.nextInt(0x80));
+      }
+      names.add(name);
+    }
+    for (byte[] name : names) {
+      byte[] bytes = new byte[name.length + 5];
+      System.arraycopy("1 |a ".getBytes(StandardCharsets.UTF_8), 0, bytes, 0, 5);
+      System.arraycopy(name, 0, bytes, 5, name.length);
+      String decoded = new String(name, StandardCharsets.UTF_8);
+      parsed = parser.parse(bytes, 0, bytes.length);
+      assertEquals(
+          Arrays.toString(name),
+          decoded,
+          parsed.namespaces.get(0).features.get(0).getStringName());
+    }
+
+    try {
+      parser.parse("1 |a x:y");
+      fail();
+    } catch (NumberFormatException e) {
+      // expected
+    }
+
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean bean =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long id = Thread.currentThread().getId();
+      float[] out = m.getReusableFloatArray();
+      for (int i = 0; i < 20000; i++) m.predict(out, parser.parse(line), null);
+      long before = bean.getThreadAllocatedBytes(id);
+      for (int i = 0; i < 10000; i++) m.predict(out, parser.parse(line), null);
+      long allocated = bean.getThreadAllocatedBytes(id) - before;
+      assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+  }
+
+  @Test
+  public void oaaBlockAdd() throws Exception {
+    // -b 3 is too small for 16 classes, so the class weights wrap past the mask
+    String[][] cases = {
+      {"--quadratic ab --cubic abc --oaa 50", "16"}, {"--quadratic ab --oaa 10", "3"}
+    };
+    for (String[] c : cases) {
+      int bits = Integer.parseInt(c[1]);
+      for (WeightStorage storage :
+          new WeightStorage[] {WeightStorage.DENSE, WeightStorage.SPARSE, WeightStorage.FP16}) {
+        ReadableModel m = randomModel(c[0], bits, 1 << bits, storage(storage));
+        Random r = new Random(5);
+        for (int i = 0; i < 20; i++) {
+          PredictionRequest p =
+              new PredictionRequest(
+                  randomNamespace(r, "a", 5), randomNamespace(r, "b", 5), randomNamespace(r, "c", 5));
+          // explain goes class by class through getBucket
+          float[] expected = m.predict(p, new Explanation());
+          assertArrayEquals(c[0] + " " + storage, expected, m.predict(p), 0);
+          assertArrayEquals(c[0] + " " + storage, expected, m.predict(m.hashed(p)), 0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void predictTopK() throws Exception {
+    ReadableModel m = denseRandomModel("--quadratic ab --oaa 50 --link logistic", 16);
+    Random r = new Random(9);
+    int[] classes = new int[60];
+    float[] scores = new float[60];
+    for (int i = 0; i < 50; i++) {
+      PredictionRequest p =
+          new PredictionRequest(randomNamespace(r, "a", 5), randomNamespace(r, "b", 5));
+      p.probabilities = i % 2 == 0;
+      float[] all = m.predict(p);
+      Integer[] order = new Integer[all.length];
+      for (int klass = 0; klass < all.length; klass++) order[klass] = klass;
+      Arrays.sort(order, (a, b) -> all[a] != all[b] ? Float.compare(all[b], all[a]) : a - b);
+
+      int k = i % 3 == 0 ? 60 : 5;
+      int n = m.predictTopK(p, k, classes, scores);
+      assertEquals(Math.min(k, 50), n);
+      for (int j = 0; j < n; j++) {
+        assertEquals(all[order[j]], scores[j], 0);
+        assertEquals(all[classes[j]], scores[j], 0);
+      }
+    }
+    assertEquals(0, m.predictTopK(new PredictionRequest(), 0, classes, scores));
+  }
+
+  @Test
+  public void interactionPlan() {
+    Map<Character, Set<Character>> quadratic = new HashMap<>();
+    quadratic.computeIfAbsent('a', k -> new TreeSet<>()).add('b');
+    quadratic.computeIfAbsent('b', k -> new TreeSet<>()).add('a');
+    quadratic.computeIfAbsent('\u00e9', k -> new TreeSet<>()).add('\u4e2d');
+    Map<Character, Map<Character, Set<Character>>> cubic = new HashMap<>();
+    cubic
+        .computeIfAbsent('a', k -> new HashMap<>())
+        .computeIfAbsent('b', k -> new TreeSet<>())
+        .add('\u4e2d');
+    InteractionPlan plan = new InteractionPlan(quadratic, cubic);
+
+    assertTrue(plan.hasQuadratic());
+    // ba is dropped because ab is there
+    assertArrayEquals(new char[] {'b'}, plan.quadraticWith('a'));
+    assertArrayEquals(new char[0], plan.quadraticWith('b'));
+    assertArrayEquals(new char[] {'\u4e2d'}, plan.quadraticWith('\u00e9'));
+    assertEquals(null, plan.quadraticWith('c'));
+    assertEquals(null, plan.quadraticWith('\u4e2e'));
+
+    assertEquals(1, plan.tripleCount());
+    assertEquals(3, plan.slotCount());
+    assertEquals('a', plan.slotChars[plan.triples[0]]);
+    assertEquals('\u4e2d', plan.slotChars[plan.triples[2]]);
+    assertEquals(plan.triples[2], plan.slotOf('\u4e2d'));
+    assertEquals(-1, plan.slotOf('c'));
+    assertEquals(-1, plan.slotOf('\u4e2e'));
+  }
+
+  @Test
+  public void structuredExplanation() throws Exception {
+    String[] models = {"testq", "testcubic", "oaa", "testqnum"};
+    for (String name : models) {
+      ReadableModel m =
+          new ReadableModel(
+              new File(this.getClass().getClassLoader().getResource(name).getFile()), true, false);
+      PredictionRequest r =
+          new PredictionRequest(
+              new Namespace("a", new Feature("x"), new Feature("z"), new Feature(42, 0.5f)),
+              new Namespace("b", new Feature("x1"), new Feature("z1")),
+              new Namespace("c", new Feature("age", 0.05f)),
+              new Namespace("d", new Feature("nr_foos", 1), new Feature("nr_bars", 2)));
+      Explanation legacy = new Explanation();
+      Explanation structured = new Explanation(true);
+      float[] expected = m.predict(r, legacy);
+      float[] got = m.getReusableFloatArray();
+      // twice, the second one reuses the arrays
+      m.predict(got, r, structured);
+      structured.clear();
+      m.predict(got, r, structured);
+      assertArrayEquals(name, expected, got, 0);
+      assertEquals(name, legacy.toString(), structured.toString());
+      assertEquals(name, legacy.explanations.size(), structured.size());
+      assertTrue(name, structured.explanations.isEmpty());
+
+      float[] raw = new float[got.length];
+      for (int i = 0; i < structured.size(); i++) {
+        raw[structured.klass(i)] += structured.contribution(i);
+      }
+      m.predictRaw(got, r);
+      assertArrayEquals(name, got, raw, 0.0001f);
+
+      int[] top = new int[5];
+      int n = structured.top(5, top);
+      assertEquals(Math.min(5, structured.size()), n);
+      for (int i = 1; i < n; i++) {
+        assertTrue(
+            Math.abs(structured.contribution(top[i - 1]))
+                >= Math.abs(structured.contribution(top[i])));
+      }
+      for (int i = 0; i < structured.size(); i++) {
+        boolean inTop = false;
+        for (int j = 0; j < n; j++) inTop |= top[j] == i;
+        if (!inTop) {
+          assertTrue(
+              Math.abs(structured.contribution(i))
+                  <= Math.abs(structured.contribution(top[n - 1])));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void latencyHistogram() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.percentile(0.5));
+    for (int i = 1; i <= 1000; i++) h.record(i * 1000L);
+    assertEquals(1000, h.count());
+    assertEquals(500_000, h.percentile(0.5), 500_000 * 0.125);
+    assertEquals(990_000, h.percentile(0.99), 990_000 * 0.125);
+    for (long v = 0; v < 100_000; v += 7) {
+      int bucket = LatencyHistogram.bucketOf(v);
+      assertTrue(v <= LatencyHistogram.upperBoundOf(bucket));
+      assertTrue(bucket == 0 || v > LatencyHistogram.upperBoundOf(bucket - 1));
+    }
+
+    // threads record in different stripes, the reads sum them
+    LatencyHistogram single = new LatencyHistogram(1);
+    LatencyHistogram striped = new LatencyHistogram(4);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<java.util.concurrent.Future<?>> done = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        final int thread = t;
+        done.add(
+            pool.submit(
+                () -> {
+                  for (int i = 0; i < 10_000; i++) striped.record(thread * 100_000L + i);
+                }));
+        for (int i = 0; i < 10_000; i++) single.record(t * 100_000L + i);
+      }
+      for (java.util.concurrent.Future<?> f : done) f.get();
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(80_000, striped.count());
+    for (double p : new double[] {0, 0.1, 0.5, 0.9, 0.99, 0.999, 1}) {
+      assertEquals(String.valueOf(p), single.percentile(p), striped.percentile(p));
+    }
+  }
+
+  @Test
+  public void modelMetrics() throws Exception {
+    LoadOptions options = new LoadOptions();
+    options.metrics = new ModelMetrics();
+    options.metrics.sampleEvery = 1;
+    ReadableModel m =
+        new ReadableModel(
+            new File(this.getClass().getClassLoader().getResource("testcubic").getFile()),
+            true,
+            false,
+            options);
+    assertTrue(options.metrics == m.getMetrics());
+    // makeSureItWorks is not counted
+    assertEquals(0, options.metrics.getPredictions());
+
+    PredictionRequest r =
+        new PredictionRequest(
+            new Namespace("a", new Feature("price", 0.23f), new Feature("nope")),
+            new Namespace("b", new Feature("sqft", 0.25f)),
+            new Namespace("c", new Feature("age", 0.05f)),
+            new Namespace("d", new Feature("nr_foos", 1)));
+    Explanation e = new Explanation(true);
+    float[] expected = m.predict(r, e);
+    // the explained prediction is counted too, but without sampling
+    float[] out = m.getReusableFloatArray();
+    m.predict(out, r, null);
+    m.predict(out, r, null);
+    assertArrayEquals(expected, out, 0);
+
+    ModelMetrics metrics = m.getMetrics();
+    assertEquals(3, metrics.getPredictions());
+    assertEquals(15, metrics.getFeatures());
+    assertEquals(2, metrics.getSampled());
+    assertEquals(2 * e.size(), metrics.getLookups());
+    long crossings = 0;
+    long missing = 0;
+    for (int i = 0; i < e.size(); i++) {
+      if (e.kind(i) >= Explanation.QUADRATIC) crossings++;
+      if (e.weight(i) == 0) missing++;
+    }
+    assertEquals(2 * crossings, metrics.getCrossings());
+    assertEquals(2 * missing, metrics.getMissing());
+    assertTrue(metrics.getMissing() > 0);
+    assertEquals(3, metrics.latency.count());
+
+    List<ModelMetrics.NamespaceMetrics> namespaces = metrics.getNamespaceMetrics();
+    assertEquals(4, namespaces.size());
+    assertEquals("a", namespaces.get(0).name);
+    assertEquals(6, namespaces.get(0).features.sum());
+    // one of the two features of a is not in the model
+    assertEquals(0.5, namespaces.get(0).missingRate(), 0.0001);
+    assertEquals(0, namespaces.get(1).missingRate(), 0.0001);
+
+    // a sampled prediction that fails half way does not leak its lookups into the next sample
+    Feature broken =
+        new Feature("nr_foos") {
+          @Override
+          public float getValue() {
+            throw new IllegalStateException("broken");
+          }
+        };
+    PredictionRequest failing =
+        new PredictionRequest(
+            new Namespace("a", new Feature("price", 0.23f), new Feature("nope")),
+            new Namespace("b", new Feature("sqft", 0.25f)),
+            new Namespace("c", new Feature("age", 0.05f)),
+            new Namespace("d", broken));
+    try {
+      m.predict(out, failing, null);
+      fail();
+    } catch (IllegalStateException expectedFailure) {
+      assertEquals("broken", expectedFailure.getMessage());
+    }
+    m.predict(out, r, null);
+    assertEquals(3, metrics.getSampled());
+    assertEquals(3 * e.size(), metrics.getLookups());
+    assertEquals(3 * missing, metrics.getMissing());
+    assertEquals(4, metrics.getPredictions());
+
+    metrics.sampleEvery = 0;
+    m.predict(out, r, null);
+    assertEquals(3, metrics.getSampled());
+    assertEquals(5, metrics.getPredictions());
+
+    metrics.register("testcubic");
+    try {
+      javax.management.ObjectName name =
+          new javax.management.ObjectName(
+              "bz.turtle.readable:type=ReadableModel,name=\"testcubic\"");
+      assertEquals(
+          5L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Predictions"));
+    } finally {
+      metrics.unregister();
+    }
+  }
+
+  @Test
+  public void explainSampler() throws Exception {
+    ReadableModel m =
+        new ReadableModel(
+            new File(this.getClass().getClassLoader().getResource("testcubic").getFile()));
+    ExampleParser parser = new ExampleParser();
+    try (ExplainSampler sampler = new ExplainSampler(m, 1)) {
+      for (int i = 0; i < 10; i++) {
+        PredictionRequest r =
+            parser.parse("|a price:0.23 nope |b sqft:0.25 |c age:0.05 |d nr_foos");
+        m.predict(m.getReusableFloatArray(), r, null);
+        assertTrue(sampler.offer(r));
+        // the parser recycles the request, the sampler has its own copy
+        parser.parse("|a x |b y");
+      }
+      sampler.flush();
+      assertEquals(10, sampler.explained.sum());
+      assertEquals(0, sampler.dropped.sum() + sampler.failed.sum());
+
+      Map<String, Double> missingRates = new HashMap<>();
+      for (ExplainSampler.NamespaceStats ns : sampler.getNamespaces()) {
+        missingRates.put(ns.name, ns.missingRate());
+      }
+      assertEquals(4, missingRates.size());
+      assertEquals(0.5, missingRates.get("a"), 0.0001);
+      assertEquals(0, missingRates.get("b"), 0.0001);
+
+      Set<String> interactions = new TreeSet<>();
+      for (ExplainSampler.InteractionStats s : sampler.getInteractions()) {
+        interactions.add(s.name);
+        assertEquals(0, s.lookups % 10);
+      }
+      assertEquals(
+          new TreeSet<>(
+              Arrays.asList("a", "b", "c", "d", "a*d", "b*c", "a*b*c", "b*c*d", "Constant")),
+          interactions);
+
+      Explanation e = new Explanation(true);
+      m.predict(parser.parse("|a price:0.23 nope |b sqft:0.25 |c age:0.05 |d nr_foos"), e);
+      List<ExplainSampler.BucketStats> hot = sampler.getHottestBuckets();
+      assertEquals(e.size(), hot.size());
+      for (ExplainSampler.BucketStats b : hot) assertEquals(10, b.count);
+    }
+
+    // a request that fails after its lookups were explained is not aggregated
+    ReadableModel failing =
+        new ReadableModel(
+            new File(this.getClass().getClassLoader().getResource("testcubic").getFile())) {
+          @Override
+          void explain(float[] result, PredictionRequest input, Explanation explain) {
+            super.explain(result, input, explain);
+            for (Namespace ns : input.namespaces) {
+              if (ns.namespace.toString().equals("fail")) throw new IllegalStateException();
+            }
+          }
+        };
+    try (ExplainSampler sampler = new ExplainSampler(failing, 1)) {
+      assertTrue(sampler.offer(parser.parse("|fail x |a price:0.23 |b sqft:0.25 |c age:0.05")));
+      sampler.flush();
+      assertEquals(1, sampler.failed.sum());
+      assertTrue(sampler.getInteractions().isEmpty());
+
+      String line = "|a price:0.23 nope |b sqft:0.25 |c age:0.05 |d nr_foos";
+      assertTrue(sampler.offer(parser.parse(line)));
+      sampler.flush();
+      assertEquals(1, sampler.explained.sum());
+      Explanation e = new Explanation(true);
+      m.predict(parser.parse(line), e);
+      long lookups = 0;
+      for (ExplainSampler.InteractionStats s : sampler.getInteractions()) {
+        assertTrue(s.name, !s.name.contains("fail"));
+        lookups += s.lookups;
+      }
+      assertEquals(e.size(), lookups);
+      List<ExplainSampler.BucketStats> hot = sampler.getHottestBuckets();
+      assertEquals(e.size(), hot.size());
+      for (ExplainSampler.BucketStats b : hot) assertEquals(1, b.count);
+    }
+  }
+
+  @Test
+  public void heavyHitters() {
+    HeavyHitters h = new HeavyHitters(8);
+    Random r = new Random(1);
+    Map<Integer, Long> real = new HashMap<>();
+    long total = 0;
+    for (int i = 0; i < 100_000; i++) {
+      // 3 hot keys and a long tail
+      int key = r.nextInt(4) == 0 ? r.nextInt(10_000) : r.nextInt(3) * 1000003;
+      h.add(key);
+      real.merge(key, 1L, Long::sum);
+      total++;
+    }
+    assertEquals(8, h.size());
+    Set<Integer> seen = new HashSet<>();
+    for (int i = 0; i < h.size(); i++) {
+      assertTrue(seen.add(h.key(i)));
+      long count = real.getOrDefault(h.key(i), 0L);
+      assertTrue(h.count(i) >= count);
+      assertTrue(h.count(i) - h.error(i) <= count);
+    }
+    for (Map.Entry<Integer, Long> e : real.entrySet()) {
+      if (e.getValue() > total / 8) assertTrue(seen.contains(e.getKey()));
+    }
+    assertTrue(seen.contains(0) && seen.contains(1000003) && seen.contains(2000006));
+  }
+
+  @Test
+  public void twoPhasePredict() throws Exception {
+    String[] options = {
+      "--hash_seed 0 --link identity",
+      "--hash_seed 0 --quadratic ab --quadratic ba --quadratic ca --link logistic",
+      "--hash_seed 0 --quadratic aa --quadratic ab --quadratic cc --oaa 3",
+      "--hash_seed 0 --quadratic ::",
+      "--hash_seed 0 --cubic abc --cubic bcd --quadratic ad --quadratic bc",
+    };
+    Random r = new Random(0);
+    for (String o : options) {
+      for (WeightStorage storage : new WeightStorage[] {WeightStorage.DENSE, WeightStorage.SPARSE}) {
+        LoadOptions load = new LoadOptions();
+        load.storage = storage;
+        load.predictStrategy = PredictStrategy.TWO_PHASE;
+        ReadableModel m = randomModel(o, 12, 1 << 11, load);
+        assertEquals(PredictStrategy.TWO_PHASE, m.getPredictStrategy());
+        for (int i = 0; i < 20; i++) {
+          PredictionRequest request =
+              new PredictionRequest(
+                  randomNamespace(r, "a", 1 + r.nextInt(5)),
+                  randomNamespace(r, "b", r.nextInt(5)),
+                  randomNamespace(r, "c", 1 + r.nextInt(5)),
+                  randomNamespace(r, "d", 1 + r.nextInt(5)));
+          m.setPredictStrategy(PredictStrategy.DIRECT);
+          float[] direct = m.predict(request);
+          m.setPredictStrategy(PredictStrategy.TWO_PHASE);
+          // same additions in the same order
+          assertArrayEquals(o, direct, m.predict(request), 0);
+          m.setPredictStrategy(PredictStrategy.TWO_PHASE_SORTED);
+          assertArrayEquals(o, direct, m.predict(request), 0.0001f);
+        }
+      }
+    }
+
+    // with -b below the class bits the classes wrap past the mask, at 3 they end on it
+    for (int bits = 1; bits <= 3; bits++) {
+      LoadOptions load = new LoadOptions();
+      load.predictStrategy = PredictStrategy.TWO_PHASE;
+      ReadableModel m =
+          randomModel("--hash_seed 0 --quadratic ab --oaa 5 --link identity", bits, 1 << bits, load);
+      for (int i = 0; i < 20; i++) {
+        PredictionRequest request =
+            new PredictionRequest(
+                randomNamespace(r, "a", 1 + r.nextInt(5)), randomNamespace(r, "b", r.nextInt(5)));
+        m.setPredictStrategy(PredictStrategy.DIRECT);
+        float[] direct = m.predict(request);
+        m.setPredictStrategy(PredictStrategy.TWO_PHASE);
+        assertArrayEquals("-b " + bits, direct, m.predict(request), 0);
+      }
+    }
+  }
+
+  @Test
+  public void modelEnsemble() throws Exception {
+    String[] options = {
+      "--hash_seed 0 --quadratic ab --link identity",
+      "--hash_seed 0 --cubic abc --link identity",
+      "--hash_seed 7 --quadratic ab --quadratic cc --link identity",
+      "--hash_seed 7 --hash all --link identity",
+      "--hash_seed 0 --oaa 3 --link identity",
+    };
+    ModelEnsemble ensemble = new ModelEnsemble();
+    ReadableModel[] models = new ReadableModel[options.length];
+    for (int i = 0; i < options.length; i++) {
+      models[i] = denseRandomModel(options[i], 12);
+      ensemble.add("m" + i, models[i], i == options.length - 1 ? 0 : i + 1);
+    }
+    assertEquals(3, ensemble.getGroupCount());
+    assertEquals(1, ensemble.getClasses());
+    try {
+      ensemble.add("oaa", denseRandomModel("--oaa 3", 12), 1);
+      fail("the combined prediction can't mix classes");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    float[][] outputs = ensemble.getReusableOutputs();
+    float[] combined = new float[1];
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (int round = 0; round < 20; round++) {
+        ensemble.executor = round % 2 == 0 ? null : executor;
+        long seed = round;
+        Random r = new Random(seed);
+        // not sorted by name, with two namespaces starting with c for --cubic
+        PredictionRequest request =
+            new PredictionRequest(
+                randomNamespace(r, "c1", 3),
+                randomNamespace(r, "b", 2),
+                randomNamespace(r, "a", 3),
+                randomNamespace(r, "c0", 2));
+        // hashed by a model with another seed, the ensemble must not trust it
+        float[] before = models[3].predict(request);
+        List<Integer> cached = new ArrayList<>();
+        for (Namespace ns : request.namespaces) {
+          for (FeatureInterface f : ns.features) cached.add(f.getComputedHash());
+        }
+        ensemble.predict(request, outputs, combined);
+        // and it leaves the cached hashes alone
+        List<Integer> after = new ArrayList<>();
+        for (Namespace ns : request.namespaces) {
+          for (FeatureInterface f : ns.features) after.add(f.getComputedHash());
+        }
+        assertEquals(cached, after);
+        assertArrayEquals(before, models[3].predict(request), 0);
+
+        float expected = 0;
+        for (int i = 0; i < models.length; i++) {
+          r = new Random(seed);
+          PredictionRequest fresh =
+              new PredictionRequest(
+                  randomNamespace(r, "c1", 3),
+                  randomNamespace(r, "b", 2),
+                  randomNamespace(r, "a", 3),
+                  randomNamespace(r, "c0", 2));
+          float[] p = models[i].predict(fresh);
+          assertArrayEquals(options[i], p, outputs[i], 0.00001f);
+          expected += ensemble.getWeight(i) * p[0];
+        }
+        assertEquals(expected / (1 + 2 + 3 + 4), combined[0], 0.0001f);
+        // the order of the caller's namespaces is kept
+        assertEquals("c1", request.namespaces.get(0).namespace.toString());
+      }
+
+      // one request shared by many threads
+      ensemble.executor = null;
+      Random r = new Random(1);
+      PredictionRequest shared =
+          new PredictionRequest(
+              randomNamespace(r, "c1", 3),
+              randomNamespace(r, "b", 2),
+              randomNamespace(r, "a", 3),
+              randomNamespace(r, "c0", 2));
+      ensemble.predict(shared, outputs, combined);
+      float[][] expected = new float[outputs.length][];
+      for (int i = 0; i < outputs.length; i++) expected[i] = outputs[i].clone();
+      List<java.util.concurrent.Future<?>> done = new ArrayList<>();
+      for (int t = 0; t < 3; t++) {
+        done.add(
+            executor.submit(
+                () -> {
+                  float[][] out = ensemble.getReusableOutputs();
+                  for (int i = 0; i < 200; i++) {
+                    ensemble.predict(shared, out, null);
+                    for (int k = 0; k < out.length; k++) assertArrayEquals(expected[k], out[k], 0);
+                  }
+                }));
+      }
+      for (java.util.concurrent.Future<?> f : done) f.get();
+    } finally {
+      executor.shutdown();
+    }
+  }
 }